@@ -0,0 +1,65 @@
+package model;
+
+import org.lome.trailstore.model.Event;
+import org.lome.trailstore.model.EventCodec;
+import org.lome.trailstore.model.EventView;
+import org.lome.trailstore.utils.RecordChecksum;
+import org.lome.trailstore.utils.Sequencer;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+//Encoding and decoding a WAL record: into a new buffer or the caller's, into a new Event or a view over the record.
+@Fork(value = 1, jvmArgsAppend = "--add-opens=java.base/java.nio=ALL-UNNAMED")
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class EventCodecBenchmark {
+
+    @Param({"64", "1024", "16384"})
+    int payloadBytes;
+
+    Event event;
+    ByteBuffer target;
+    ByteBuffer record;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        event = new Event(new Sequencer().tick(), "key-0001".getBytes(), "meta".getBytes(), new byte[payloadBytes]);
+        target = ByteBuffer.allocateDirect(Integer.BYTES + event.bufferSize());
+        record = ByteBuffer.wrap(event.toByteArray());
+    }
+
+    //Allocates a direct buffer per record
+    @Benchmark
+    public ByteBuffer encodeNewBuffer(){
+        return event.toBuffer();
+    }
+
+    @Benchmark
+    public ByteBuffer encodeInto(){
+        target.clear();
+        target.putInt(EventCodec.encodedSize(event, RecordChecksum.DEFAULT));
+        EventCodec.encode(event, target, RecordChecksum.DEFAULT);
+        return target;
+    }
+
+    @Benchmark
+    public byte[] encodeArray(){
+        return event.toByteArray();
+    }
+
+    //Copies the values out of the record
+    @Benchmark
+    public Event decodeEvent(){
+        return EventCodec.decode(record);
+    }
+
+    @Benchmark
+    public EventView decodeView(){
+        return EventCodec.view(record);
+    }
+}
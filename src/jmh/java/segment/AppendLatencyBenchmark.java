@@ -0,0 +1,62 @@
+package segment;
+
+import org.lome.trailstore.model.Event;
+import org.lome.trailstore.storage.segment.ArrowMemorySegment;
+import org.lome.trailstore.storage.segment.SegmentSizing;
+import org.lome.trailstore.utils.Sequencer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+//Latency of single appends to a memory segment, rolled every few rows like the store does.
+//Look at the p0.99 of the sample: growth shows up there, not in the mean.
+//A pre-sized segment allocates its chunks for the rows and payload of the one rolled before it.
+@Fork(value = 1, jvmArgsAppend = "--add-opens=java.base/java.nio=ALL-UNNAMED")
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+public class AppendLatencyBenchmark {
+
+    @Param({"false", "true"})
+    boolean presized;
+
+    @Param({"500000"})
+    int rollRows;
+
+    @Param({"256"})
+    int payloadBytes;
+
+    final Sequencer sequencer = new Sequencer();
+    byte[][] keys;
+    byte[] metadata;
+    byte[] payload;
+    ArrowMemorySegment segment;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        keys = new byte[1000][];
+        for (int i = 0; i < keys.length; i++) keys[i] = ("key" + i).getBytes();
+        metadata = "meta".getBytes();
+        payload = new byte[payloadBytes];
+        segment = new ArrowMemorySegment();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        segment.close();
+    }
+
+    @Benchmark
+    public void append() throws IOException {
+        long id = sequencer.tick();
+        segment.append(new Event(id, keys[(int) (id % keys.length)], metadata, payload));
+        if (segment.rows() >= rollRows) {
+            ArrowMemorySegment filled = segment;
+            segment = presized ? new ArrowMemorySegment(SegmentSizing.of(filled)) : new ArrowMemorySegment();
+            filled.close();
+        }
+    }
+}
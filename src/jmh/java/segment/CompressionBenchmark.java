@@ -0,0 +1,102 @@
+package segment;
+
+import org.lome.trailstore.model.Event;
+import org.lome.trailstore.storage.segment.ArrowFileSegment;
+import org.lome.trailstore.storage.segment.ArrowMemorySegment;
+import org.lome.trailstore.storage.segment.SegmentBatch;
+import org.lome.trailstore.storage.segment.SegmentCompression;
+import org.lome.trailstore.storage.segment.SegmentReadMode;
+import org.lome.trailstore.utils.Sequencer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//Write and read rates of stored segments for each codec, in MB/s of uncompressed segment
+//(the "megabytes" counter), and the compression ratio printed at setup.
+@Fork(value = 1, jvmArgsAppend = "--add-opens=java.base/java.nio=ALL-UNNAMED")
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 3)
+public class CompressionBenchmark {
+
+    final static String[] ACTIONS = {"login", "logout", "purchase", "view", "search", "update_profile"};
+
+    @Param({"NONE", "LZ4", "ZSTD"})
+    SegmentCompression compression;
+
+    @Param({"50000"})
+    int events;
+
+    ArrowMemorySegment segment;
+    File segmentFile;
+    File writeFile;
+    double rawMegabytes;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public double megabytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Sequencer sequencer = new Sequencer();
+        Random random = new Random(42);
+        segment = new ArrowMemorySegment();
+        for (int i = 0; i < events; i++) {
+            //Audit-like JSON: repeated field names, a handful of values, some numbers
+            String payload = String.format("{\"user\":\"user-%d\",\"action\":\"%s\",\"ip\":\"10.0.%d.%d\"," +
+                            "\"ok\":%b,\"amount\":%d.%02d,\"agent\":\"Mozilla/5.0 (X11; Linux x86_64)\"}",
+                    random.nextInt(5000), ACTIONS[random.nextInt(ACTIONS.length)],
+                    random.nextInt(256), random.nextInt(256), random.nextInt(10) > 0,
+                    random.nextInt(1000), random.nextInt(100));
+            segment.append(new Event(sequencer.tick(), ("user-" + random.nextInt(5000)).getBytes(),
+                    "{\"source\":\"web\"}".getBytes(), payload.getBytes(StandardCharsets.UTF_8)));
+        }
+        File plain = Files.createTempFile("trailstore-bench", ".segment").toFile();
+        segment.store(plain);
+        rawMegabytes = plain.length() / 1e6;
+        segmentFile = Files.createTempFile("trailstore-bench", ".segment").toFile();
+        segment.store(segmentFile, compression);
+        writeFile = Files.createTempFile("trailstore-bench", ".segment").toFile();
+        System.out.printf("%n%s: %.2f MB -> %.2f MB, ratio %.2f%n", compression, rawMegabytes,
+                segmentFile.length() / 1e6, plain.length() / (double) segmentFile.length());
+        plain.delete();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        segment.close();
+        segmentFile.delete();
+        writeFile.delete();
+    }
+
+    @Benchmark
+    public long write(Counters counters) throws IOException {
+        segment.store(writeFile, compression);
+        counters.megabytes += rawMegabytes;
+        return writeFile.length();
+    }
+
+    //Copying reader for every codec, so that the uncompressed file is actually read too
+    @Benchmark
+    public long read(Counters counters) throws IOException {
+        long checksum = 0;
+        try (ArrowFileSegment read = new ArrowFileSegment(segmentFile, SegmentReadMode.COPY)) {
+            for (int b = 0; b < read.batchCount(); b++) {
+                try (SegmentBatch batch = read.batch(b)) {
+                    checksum += batch.dataVector().getDataBuffer().getLong(0);
+                }
+            }
+        }
+        counters.megabytes += rawMegabytes;
+        return checksum;
+    }
+}
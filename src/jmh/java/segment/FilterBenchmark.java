@@ -0,0 +1,91 @@
+package segment;
+
+import org.lome.trailstore.model.Event;
+import org.lome.trailstore.storage.segment.*;
+import org.lome.trailstore.utils.Sequencer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+//Selective scans over a stored segment: filtering materialized events after next(),
+//against the same predicate pushed down into the segment scan.
+@Fork(value = 1, jvmArgsAppend = "--add-opens=java.base/java.nio=ALL-UNNAMED")
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class FilterBenchmark {
+
+    //key: a single key (0.1% of the rows), goes through the key index
+    //prefix: a key prefix (1.1%), evaluated on the key vector
+    //metadata: a metadata value (10%), evaluated on the metadata vector
+    @Param({"key", "prefix", "metadata"})
+    String predicate;
+
+    @Param({"1000000"})
+    int events;
+
+    File segmentFile;
+    ArrowFileSegment segment;
+    EventIteratorFactory factory;
+    EventFilter filter;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Sequencer sequencer = new Sequencer();
+        byte[] payload = "{\"user\":\"someone\",\"action\":\"login\",\"ok\":true}".getBytes(StandardCharsets.UTF_8);
+        segmentFile = Files.createTempFile("trailstore-bench", ".segment").toFile();
+        try (ArrowMemorySegment memorySegment = new ArrowMemorySegment()) {
+            for (int i = 0; i < events; i++) {
+                memorySegment.append(new Event(sequencer.tick(), ("key" + (i % 1000)).getBytes(),
+                        ("meta" + (i % 10)).getBytes(), payload));
+            }
+            memorySegment.store(segmentFile);
+        }
+        segment = new ArrowFileSegment(segmentFile, SegmentReadMode.MMAP);
+        factory = new EventIteratorFactory(segment);
+        switch (predicate) {
+            case "key": filter = EventFilters.keyEquals("key42".getBytes()); break;
+            case "prefix": filter = EventFilters.keyPrefix("key99".getBytes()); break;
+            default: filter = EventFilters.metadataEquals("meta3".getBytes());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        segment.close();
+        segmentFile.delete();
+    }
+
+    @Benchmark
+    public int scanThenFilter(Blackhole blackhole) {
+        int matches = 0;
+        Iterator<EventAccessor> iterator = factory.newIterator();
+        while (iterator.hasNext()) {
+            EventAccessor event = iterator.next();
+            if (filter.filter(event)) {
+                blackhole.consume(event.getData());
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    @Benchmark
+    public int pushdown(Blackhole blackhole) {
+        int matches = 0;
+        Iterator<EventAccessor> iterator = factory.newIterator(filter);
+        while (iterator.hasNext()) {
+            blackhole.consume(iterator.next().getData());
+            matches++;
+        }
+        return matches;
+    }
+}
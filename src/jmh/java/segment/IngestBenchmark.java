@@ -0,0 +1,88 @@
+package segment;
+
+import org.lome.trailstore.model.Event;
+import org.lome.trailstore.storage.logwal.LogWal;
+import org.lome.trailstore.storage.segment.SegmentManager;
+import org.lome.trailstore.storage.segment.SegmentManagerConfig;
+import org.lome.trailstore.utils.Sequencer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+//Acknowledged appends through the group-commit pipeline, with memory segments rolled often enough
+//for every iteration to flush several of them. Run with -PjmhThreads=<n> for concurrent producers:
+//events losing the race for their id order are rejected, the "rejected" counter reports them.
+@Fork(value = 1, jvmArgsAppend = "--add-opens=java.base/java.nio=ALL-UNNAMED")
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class IngestBenchmark {
+
+    final static Path SEGMENTS_PATH = Path.of("build", "jmh-ingest", "segments");
+    final static Path WAL_PATH = Path.of("build", "jmh-ingest", "wal");
+
+    @Param({"64", "1024"})
+    int payloadBytes;
+
+    @Param({"true", "false"})
+    boolean streamingFlush;
+
+    @Param({"100000"})
+    int rollRows;
+
+    final Sequencer sequencer = new Sequencer();
+    byte[][] keys;
+    byte[] metadata;
+    byte[] payload;
+    SegmentManager manager;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long rejected;
+    }
+
+    @Setup(Level.Trial)
+    public void setup(){
+        keys = new byte[1000][];
+        for (int i = 0; i < keys.length; i++) keys[i] = ("key" + i).getBytes();
+        metadata = "meta".getBytes();
+        payload = new byte[payloadBytes];
+        new Random(42).nextBytes(payload);
+    }
+
+    //A fresh store per iteration, so that stored segments don't pile up on disk
+    @Setup(Level.Iteration)
+    public void open() throws IOException {
+        StartupBenchmark.clear(SEGMENTS_PATH);
+        StartupBenchmark.clear(WAL_PATH);
+        manager = new SegmentManager(SEGMENTS_PATH, new LogWal(WAL_PATH), SegmentManagerConfig.builder()
+                .maxMemoryEvents(rollRows)
+                .streamingFlush(streamingFlush)
+                .build());
+    }
+
+    @TearDown(Level.Iteration)
+    public void close(){
+        manager.close();
+        StartupBenchmark.clear(SEGMENTS_PATH);
+        StartupBenchmark.clear(WAL_PATH);
+    }
+
+    @Benchmark
+    public Long append(Counters counters){
+        long id = sequencer.tick();
+        try {
+            return manager.appendAsync(new Event(id, keys[(int) (id % keys.length)], metadata, payload)).join();
+        } catch (CompletionException e) {
+            counters.rejected++;
+            return null;
+        }
+    }
+}
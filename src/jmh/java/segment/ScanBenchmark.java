@@ -0,0 +1,125 @@
+package segment;
+
+import org.lome.trailstore.exceptions.EventAppendException;
+import org.lome.trailstore.model.Event;
+import org.lome.trailstore.storage.logwal.LogWal;
+import org.lome.trailstore.storage.segment.ArrowExport;
+import org.lome.trailstore.storage.segment.EventAccessor;
+import org.lome.trailstore.storage.segment.SegmentManager;
+import org.lome.trailstore.storage.segment.SegmentManagerConfig;
+import org.lome.trailstore.storage.segment.StoreStats;
+import org.lome.trailstore.utils.Sequencer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//Full scans of a store: several stored segments followed by the memory one, through the
+//zero-copy getters, or exported as an Arrow IPC stream. Run with -PjmhThreads=<n> for concurrent
+//readers of the same store.
+@Fork(value = 1, jvmArgsAppend = "--add-opens=java.base/java.nio=ALL-UNNAMED")
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ScanBenchmark {
+
+    final static Path SEGMENTS_PATH = Path.of("build", "jmh-scan", "segments");
+    final static Path WAL_PATH = Path.of("build", "jmh-scan", "wal");
+    //Stored segments, the memory one holds the last tenth of the events
+    final static int STORED_SEGMENTS = 4;
+    final static int SCRATCH_BYTES = 1 << 16;
+
+    @Param({"64", "1024"})
+    int payloadBytes;
+
+    @Param({"500000"})
+    int events;
+
+    SegmentManager manager;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, EventAppendException, InterruptedException {
+        StartupBenchmark.clear(SEGMENTS_PATH);
+        StartupBenchmark.clear(WAL_PATH);
+        manager = new SegmentManager(SEGMENTS_PATH, new LogWal(WAL_PATH), SegmentManagerConfig.builder()
+                .maxMemoryEvents((events - events / 10) / STORED_SEGMENTS)
+                .build());
+        Sequencer sequencer = new Sequencer();
+        byte[] payload = new byte[payloadBytes];
+        new Random(42).nextBytes(payload);
+        byte[] metadata = "meta".getBytes();
+        for (int i = 0; i < events; i++) {
+            manager.append(new Event(sequencer.tick(), ("key" + (i % 1000)).getBytes(), metadata, payload));
+        }
+        //Scans should read stored files, not the rolled segments still in memory
+        StoreStats stats = manager.storeStats();
+        while (stats.getUnstored() > 0) {
+            Thread.sleep(10);
+            stats = manager.storeStats();
+        }
+        long scanned = manager.stream(false).count();
+        if (scanned != events) throw new IllegalStateException("Scanned "+scanned+" of "+events+" events");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        manager.close();
+        StartupBenchmark.clear(SEGMENTS_PATH);
+        StartupBenchmark.clear(WAL_PATH);
+    }
+
+    @Benchmark
+    public long iterator(){
+        long checksum = 0;
+        Iterator<EventAccessor> iterator = manager.iterator();
+        while (iterator.hasNext()) {
+            EventAccessor event = iterator.next();
+            checksum += event.getId() + event.getKeyBuffer().remaining() + event.getDataBuffer().remaining();
+        }
+        return checksum;
+    }
+
+    //The stream is copied out as a socket write would, to a scratch buffer
+    @Benchmark
+    public long exportArrow() throws IOException {
+        ByteBuffer scratch = ByteBuffer.allocateDirect(SCRATCH_BYTES);
+        try (ArrowExport export = manager.exportArrow(Long.MIN_VALUE, Long.MAX_VALUE, new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                int length = src.remaining();
+                while (src.hasRemaining()) {
+                    scratch.clear();
+                    int chunk = Math.min(scratch.remaining(), src.remaining());
+                    scratch.put(src.slice().limit(chunk));
+                    src.position(src.position() + chunk);
+                }
+                return length;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        })) {
+            return export.writeAll() + export.bytes();
+        }
+    }
+
+    @Benchmark
+    public long parallelStream(){
+        return manager.stream(true, false)
+                .mapToLong(event -> event.getId() + event.getKeyBuffer().remaining() + event.getDataBuffer().remaining())
+                .sum();
+    }
+}
@@ -0,0 +1,127 @@
+package segment;
+
+import org.lome.trailstore.model.Event;
+import org.lome.trailstore.storage.segment.ArrowFileSegment;
+import org.lome.trailstore.storage.segment.ArrowMemorySegment;
+import org.lome.trailstore.storage.segment.ArrowSegment;
+import org.lome.trailstore.storage.segment.EventIterator;
+import org.lome.trailstore.storage.segment.SegmentBatch;
+import org.lome.trailstore.storage.segment.SegmentReadMode;
+import org.lome.trailstore.utils.Sequencer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+//Open latency of a stored segment, and the memory held by a cache full of open segments,
+//for the copying reader and the memory mapped one.
+@Fork(value = 1, jvmArgsAppend = "--add-opens=java.base/java.nio=ALL-UNNAMED")
+@State(Scope.Benchmark)
+public class SegmentOpenBenchmark {
+
+    final static int CACHED_SEGMENTS = 10;
+
+    @Param({"COPY", "MMAP"})
+    SegmentReadMode readMode;
+
+    @Param({"1000000"})
+    int events;
+
+    final List<File> segmentFiles = new ArrayList<>();
+    String memoryReport;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Sequencer sequencer = new Sequencer();
+        byte[] payload = "{\"user\":\"someone\",\"action\":\"login\",\"ok\":true}".getBytes(StandardCharsets.UTF_8);
+        for (int s = 0; s < CACHED_SEGMENTS; s++) {
+            File file = Files.createTempFile("trailstore-bench", ".segment").toFile();
+            try (ArrowMemorySegment segment = new ArrowMemorySegment()) {
+                for (int i = 0; i < events; i++) {
+                    segment.append(new Event(sequencer.tick(), ("key" + (i % 1000)).getBytes(), "meta".getBytes(), payload));
+                }
+                segment.store(file);
+            }
+            segmentFiles.add(file);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        segmentFiles.forEach(File::delete);
+    }
+
+    @TearDown(Level.Iteration)
+    public void report(){
+        if (memoryReport != null) System.out.println(memoryReport);
+        memoryReport = null;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 3, time = 2)
+    @Measurement(iterations = 5, time = 2)
+    public long open() throws IOException {
+        try (ArrowFileSegment segment = new ArrowFileSegment(segmentFiles.get(0), readMode)) {
+            return segment.rows();
+        }
+    }
+
+    //Point read: only the batch holding the event is loaded
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 3, time = 2)
+    @Measurement(iterations = 5, time = 2)
+    public long openAndRead() throws IOException {
+        try (ArrowFileSegment segment = new ArrowFileSegment(segmentFiles.get(0), readMode)) {
+            EventIterator iterator = segment.iterator();
+            long id = iterator.hasNext() ? iterator.next().getId() : 0;
+            iterator.close();
+            return id;
+        }
+    }
+
+    //Opens and fully reads a cache worth of segments, then samples what the process holds
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public long resident() throws IOException {
+        List<ArrowFileSegment> cached = new ArrayList<>();
+        long checksum = 0;
+        for (File file : segmentFiles) {
+            ArrowFileSegment segment = new ArrowFileSegment(file, readMode);
+            for (int b = 0; b < segment.batchCount(); b++) {
+                try (SegmentBatch batch = segment.batch(b)) {
+                    for (int i = 0; i < batch.rows(); i++) {
+                        checksum += batch.idVector().get(i) + batch.dataVector().get(i).length;
+                    }
+                }
+            }
+            cached.add(segment);
+        }
+        memoryReport = String.format("%s with %d open segments: direct=%dMB %s", readMode, cached.size(),
+                ArrowSegment.ROOT_ALLOCATOR.getAllocatedMemory() / (1024 * 1024), rss());
+        for (ArrowFileSegment segment : cached) segment.close();
+        return checksum;
+    }
+
+    static String rss() throws IOException {
+        StringBuilder report = new StringBuilder();
+        for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+            if (line.startsWith("VmRSS") || line.startsWith("RssAnon") || line.startsWith("RssFile")) {
+                report.append(line.replaceAll("\\s+", " ")).append(' ');
+            }
+        }
+        return report.toString().trim();
+    }
+}
@@ -0,0 +1,98 @@
+package segment;
+
+import org.lome.trailstore.model.Event;
+import org.lome.trailstore.storage.logwal.LogWal;
+import org.lome.trailstore.storage.mvwal.MvWal;
+import org.lome.trailstore.storage.segment.SegmentManager;
+import org.lome.trailstore.storage.segment.SegmentManagerConfig;
+import org.lome.trailstore.storage.wal.Wal;
+import org.lome.trailstore.utils.Sequencer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+//Time to ready of a store restarted with a WAL backlog: opening the WAL and replaying it into memory.
+//Segments are never rolled, so every invocation finds the same backlog.
+@Fork(value = 1, jvmArgsAppend = "--add-opens=java.base/java.nio=ALL-UNNAMED")
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class StartupBenchmark {
+
+    final static Path SEGMENTS_PATH = Path.of("build", "jmh-startup", "segments");
+    final static Path WAL_PATH = Path.of("build", "jmh-startup", "wal");
+
+    @Param({"mvwal", "logwal"})
+    String engine;
+
+    @Param({"100000", "1000000"})
+    int walEvents;
+
+    @Param({"64"})
+    int payloadBytes;
+
+    SegmentManager manager;
+
+    Wal openWal(){
+        switch (engine) {
+            case "mvwal": return new MvWal(WAL_PATH);
+            case "logwal": return new LogWal(WAL_PATH);
+            default: throw new IllegalArgumentException("Unknown WAL engine: "+engine);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        clear(SEGMENTS_PATH);
+        clear(WAL_PATH);
+        Sequencer sequencer = new Sequencer();
+        byte[] metadata = "meta".getBytes(StandardCharsets.UTF_8);
+        byte[] payload = new byte[payloadBytes];
+        new Random(42).nextBytes(payload);
+        try (Wal wal = openWal()) {
+            for (int i = 0; i < walEvents; i++) {
+                wal.append(new Event(sequencer.tick(), ("key" + (i % 1000)).getBytes(StandardCharsets.UTF_8), metadata, payload));
+            }
+            wal.commit();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        clear(SEGMENTS_PATH);
+        clear(WAL_PATH);
+    }
+
+    @TearDown(Level.Invocation)
+    public void close(){
+        manager.close();
+        manager = null;
+    }
+
+    @Benchmark
+    public SegmentManager start() throws IOException {
+        manager = new SegmentManager(SEGMENTS_PATH, openWal(), SegmentManagerConfig.builder()
+                .maxMemoryEvents(walEvents + 1)
+                .streamingFlush(false)
+                .build());
+        return manager;
+    }
+
+    static void clear(Path path){
+        if (!Files.exists(path)) return;
+        try (Stream<Path> files = Files.walk(path)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
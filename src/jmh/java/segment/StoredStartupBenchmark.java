@@ -0,0 +1,81 @@
+package segment;
+
+import org.lome.trailstore.model.Event;
+import org.lome.trailstore.storage.logwal.LogWal;
+import org.lome.trailstore.storage.segment.EventAccessor;
+import org.lome.trailstore.storage.segment.SegmentManager;
+import org.lome.trailstore.storage.segment.SegmentManagerConfig;
+import org.lome.trailstore.utils.Sequencer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//Time to ready of a store restarted with many stored segments and an empty WAL,
+//then of the first range lookup into its newest segment.
+@Fork(value = 1, jvmArgsAppend = "--add-opens=java.base/java.nio=ALL-UNNAMED")
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class StoredStartupBenchmark {
+
+    final static Path SEGMENTS_PATH = Path.of("build", "jmh-stored-startup", "segments");
+    final static Path WAL_PATH = Path.of("build", "jmh-stored-startup", "wal");
+
+    @Param({"100", "1000"})
+    int segments;
+
+    @Param({"1000"})
+    int segmentRows;
+
+    long lastId;
+    SegmentManager manager;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        StartupBenchmark.clear(SEGMENTS_PATH);
+        StartupBenchmark.clear(WAL_PATH);
+        Sequencer sequencer = new Sequencer();
+        byte[] metadata = "meta".getBytes(StandardCharsets.UTF_8);
+        byte[] payload = new byte[64];
+        new Random(42).nextBytes(payload);
+        SegmentManager writer = new SegmentManager(SEGMENTS_PATH, new LogWal(WAL_PATH), SegmentManagerConfig.builder()
+                .maxMemoryEvents(segmentRows)
+                .build());
+        //One more event rolls the last full segment
+        for (int i = 0; i <= segments * segmentRows; i++) {
+            lastId = sequencer.tick();
+            writer.append(new Event(lastId, ("key" + (i % 1000)).getBytes(StandardCharsets.UTF_8), metadata, payload));
+        }
+        while (writer.storeStats().getStoredSegments() < segments) Thread.sleep(10);
+        writer.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        StartupBenchmark.clear(SEGMENTS_PATH);
+        StartupBenchmark.clear(WAL_PATH);
+    }
+
+    @TearDown(Level.Invocation)
+    public void close(){
+        manager.close();
+        manager = null;
+    }
+
+    @Benchmark
+    public long startAndSeek() throws IOException {
+        manager = new SegmentManager(SEGMENTS_PATH, new LogWal(WAL_PATH), SegmentManagerConfig.builder()
+                .maxMemoryEvents(segmentRows)
+                .build());
+        Iterator<EventAccessor> iterator = manager.iterator(lastId - segmentRows, lastId);
+        if (!iterator.hasNext()) throw new IllegalStateException("No events before " + lastId);
+        return iterator.next().getId();
+    }
+}
@@ -0,0 +1,123 @@
+package server;
+
+import org.lome.trailstore.model.Event;
+import org.lome.trailstore.server.TrailClient;
+import org.lome.trailstore.server.TrailServer;
+import org.lome.trailstore.storage.logwal.LogWal;
+import org.lome.trailstore.storage.segment.SegmentManager;
+import org.lome.trailstore.storage.segment.SegmentManagerConfig;
+import org.lome.trailstore.utils.Sequencer;
+import org.openjdk.jmh.annotations.*;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+//Client and server over loopback TCP.
+//ingest: a channel of BATCHES batches per call, returning once the last one is acknowledged,
+//scored in batches per second (times batchSize for events).
+//replay: the REPLAY_ROWS preloaded events read back with the client's default demand, scored in events per second.
+@Fork(value = 1, jvmArgsAppend = "--add-opens=java.base/java.nio=ALL-UNNAMED")
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ServerBenchmark {
+
+    final static Path SEGMENTS_PATH = Path.of("build", "jmh-server", "segments");
+    final static Path WAL_PATH = Path.of("build", "jmh-server", "wal");
+    final static int BATCHES = 64;
+    final static int REPLAY_ROWS = 100000;
+
+    @Param({"100", "1000"})
+    int batchSize;
+
+    @Param({"64", "1024"})
+    int payloadBytes;
+
+    final Sequencer sequencer = new Sequencer();
+    byte[][] keys;
+    byte[] metadata;
+    byte[] payload;
+    SegmentManager manager;
+    TrailServer server;
+    TrailClient client;
+    long replayFrom;
+    long replayTo;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        keys = new byte[1000][];
+        for (int i = 0; i < keys.length; i++) keys[i] = ("key" + i).getBytes();
+        metadata = "meta".getBytes();
+        payload = new byte[payloadBytes];
+        new Random(42).nextBytes(payload);
+        clear(SEGMENTS_PATH);
+        clear(WAL_PATH);
+        manager = new SegmentManager(SEGMENTS_PATH, new LogWal(WAL_PATH), SegmentManagerConfig.builder()
+                .maxMemoryEvents(100000)
+                .build());
+        server = new TrailServer(manager, "127.0.0.1", 0);
+        client = new TrailClient("127.0.0.1", server.address().getPort());
+        List<List<Event>> preload = new ArrayList<>();
+        for (int i = 0; i < REPLAY_ROWS / batchSize; i++) preload.add(batch());
+        replayFrom = preload.get(0).get(0).getId();
+        replayTo = client.append(Flux.fromIterable(preload)).blockLast();
+        long count = client.replay(replayFrom, replayTo).count().block();
+        if (count != REPLAY_ROWS) throw new IllegalStateException("Replayed " + count + " events out of " + REPLAY_ROWS);
+    }
+
+    @TearDown(Level.Trial)
+    public void close(){
+        client.close();
+        server.close();
+        manager.close();
+        clear(SEGMENTS_PATH);
+        clear(WAL_PATH);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCHES)
+    public Long ingest(){
+        //Batches are built as they are requested, so that ids stay in order across calls
+        return client.append(Flux.range(0, BATCHES).map(i -> batch())).blockLast();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REPLAY_ROWS)
+    public Long replay(){
+        return client.replay(replayFrom, replayTo).count().block();
+    }
+
+    private List<Event> batch(){
+        List<Event> events = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            long id = sequencer.tick();
+            events.add(new Event(id, keys[(int) (id % keys.length)], metadata, payload));
+        }
+        return events;
+    }
+
+    static void clear(Path rootPath){
+        try (Stream<Path> walk = Files.walk(rootPath)) {
+            walk.sorted(Comparator.reverseOrder())
+                    .filter(p -> !p.equals(rootPath))
+                    .forEach(ServerBenchmark::clear);
+        } catch (IOException e) {
+            //Ignore
+        }
+        try {
+            Files.delete(rootPath);
+        } catch (IOException e) {
+            //Ignore
+        }
+    }
+}
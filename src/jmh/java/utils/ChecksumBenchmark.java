@@ -0,0 +1,49 @@
+package utils;
+
+import org.lome.trailstore.utils.RecordChecksum;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//Checksum of a record worth of bytes, on the heap buffers the WALs hand over and on the direct ones
+//they write from. CRC16 is the HashCrc16 table, CRC32C the JDK intrinsic.
+@Fork(value = 1, jvmArgsAppend = "--add-opens=java.base/java.nio=ALL-UNNAMED")
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ChecksumBenchmark {
+
+    @Param({"CRC16", "CRC32C"})
+    String checksum;
+
+    @Param({"64", "1024", "16384"})
+    int payloadBytes;
+
+    RecordChecksum recordChecksum;
+    ByteBuffer heapBuffer;
+    ByteBuffer directBuffer;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        recordChecksum = "CRC16".equals(checksum) ? RecordChecksum.CRC16 : RecordChecksum.CRC32C;
+        byte[] bytes = new byte[payloadBytes];
+        new Random(42).nextBytes(bytes);
+        heapBuffer = ByteBuffer.wrap(bytes);
+        directBuffer = ByteBuffer.allocateDirect(payloadBytes);
+        directBuffer.put(bytes).flip();
+    }
+
+    @Benchmark
+    public int heap(){
+        return recordChecksum.compute(heapBuffer);
+    }
+
+    @Benchmark
+    public int direct(){
+        return recordChecksum.compute(directBuffer);
+    }
+}
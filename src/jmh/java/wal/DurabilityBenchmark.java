@@ -0,0 +1,73 @@
+package wal;
+
+import org.lome.trailstore.model.Event;
+import org.lome.trailstore.storage.logwal.LogWal;
+import org.lome.trailstore.storage.mvwal.MvWal;
+import org.lome.trailstore.storage.wal.Durability;
+import org.lome.trailstore.storage.wal.Wal;
+import org.lome.trailstore.utils.RecordChecksum;
+import org.lome.trailstore.utils.Sequencer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+//Producers appending and waiting for the durable ack of each event: throughput, and the latency
+//distribution of the acks (look at the p0.99 of the sample) for each durability level.
+//Appends are serialized, so that ids reach the WAL in order, the waits are not.
+@Fork(value = 1, jvmArgsAppend = "--add-opens=java.base/java.nio=ALL-UNNAMED")
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 3)
+@Threads(4)
+public class DurabilityBenchmark {
+
+    @Param({"mvwal", "logwal"})
+    String engine;
+
+    @Param({"NONE", "ASYNC", "SYNC"})
+    Durability durability;
+
+    @Param({"20"})
+    int maxCommitDelayMs;
+
+    @Param({"256"})
+    int payloadBytes;
+
+    Wal wal;
+    byte[] payload;
+    final Sequencer sequencer = new Sequencer();
+
+    @Setup(Level.Trial)
+    public void setup(){
+        WalBenchmark.clear(WalBenchmark.WAL_PATH);
+        Duration maxCommitDelay = Duration.ofMillis(maxCommitDelayMs);
+        switch (engine) {
+            case "mvwal": wal = new MvWal(WalBenchmark.WAL_PATH, false, RecordChecksum.DEFAULT, maxCommitDelay); break;
+            case "logwal": wal = new LogWal(WalBenchmark.WAL_PATH, 64L * 1024 * 1024, RecordChecksum.DEFAULT, maxCommitDelay); break;
+            default: throw new IllegalArgumentException("Unknown WAL engine: "+engine);
+        }
+        payload = new byte[payloadBytes];
+        new Random(42).nextBytes(payload);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        wal.close();
+        WalBenchmark.clear(WalBenchmark.WAL_PATH);
+    }
+
+    @Benchmark
+    public void append(){
+        CompletableFuture<Void> durable;
+        synchronized (this) {
+            durable = wal.append(new Event(sequencer.tick(), "key".getBytes(), "meta".getBytes(), payload), durability);
+        }
+        durable.join();
+    }
+}
@@ -0,0 +1,141 @@
+package wal;
+
+import org.lome.trailstore.model.Event;
+import org.lome.trailstore.storage.logwal.LogWal;
+import org.lome.trailstore.storage.mvwal.MvWal;
+import org.lome.trailstore.storage.wal.Wal;
+import org.lome.trailstore.utils.Sequencer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+//Compares the MVStore backed WAL with the log structured one:
+//append throughput, and the cost of dropping a stored segment worth of events.
+@Fork(value = 1, jvmArgsAppend = "--add-opens=java.base/java.nio=ALL-UNNAMED")
+public class WalBenchmark {
+
+    final static Path WAL_PATH = Path.of("build", "jmh-wal");
+    //Small enough for a segment worth of events to span several files
+    final static long LOG_FILE_SIZE = 1024L * 1024;
+
+    static Wal open(String engine){
+        clear(WAL_PATH);
+        switch (engine) {
+            case "mvwal": return new MvWal(WAL_PATH);
+            case "logwal": return new LogWal(WAL_PATH, LOG_FILE_SIZE);
+            default: throw new IllegalArgumentException("Unknown WAL engine: "+engine);
+        }
+    }
+
+    static Event event(Sequencer sequencer){
+        return event(sequencer, "{\"payload\":\"0123456789012345678901234567890123456789\"}".getBytes(StandardCharsets.UTF_8));
+    }
+
+    static Event event(Sequencer sequencer, byte[] payload){
+        return new Event(sequencer.tick(),
+                "key".getBytes(StandardCharsets.UTF_8),
+                "meta".getBytes(StandardCharsets.UTF_8),
+                payload);
+    }
+
+    @State(Scope.Benchmark)
+    public static class AppendState {
+
+        @Param({"mvwal", "logwal"})
+        String engine;
+
+        @Param({"64", "1024"})
+        int payloadBytes;
+
+        Wal wal;
+        byte[] payload;
+        final Sequencer sequencer = new Sequencer();
+
+        @Setup(Level.Trial)
+        public void setup(){
+            wal = open(engine);
+            payload = new byte[payloadBytes];
+            new Random(42).nextBytes(payload);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            wal.close();
+            clear(WAL_PATH);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class TruncateState {
+
+        @Param({"mvwal", "logwal"})
+        String engine;
+
+        @Param({"100000"})
+        int events;
+
+        Wal wal;
+        long first;
+        long last;
+        final Sequencer sequencer = new Sequencer();
+
+        @Setup(Level.Iteration)
+        public void setup(){
+            wal = open(engine);
+            //One stored segment worth of events, followed by the head of the next one
+            first = sequencer.tick();
+            wal.append(new Event(first, "key".getBytes(), "meta".getBytes(), "data".getBytes()));
+            for (int i = 1; i < events; i++) wal.append(event(sequencer));
+            last = sequencer.tick();
+            wal.append(new Event(last, "key".getBytes(), "meta".getBytes(), "data".getBytes()));
+            for (int i = 0; i < events / 10; i++) wal.append(event(sequencer));
+            wal.commit();
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() throws IOException {
+            wal.close();
+            clear(WAL_PATH);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Warmup(iterations = 3, time = 2)
+    @Measurement(iterations = 5, time = 2)
+    public void append(AppendState state){
+        state.wal.append(event(state.sequencer, state.payload));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public void truncate(TruncateState state){
+        state.wal.remove(state.first, state.last);
+    }
+
+    static void clear(Path rootPath){
+        try (Stream<Path> walk = Files.walk(rootPath)) {
+            walk.sorted(Comparator.reverseOrder())
+                    .forEach(p -> {
+                        try {
+                            Files.delete(p);
+                        } catch (IOException e) {
+                            //Ignore
+                        }
+                    });
+        } catch (IOException e) {
+            //Ignore
+        }
+    }
+}
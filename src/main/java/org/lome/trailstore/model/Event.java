@@ -8,7 +8,7 @@ import org.apache.arrow.vector.types.pojo.Field;
 import org.apache.arrow.vector.types.pojo.FieldType;
 import org.apache.arrow.vector.types.pojo.Schema;
 import org.lome.trailstore.exceptions.EventIntegrityException;
-import org.lome.trailstore.utils.HashCrc16;
+import org.lome.trailstore.utils.RecordChecksum;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 
@@ -17,101 +17,50 @@ import java.util.Arrays;
 @ToString
 public class Event {
 
-    final static HashCrc16 crc = new HashCrc16();
-
     final long id;
     final byte[] key;
     final byte[] metadata;
     final byte[] data;
 
     public ByteBuffer toBuffer(){
-        int length = bufferSize();
+        return toBuffer(RecordChecksum.DEFAULT);
+    }
+
+    //Length-prefixed record, in a direct buffer. See EventCodec to encode into a buffer of your own
+    public ByteBuffer toBuffer(RecordChecksum checksum){
+        int length = EventCodec.encodedSize(this, checksum);
         ByteBuffer buf = ByteBuffer.allocateDirect(length+(Integer.BYTES));
         buf.putInt(length);
-        buf.putLong(id);
-        buf.putInt(key.length);
-        buf.put(key);
-        buf.putInt(metadata.length);
-        buf.put(metadata);
-        buf.putInt(data.length);
-        buf.put(data);
-        buf.putInt(computeHash());
+        EventCodec.encode(this, buf, checksum);
         buf.position(0);
         return buf;
     }
 
-    public ByteBuffer hashBuffer(){
-        int length = bufferSize();
-        ByteBuffer buf = ByteBuffer.allocateDirect(length);
-        buf.putLong(id);
-        buf.putInt(key.length);
-        buf.put(key);
-        buf.putInt(metadata.length);
-        buf.put(metadata);
-        buf.putInt(data.length);
-        buf.put(data);
-        buf.putInt(-1); //Check
-        buf.position(0);
-        return buf;
+    public byte[] toByteArray(){
+        return toByteArray(RecordChecksum.DEFAULT);
     }
 
-    int computeHash(){
-        ByteBuffer buff = hashBuffer();
-        int hash = crc.computeHash(buff);
-        buff.clear();
-        return hash;
+    public byte[] toByteArray(RecordChecksum checksum){
+        byte[] record = new byte[EventCodec.encodedSize(this, checksum)];
+        EventCodec.encode(this, ByteBuffer.wrap(record), checksum);
+        return record;
     }
 
     public int bufferSize(){
-        return Long.BYTES+
-                4*(Integer.BYTES)+
-                key.length+metadata.length+data.length;
+        return bufferSize(RecordChecksum.DEFAULT);
     }
 
-    public static Event fromBuffer(ByteBuffer buffer) throws EventIntegrityException {
-        Event ev = new Event(buffer.getLong(),
-                bytes(buffer.getInt(),buffer),
-                bytes(buffer.getInt(),buffer),
-                bytes(buffer.getInt(),buffer));
-        int crc = buffer.getInt();
-        if (ev.computeHash() != crc){
-            throw new EventIntegrityException("CRC mismatch! - "+crc+":"+ev.computeHash());
-        }
-        return ev;
+    public int bufferSize(RecordChecksum checksum){
+        return EventCodec.encodedSize(this, checksum);
     }
 
-    static byte[] bytes(int howMany, ByteBuffer buffer){
-        byte[] data = new byte[howMany];
-        buffer.get(data);
-        return data;
-    }
-
-    public byte[] toByteArray(){
-        ByteBuffer buf = ByteBuffer.wrap(new byte[bufferSize()]);
-        buf.putLong(id);
-        buf.putInt(key.length);
-        buf.put(key);
-        buf.putInt(metadata.length);
-        buf.put(metadata);
-        buf.putInt(data.length);
-        buf.put(data);
-        buf.putInt(computeHash());
-        return buf.array();
+    //Decodes a record, the buffer holding exactly that
+    public static Event fromBuffer(ByteBuffer buffer) throws EventIntegrityException {
+        return EventCodec.decode(buffer);
     }
 
     public static Event fromByteArray(byte[] data) throws EventIntegrityException {
-        ByteBuffer buffer = ByteBuffer.wrap(data);
-        Event ev = new Event(buffer.getLong(),
-                bytes(buffer.getInt(),buffer),
-                bytes(buffer.getInt(),buffer),
-                bytes(buffer.getInt(),buffer));
-        int crc = buffer.getInt();
-        if (ev.computeHash() != crc){
-            throw new EventIntegrityException("CRC mismatch! - "+crc+":"+ev.computeHash());
-        }
-        return ev;
+        return fromBuffer(ByteBuffer.wrap(data));
     }
 
-
-
 }
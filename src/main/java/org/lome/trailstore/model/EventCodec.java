@@ -0,0 +1,115 @@
+package org.lome.trailstore.model;
+
+import org.apache.arrow.memory.ArrowBuf;
+import org.lome.trailstore.exceptions.EventIntegrityException;
+import org.lome.trailstore.utils.RecordChecksum;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Serialized form of an event, shared by the WALs, the recovery and the transports.
+ * Records are laid out as: id, key length, key, metadata length, metadata, data length, data,
+ * the checksum of everything before it, then the format byte of the checksum.
+ * Records written before the format byte existed end with the checksum, a CRC16.
+ * <p>
+ * Events are encoded straight into the caller's buffer, and records are decoded into
+ * {@link EventView}s over the record bytes: nothing is allocated on either side.
+ */
+public final class EventCodec {
+
+    final static int HEADER_BYTES = Long.BYTES + 3 * Integer.BYTES;
+
+    private EventCodec(){
+    }
+
+    public static int encodedSize(Event event, RecordChecksum checksum){
+        return HEADER_BYTES + Integer.BYTES +
+                event.key.length + length(event.metadata) + event.data.length +
+                (checksum.format() == RecordChecksum.LEGACY_FORMAT ? 0 : 1);
+    }
+
+    //Writes the record at the buffer position, which is moved past it. Returns the bytes written
+    public static int encode(Event event, ByteBuffer target, RecordChecksum checksum){
+        int start = target.position();
+        target.putLong(event.id);
+        target.putInt(event.key.length);
+        target.put(event.key);
+        target.putInt(length(event.metadata));
+        if (event.metadata != null) target.put(event.metadata);
+        target.putInt(event.data.length);
+        target.put(event.data);
+        ByteBuffer fields = target.duplicate();
+        fields.limit(target.position()).position(start);
+        target.putInt(checksum.compute(fields));
+        if (checksum.format() != RecordChecksum.LEGACY_FORMAT) target.put(checksum.format());
+        return target.position() - start;
+    }
+
+    //Writes the record at the given index of an Arrow buffer, its writer index is left alone
+    public static int encode(Event event, ArrowBuf target, long index, RecordChecksum checksum){
+        return encode(event, target.nioBuffer(index, encodedSize(event, checksum)), checksum);
+    }
+
+    //The event in the record, the buffer holding exactly that. Doesn't move the buffer
+    public static EventView view(ByteBuffer record) throws EventIntegrityException {
+        try {
+            int start = record.position();
+            long id = record.getLong(start);
+            int at = start + Long.BYTES;
+            ByteBuffer key = value(record, at);
+            at += Integer.BYTES + key.remaining();
+            ByteBuffer metadata = value(record, at);
+            at += Integer.BYTES + metadata.remaining();
+            ByteBuffer data = value(record, at);
+            at += Integer.BYTES + data.remaining();
+            int crc = record.getInt(at);
+            RecordChecksum checksum = checksum(record, at);
+            ByteBuffer fields = record.duplicate();
+            fields.limit(at).position(start);
+            int hash = checksum.compute(fields);
+            if (hash != crc){
+                throw new EventIntegrityException("CRC mismatch! - "+crc+":"+hash);
+            }
+            return new EventView(id, key, metadata, data);
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new EventIntegrityException("Malformed record: "+e.getMessage());
+        }
+    }
+
+    public static Event decode(ByteBuffer record) throws EventIntegrityException {
+        return view(record).toEvent();
+    }
+
+    //Checks the record without decoding it, nor moving the buffer
+    public static boolean isValid(ByteBuffer record){
+        try {
+            view(record);
+            return true;
+        } catch (EventIntegrityException e) {
+            return false;
+        }
+    }
+
+    //The length-prefixed value at the given index, as a slice. Not a read-only one:
+    //Arrow copies those a byte at a time
+    private static ByteBuffer value(ByteBuffer record, int at){
+        int length = record.getInt(at);
+        if (length < 0) throw new IllegalArgumentException("negative length at "+at);
+        ByteBuffer value = record.duplicate();
+        value.limit(at + Integer.BYTES + length).position(at + Integer.BYTES);
+        return value.slice();
+    }
+
+    //Whatever follows the checksum tells how it was computed
+    private static RecordChecksum checksum(ByteBuffer record, int at){
+        switch (record.limit() - at) {
+            case Integer.BYTES: return RecordChecksum.CRC16;
+            case Integer.BYTES + 1: return RecordChecksum.of(record.get(at + Integer.BYTES));
+            default: throw new IllegalArgumentException("unexpected trailer of "+(record.limit() - at)+" bytes");
+        }
+    }
+
+    private static int length(byte[] value){
+        return value == null ? 0 : value.length;
+    }
+}
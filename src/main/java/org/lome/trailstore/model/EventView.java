@@ -0,0 +1,74 @@
+package org.lome.trailstore.model;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An event read in place from its serialized record: values are slices of the record buffer, never to be
+ * written to. Nothing is copied until {@link #toEvent()} or the byte[] getters are called.
+ * Only valid as long as the buffer holding the record isn't reused.
+ */
+public class EventView {
+
+    final long id;
+    final ByteBuffer key;
+    final ByteBuffer metadata;
+    final ByteBuffer data;
+
+    EventView(long id, ByteBuffer key, ByteBuffer metadata, ByteBuffer data){
+        this.id = id;
+        this.key = key;
+        this.metadata = metadata;
+        this.data = data;
+    }
+
+    public long getId(){
+        return id;
+    }
+
+    //Positioned on the value, a duplicate: the caller may move it
+    public ByteBuffer getKeyBuffer(){
+        return key.duplicate();
+    }
+
+    public ByteBuffer getMetadataBuffer(){
+        return metadata.duplicate();
+    }
+
+    public ByteBuffer getDataBuffer(){
+        return data.duplicate();
+    }
+
+    public int keyLength(){
+        return key.remaining();
+    }
+
+    public int metadataLength(){
+        return metadata.remaining();
+    }
+
+    public int dataLength(){
+        return data.remaining();
+    }
+
+    public byte[] getKey(){
+        return copy(key);
+    }
+
+    public byte[] getMetadata(){
+        return copy(metadata);
+    }
+
+    public byte[] getData(){
+        return copy(data);
+    }
+
+    public Event toEvent(){
+        return new Event(id, getKey(), getMetadata(), getData());
+    }
+
+    private static byte[] copy(ByteBuffer value){
+        byte[] bytes = new byte[value.remaining()];
+        value.duplicate().get(bytes);
+        return bytes;
+    }
+}
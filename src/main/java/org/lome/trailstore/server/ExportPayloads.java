@@ -0,0 +1,53 @@
+package org.lome.trailstore.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import org.lome.trailstore.storage.segment.ArrowExport;
+import org.lome.trailstore.storage.segment.SegmentManager;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+//Cuts an Arrow export into payloads on message boundaries: the schema, each record batch, the end of stream.
+//The export writes into a pooled buffer, handed over once the message is complete
+class ExportPayloads implements WritableByteChannel, Closeable {
+
+    final ByteBufAllocator allocator;
+    final ArrowExport export;
+    ByteBuf message;
+
+    ExportPayloads(SegmentManager manager, long fromId, long toId, ByteBufAllocator allocator){
+        this.allocator = allocator;
+        this.export = manager.exportArrow(fromId, toId, this);
+    }
+
+    //The next message, null once the whole stream has been handed over
+    ByteBuf next() throws IOException {
+        if (!export.writeNext()) return null;
+        ByteBuf next = message;
+        message = null;
+        return next;
+    }
+
+    @Override
+    public int write(ByteBuffer src){
+        int length = src.remaining();
+        if (message == null) message = allocator.directBuffer(length);
+        message.writeBytes(src);
+        return length;
+    }
+
+    @Override
+    public boolean isOpen(){
+        return true;
+    }
+
+    @Override
+    public void close(){
+        export.close();
+        if (message != null) message.release();
+        message = null;
+    }
+}
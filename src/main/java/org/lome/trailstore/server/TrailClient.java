@@ -0,0 +1,118 @@
+package org.lome.trailstore.server;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.rsocket.Payload;
+import io.rsocket.RSocket;
+import io.rsocket.core.RSocketConnector;
+import io.rsocket.frame.decoder.PayloadDecoder;
+import io.rsocket.transport.netty.client.TcpClientTransport;
+import io.rsocket.util.ByteBufPayload;
+import org.lome.trailstore.model.Event;
+import org.lome.trailstore.storage.wal.Durability;
+import org.lome.trailstore.utils.RecordChecksum;
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Client of a {@link TrailServer}, over a single connection.
+ */
+public class TrailClient implements Closeable {
+
+    final RSocket rSocket;
+    final ByteBufAllocator allocator = ByteBufAllocator.DEFAULT;
+    final RecordChecksum checksum;
+
+    public TrailClient(String host, int port){
+        this(host, port, RecordChecksum.DEFAULT);
+    }
+
+    public TrailClient(String host, int port, RecordChecksum checksum){
+        this.checksum = checksum;
+        this.rSocket = RSocketConnector.create()
+                .payloadDecoder(PayloadDecoder.ZERO_COPY)
+                .fragment(TrailServer.FRAGMENT_BYTES)
+                .connect(TcpClientTransport.create(host, port))
+                .block();
+    }
+
+    //The id of the last event of each batch, once as durable as the server is configured for, in batch order.
+    //Errors with the reason of the first rejected batch, nothing after it is stored
+    public Flux<Long> append(Publisher<List<Event>> batches){
+        return rSocket.requestChannel(Flux.from(batches).map(this::batchPayload))
+                .map(decode(TrailProtocol::decodeAck));
+    }
+
+    //Same, each batch acknowledged once as durable as asked
+    public Flux<Long> append(Publisher<List<Event>> batches, Durability durability){
+        return rSocket.requestChannel(Flux.from(batches).map(events -> batchPayload(events, durability)))
+                .map(decode(TrailProtocol::decodeAck));
+    }
+
+    //Best effort: completes once sent, see TrailServer.droppedEvents for what the server didn't store
+    public Mono<Void> send(List<Event> events){
+        return rSocket.fireAndForget(batchPayload(events));
+    }
+
+    //Events with fromId <= id <= toId, read by the server as they are requested
+    public Flux<Event> replay(long fromId, long toId){
+        return rSocket.requestStream(ByteBufPayload.create(TrailProtocol.encodeRange(fromId, toId, allocator)))
+                .map(decode(TrailProtocol::decodeEvent));
+    }
+
+    //Writes the events with fromId <= id <= toId to the channel as an Arrow IPC stream, on a worker thread.
+    //Completes with the bytes written, the channel is left open
+    public Mono<Long> exportArrow(long fromId, long toId, WritableByteChannel out){
+        Payload request = ByteBufPayload.create(TrailProtocol.encodeRange(fromId, toId, allocator),
+                TrailProtocol.encodeExportMetadata(allocator));
+        return rSocket.requestStream(request)
+                .publishOn(Schedulers.boundedElastic())
+                .map(decode(message -> write(out, message)))
+                .doOnDiscard(Payload.class, Payload::release)
+                .reduce(0L, Long::sum);
+    }
+
+    private static long write(WritableByteChannel out, ByteBuffer message){
+        long written = 0;
+        try {
+            while (message.hasRemaining()) written += out.write(message);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return written;
+    }
+
+    private Payload batchPayload(List<Event> events){
+        return ByteBufPayload.create(TrailProtocol.encodeBatch(events, allocator, checksum));
+    }
+
+    private Payload batchPayload(List<Event> events, Durability durability){
+        return ByteBufPayload.create(TrailProtocol.encodeBatch(events, allocator, checksum),
+                TrailProtocol.encodeDurabilityMetadata(durability, allocator));
+    }
+
+    //Decodes, then releases the frame
+    private static <T> Function<Payload, T> decode(Function<ByteBuffer, T> decoder){
+        return payload -> {
+            try {
+                return decoder.apply(payload.getData());
+            } finally {
+                payload.release();
+            }
+        };
+    }
+
+    @Override
+    public void close(){
+        rSocket.dispose();
+    }
+}
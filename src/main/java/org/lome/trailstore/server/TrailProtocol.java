@@ -0,0 +1,108 @@
+package org.lome.trailstore.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import org.lome.trailstore.exceptions.EventIntegrityException;
+import org.lome.trailstore.model.Event;
+import org.lome.trailstore.model.EventCodec;
+import org.lome.trailstore.storage.wal.Durability;
+import org.lome.trailstore.utils.RecordChecksum;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Payloads exchanged with {@link TrailServer}, all in the data of the payload, big endian:
+ * <ul>
+ * <li>batch: events as length-prefixed records, like {@link Event#toBuffer()} writes them,
+ * one after the other. Sent by clients on request-channel and fire-and-forget, with the name of a
+ * {@link Durability} as metadata to ask for other than the durability the server is configured with.</li>
+ * <li>ack: the id of the last event of a stored batch, a long. One per batch, in batch order.</li>
+ * <li>range: first and last id to replay, two longs, inclusive. Sent on request-stream.</li>
+ * <li>event: a single record, with no length prefix. One per replayed event.</li>
+ * <li>export: a range sent on request-stream with {@link #EXPORT_ARROW} as metadata. Answered with the events
+ * as an Arrow IPC stream, a message per payload: the schema, the record batches, the end of stream.</li>
+ * </ul>
+ * Buffers are taken from the given allocator, pooled ones normally, and released by whoever sends them.
+ */
+public final class TrailProtocol {
+
+    public final static String EXPORT_ARROW = "arrow";
+
+    private TrailProtocol(){
+    }
+
+    public static ByteBuf encodeBatch(List<Event> events, ByteBufAllocator allocator, RecordChecksum checksum){
+        int size = 0;
+        for (Event event : events) size += Integer.BYTES + EventCodec.encodedSize(event, checksum);
+        ByteBuf batch = allocator.directBuffer(size, size);
+        ByteBuffer target = batch.nioBuffer(0, size);
+        for (Event event : events) {
+            int lengthAt = target.position();
+            target.position(lengthAt + Integer.BYTES);
+            target.putInt(lengthAt, EventCodec.encode(event, target, checksum));
+        }
+        return batch.writerIndex(size);
+    }
+
+    //Events are copied out of the batch, which can be released right after
+    public static List<Event> decodeBatch(ByteBuffer batch) throws EventIntegrityException {
+        List<Event> events = new ArrayList<>();
+        ByteBuffer records = batch.slice();
+        while (records.hasRemaining()) {
+            if (records.remaining() < Integer.BYTES) throw new EventIntegrityException("Truncated batch");
+            int length = records.getInt();
+            if (length < 0 || length > records.remaining()) throw new EventIntegrityException("Truncated batch");
+            events.add(EventCodec.decode(records.slice().limit(length)));
+            records.position(records.position() + length);
+        }
+        return events;
+    }
+
+    public static ByteBuf encodeDurabilityMetadata(Durability durability, ByteBufAllocator allocator){
+        return ByteBufUtil.writeAscii(allocator, durability.name());
+    }
+
+    public static Durability decodeDurability(String metadata){
+        try {
+            return Durability.valueOf(metadata);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown durability "+metadata);
+        }
+    }
+
+    public static ByteBuf encodeEvent(Event event, ByteBufAllocator allocator, RecordChecksum checksum){
+        int size = EventCodec.encodedSize(event, checksum);
+        ByteBuf record = allocator.directBuffer(size, size);
+        EventCodec.encode(event, record.nioBuffer(0, size), checksum);
+        return record.writerIndex(size);
+    }
+
+    public static Event decodeEvent(ByteBuffer record) throws EventIntegrityException {
+        return EventCodec.decode(record.slice());
+    }
+
+    public static ByteBuf encodeAck(long lastId, ByteBufAllocator allocator){
+        return allocator.buffer(Long.BYTES, Long.BYTES).writeLong(lastId);
+    }
+
+    public static long decodeAck(ByteBuffer ack){
+        return ack.getLong(ack.position());
+    }
+
+    public static ByteBuf encodeExportMetadata(ByteBufAllocator allocator){
+        return ByteBufUtil.writeAscii(allocator, EXPORT_ARROW);
+    }
+
+    public static ByteBuf encodeRange(long fromId, long toId, ByteBufAllocator allocator){
+        return allocator.buffer(2 * Long.BYTES, 2 * Long.BYTES).writeLong(fromId).writeLong(toId);
+    }
+
+    //fromId and toId
+    public static long[] decodeRange(ByteBuffer range){
+        if (range.remaining() < 2 * Long.BYTES) throw new IllegalArgumentException("Invalid range of "+range.remaining()+" bytes");
+        return new long[]{range.getLong(range.position()), range.getLong(range.position() + Long.BYTES)};
+    }
+}
@@ -0,0 +1,161 @@
+package org.lome.trailstore.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.rsocket.Payload;
+import io.rsocket.RSocket;
+import io.rsocket.util.ByteBufPayload;
+import lombok.extern.slf4j.Slf4j;
+import org.lome.trailstore.model.Event;
+import org.lome.trailstore.storage.segment.ChainedEventIterator;
+import org.lome.trailstore.storage.segment.EventAccessor;
+import org.lome.trailstore.storage.segment.SegmentManager;
+import org.lome.trailstore.storage.wal.Durability;
+import org.lome.trailstore.utils.RecordChecksum;
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Serves one connection, see TrailProtocol for the payloads.
+//Received payloads are decoded and released at once, the frames they came in go back to the pool
+@Slf4j
+class TrailRSocket implements RSocket {
+
+    final SegmentManager manager;
+    final ByteBufAllocator allocator;
+    final RecordChecksum checksum;
+    final int maxInflightBatches;
+    final AtomicLong droppedEvents;
+
+    TrailRSocket(SegmentManager manager, ByteBufAllocator allocator, RecordChecksum checksum,
+                 int maxInflightBatches, AtomicLong droppedEvents){
+        this.manager = manager;
+        this.allocator = allocator;
+        this.checksum = checksum;
+        this.maxInflightBatches = maxInflightBatches;
+        this.droppedEvents = droppedEvents;
+    }
+
+    //Batched appends: every batch is acknowledged once as durable as it asks, in order. Up to maxInflightBatches
+    //are handed to the group-commit writer at once. A rejected batch ends the channel with its error,
+    //the events before the rejected one are stored
+    @Override
+    public Flux<Payload> requestChannel(Publisher<Payload> payloads) {
+        return Flux.from(payloads)
+                .map(this::appendBatch)
+                .flatMapSequential(Mono::fromFuture, maxInflightBatches)
+                .map(lastId -> ByteBufPayload.create(TrailProtocol.encodeAck(lastId, allocator)));
+    }
+
+    //Best effort: the batch is queued for the writer, failures are only counted
+    @Override
+    public Mono<Void> fireAndForget(Payload payload) {
+        Durability durability;
+        List<Event> events;
+        try {
+            durability = durability(payload);
+            events = decodeBatch(payload);
+        } catch (RuntimeException e) {
+            log.debug("Invalid fire-and-forget batch", e);
+            droppedEvents.incrementAndGet();
+            return Mono.empty();
+        }
+        if (events.isEmpty()) return Mono.empty();
+        appendBatch(events, durability).whenComplete((lastId, error) -> {
+            if (error != null) {
+                droppedEvents.addAndGet(events.size());
+                log.debug("Fire-and-forget batch rejected", error);
+            }
+        });
+        return Mono.empty();
+    }
+
+    //Range replay, an event per payload, or Arrow export, a message per payload. Each request(n) reads
+    //n more events, or record batches, off the segments, on a worker thread rather than the connection's event loop
+    @Override
+    public Flux<Payload> requestStream(Payload payload) {
+        long[] range;
+        boolean export;
+        try {
+            range = TrailProtocol.decodeRange(payload.getData());
+            export = payload.hasMetadata() && TrailProtocol.EXPORT_ARROW.equals(payload.getMetadataUtf8());
+        } finally {
+            payload.release();
+        }
+        return export ? export(range[0], range[1]) : replay(range[0], range[1]);
+    }
+
+    private Flux<Payload> replay(long fromId, long toId){
+        return Flux.<Payload, ChainedEventIterator>generate(() -> manager.iterator(fromId, toId),
+                (iterator, sink) -> {
+                    if (iterator.hasNext()) {
+                        EventAccessor accessor = iterator.next();
+                        Event event = new Event(accessor.getId(), accessor.getKey(), accessor.getMetadata(), accessor.getData());
+                        sink.next(ByteBufPayload.create(TrailProtocol.encodeEvent(event, allocator, checksum)));
+                    } else {
+                        sink.complete();
+                    }
+                    return iterator;
+                }, TrailRSocket::closeQuietly)
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    private Flux<Payload> export(long fromId, long toId){
+        return Flux.<Payload, ExportPayloads>generate(() -> new ExportPayloads(manager, fromId, toId, allocator),
+                (export, sink) -> {
+                    try {
+                        ByteBuf message = export.next();
+                        if (message == null) sink.complete();
+                        else sink.next(ByteBufPayload.create(message));
+                    } catch (IOException e) {
+                        sink.error(e);
+                    }
+                    return export;
+                }, ExportPayloads::close)
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    //Replays ending early, cancelled or failed leave their iterator half read
+    private static void closeQuietly(ChainedEventIterator iterator){
+        try {
+            iterator.close();
+        } catch (IOException e) {
+            log.error("Error closing replay iterator", e);
+        }
+    }
+
+    private CompletableFuture<Long> appendBatch(Payload payload){
+        Durability durability = durability(payload);
+        return appendBatch(decodeBatch(payload), durability);
+    }
+
+    //Null asks for the durability of the manager
+    private CompletableFuture<Long> appendBatch(List<Event> events, Durability durability){
+        return durability == null ? manager.appendBatch(events) : manager.appendBatch(events, durability);
+    }
+
+    //Named by the metadata of a batch, null if there's none. Releases the payload if it's not a durability
+    private static Durability durability(Payload payload){
+        if (!payload.hasMetadata()) return null;
+        try {
+            return TrailProtocol.decodeDurability(payload.getMetadataUtf8());
+        } catch (RuntimeException e) {
+            payload.release();
+            throw e;
+        }
+    }
+
+    private List<Event> decodeBatch(Payload payload){
+        try {
+            return TrailProtocol.decodeBatch(payload.getData());
+        } finally {
+            payload.release();
+        }
+    }
+}
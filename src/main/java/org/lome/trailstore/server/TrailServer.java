@@ -0,0 +1,86 @@
+package org.lome.trailstore.server;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.rsocket.SocketAcceptor;
+import io.rsocket.core.RSocketServer;
+import io.rsocket.frame.decoder.PayloadDecoder;
+import io.rsocket.transport.netty.server.CloseableChannel;
+import io.rsocket.transport.netty.server.TcpServerTransport;
+import lombok.extern.slf4j.Slf4j;
+import org.lome.trailstore.storage.segment.SegmentManager;
+import org.lome.trailstore.utils.RecordChecksum;
+import reactor.core.publisher.Mono;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RSocket endpoint of a store, over TCP:
+ * request-channel for batched appends with acknowledgments, fire-and-forget for best-effort
+ * appends, request-stream for range replays and Arrow exports. See {@link TrailProtocol} for the payloads,
+ * and {@link TrailClient}.
+ * Payloads are decoded without copying the frames (zero-copy decoder) and written to pooled buffers.
+ * The store stays the caller's: closing the server doesn't close it.
+ */
+@Slf4j
+public class TrailServer implements Closeable {
+
+    public final static int DEFAULT_PORT = 7878;
+    //Batches of a channel handed to the writer before the first one is acknowledged
+    final static int MAX_INFLIGHT_BATCHES = 32;
+    //Payloads above it are sent in fragments: record batches of an export can outgrow the largest frame
+    final static int FRAGMENT_BYTES = 1 << 20;
+
+    final CloseableChannel channel;
+    final AtomicLong droppedEvents = new AtomicLong();
+
+    public TrailServer(SegmentManager manager, String host, int port){
+        this(manager, host, port, RecordChecksum.DEFAULT);
+    }
+
+    //Binds right away, port 0 picks a free one, see address()
+    public TrailServer(SegmentManager manager, String host, int port, RecordChecksum checksum){
+        this.channel = RSocketServer.create(SocketAcceptor.with(new TrailRSocket(manager, ByteBufAllocator.DEFAULT,
+                        checksum, MAX_INFLIGHT_BATCHES, droppedEvents)))
+                .payloadDecoder(PayloadDecoder.ZERO_COPY)
+                .fragment(FRAGMENT_BYTES)
+                .bind(TcpServerTransport.create(host, port))
+                .block();
+        log.info("Listening on {}", address());
+    }
+
+    public InetSocketAddress address(){
+        return channel.address();
+    }
+
+    //Fire-and-forget events that were invalid or rejected
+    public long droppedEvents(){
+        return droppedEvents.get();
+    }
+
+    public Mono<Void> onClose(){
+        return channel.onClose();
+    }
+
+    @Override
+    public void close(){
+        channel.dispose();
+        channel.onClose().block();
+    }
+
+    //Arguments: segments folder, WAL folder, port
+    public static void main(String[] args) throws Exception {
+        Path segments = Path.of(args.length > 0 ? args[0] : "segments");
+        Path wal = Path.of(args.length > 1 ? args[1] : "wals");
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_PORT;
+        SegmentManager manager = new SegmentManager(segments, wal);
+        TrailServer server = new TrailServer(manager, "0.0.0.0", port);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            manager.close();
+        }));
+        server.onClose().block();
+    }
+}
@@ -0,0 +1,501 @@
+package org.lome.trailstore.storage.logwal;
+
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import org.lome.trailstore.exceptions.EventAppendException;
+import org.lome.trailstore.exceptions.EventIntegrityException;
+import org.lome.trailstore.exceptions.EventReadException;
+import org.lome.trailstore.model.Event;
+import org.lome.trailstore.model.EventCodec;
+import org.lome.trailstore.model.EventView;
+import org.lome.trailstore.storage.wal.CommitScheduler;
+import org.lome.trailstore.storage.wal.Durability;
+import org.lome.trailstore.storage.wal.RecordDecoder;
+import org.lome.trailstore.storage.wal.Wal;
+import org.lome.trailstore.utils.RecordChecksum;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Log structured WAL: events are appended as length-prefixed, CRC-checked records
+ * ({@link Event#toBuffer(RecordChecksum)}) into pre-allocated files, each named after the first id it holds.
+ * Commits fsync every file written since the previous commit, and are scheduled by a
+ * {@link CommitScheduler}; truncating just deletes the files whose records are all covered by the truncated range.
+ */
+@Slf4j
+public class LogWal implements Wal {
+
+    final static String WAL_EXTENSION = ".wal";
+    final static long DEFAULT_FILE_SIZE = 64L * 1024 * 1024; //64MB per WAL file
+    final static int READ_BUFFER_SIZE = 256 * 1024;
+    final static int WRITE_BUFFER_SIZE = 64 * 1024;
+    //Records checked at once when a file is opened
+    final static int OPEN_BATCH_SIZE = 4096;
+
+    final Path walPath;
+    final long fileSize;
+    final RecordChecksum checksum;
+    final ConcurrentSkipListMap<Long, LogFile> logFiles;
+    final Set<LogFile> unsynced;
+    final CommitScheduler commitScheduler;
+
+    LogFile activeFile;
+    //Records are encoded here before being written, under the append lock
+    ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    long lastId = Long.MIN_VALUE;
+    volatile boolean closed = false;
+
+    public LogWal(Path walPath){
+        this(walPath, DEFAULT_FILE_SIZE);
+    }
+
+    public LogWal(Path walPath, long fileSize){
+        this(walPath, fileSize, RecordChecksum.DEFAULT);
+    }
+
+    //Records are written with the given checksum, those already there are read whatever theirs
+    public LogWal(Path walPath, long fileSize, RecordChecksum checksum){
+        this(walPath, fileSize, checksum, CommitScheduler.DEFAULT_MAX_DELAY);
+    }
+
+    //Appends are committed at most maxCommitDelay after the oldest one waiting, see Durability.ASYNC
+    @SneakyThrows
+    public LogWal(Path walPath, long fileSize, RecordChecksum checksum, Duration maxCommitDelay){
+        this.walPath = walPath;
+        this.fileSize = fileSize;
+        this.checksum = checksum;
+        this.logFiles = new ConcurrentSkipListMap<>();
+        this.unsynced = new HashSet<>();
+        if (!Files.exists(walPath)){
+            Files.createDirectories(walPath);
+        }
+        recover();
+        this.commitScheduler = new CommitScheduler("trailstore-logwal-commit", this::commit, maxCommitDelay);
+    }
+
+    private void recover() throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(walPath)) {
+            files = list.filter(p -> p.getFileName().toString().endsWith(WAL_EXTENSION))
+                    .sorted(Comparator.comparing(p -> p.getFileName().toString()))
+                    .collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            LogFile logFile = LogFile.open(file);
+            if (logFile.isEmpty()) {
+                logFile.close();
+                Files.delete(file);
+                continue;
+            }
+            logFiles.put(logFile.firstId, logFile);
+            lastId = logFile.lastId;
+        }
+        if (!logFiles.isEmpty()) {
+            this.activeFile = logFiles.lastEntry().getValue();
+        }
+        log.info("Recovered {} WAL files from {}", logFiles.size(), walPath);
+    }
+
+    void checkAppendable(){
+        if (closed){
+            throw new EventAppendException("Store is closed");
+        }
+    }
+
+    void checkReadable(){
+        if (closed){
+            throw new EventReadException("Store is closed");
+        }
+    }
+
+    public void append(Event event){
+        write(event);
+        commitScheduler.schedule(Durability.ASYNC);
+    }
+
+    public CompletableFuture<Void> append(Event event, Durability durability){
+        write(event);
+        return commitScheduler.request(durability);
+    }
+
+    private synchronized void write(Event event){
+        checkAppendable();
+        if (lastId >= event.getId()){
+            throw new EventAppendException("Invalid event id: "+event.getId()+", last event was: "+lastId);
+        }
+        ByteBuffer record = encode(event);
+        try {
+            if (activeFile == null || activeFile.remaining() < record.remaining()) {
+                roll(event.getId(), record.remaining());
+            }
+            activeFile.write(record, event.getId());
+            unsynced.add(activeFile);
+        } catch (IOException e) {
+            throw new EventAppendException("Error writing WAL record", e);
+        }
+        lastId = event.getId();
+    }
+
+    //Length-prefixed record in the write buffer, grown when an event doesn't fit
+    private ByteBuffer encode(Event event){
+        int size = Integer.BYTES + EventCodec.encodedSize(event, checksum);
+        if (writeBuffer.capacity() < size) {
+            writeBuffer = ByteBuffer.allocateDirect(Math.max(size, writeBuffer.capacity() * 2));
+        }
+        writeBuffer.clear();
+        writeBuffer.putInt(size - Integer.BYTES);
+        EventCodec.encode(event, writeBuffer, checksum);
+        return writeBuffer.flip();
+    }
+
+    private void roll(long firstId, int recordSize) throws IOException {
+        Path file = walPath.resolve(String.format("%020d%s", firstId, WAL_EXTENSION));
+        LogFile logFile = LogFile.create(file, Math.max(fileSize, recordSize));
+        logFiles.put(firstId, logFile);
+        this.activeFile = logFile;
+    }
+
+    public synchronized void commit(){
+        if (closed) return;
+        for (LogFile logFile : unsynced) {
+            try {
+                logFile.sync();
+            } catch (IOException e) {
+                throw new EventAppendException("Error syncing WAL file "+logFile.path, e);
+            }
+        }
+        unsynced.clear();
+    }
+
+    public synchronized void truncate(long lastTick){
+        checkAppendable();
+        commit();
+        Iterator<LogFile> it = logFiles.values().iterator();
+        while (it.hasNext()) {
+            LogFile logFile = it.next();
+            //Whole files only: a file is dropped once all of its records are covered
+            if (logFile.lastId > lastTick) break;
+            it.remove();
+            if (logFile == activeFile) activeFile = null;
+            try {
+                logFile.close();
+                Files.deleteIfExists(logFile.path);
+            } catch (IOException e) {
+                log.error("Error deleting WAL file {}", logFile.path, e);
+            }
+        }
+    }
+
+    //Segments are stored oldest first, so everything before firstKey is already gone:
+    //removing a range is the same as truncating up to its end.
+    public void remove(long firstKey, long lastKey) {
+        truncate(lastKey);
+    }
+
+    //Only deletes the files already covered
+    @Override
+    public boolean removesIncrementally(){
+        return true;
+    }
+
+    public Iterator<Event> snapshot(long from, long to, boolean reverse){
+        checkReadable();
+        List<LogFile> files = logFiles.values().stream()
+                .filter(f -> f.firstId <= to && f.lastId >= from)
+                .collect(Collectors.toList());
+        Iterator<Event> forward = files.stream()
+                .flatMap(f -> StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+                        f.reader(), Spliterator.ORDERED | Spliterator.NONNULL), false))
+                .filter(e -> e.getId() >= from && e.getId() <= to)
+                .iterator();
+        if (!reverse) return forward;
+        LinkedList<Event> reversed = new LinkedList<>();
+        forward.forEachRemaining(reversed::addFirst);
+        return reversed.iterator();
+    }
+
+    public Stream<Event> snapshotStream(long from, long to, boolean reverse){
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+                snapshot(from, to, reverse), Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    public Iterator<Event> events(boolean reverse){
+        return snapshot(Long.MIN_VALUE, Long.MAX_VALUE, reverse);
+    }
+
+    public Stream<Event> eventStream(boolean reverse){
+        return snapshotStream(Long.MIN_VALUE, Long.MAX_VALUE, reverse);
+    }
+
+    public Stream<List<EventView>> replay(long after, int batchSize){
+        checkReadable();
+        List<LogFile> files = logFiles.values().stream()
+                .filter(f -> f.lastId > after)
+                .collect(Collectors.toList());
+        //Records up to after are skipped on their id, without being decoded
+        return files.stream()
+                .flatMap(f -> StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+                        RecordDecoder.batches(f.reader(f.written).records(after), batchSize, f.path),
+                        Spliterator.ORDERED | Spliterator.NONNULL), false));
+    }
+
+    @Override
+    public void close() throws IOException {
+        //Outside the append lock, the last scheduled commit needs it
+        commitScheduler.close();
+        synchronized (this) {
+            commit();
+            closed = true;
+            for (LogFile logFile : logFiles.values()) {
+                logFile.close();
+            }
+        }
+    }
+
+    static class LogFile {
+
+        final Path path;
+        final FileChannel channel;
+        final long capacity;
+        volatile long written;
+        volatile long firstId;
+        volatile long lastId;
+
+        LogFile(Path path, FileChannel channel, long capacity){
+            this.path = path;
+            this.channel = channel;
+            this.capacity = capacity;
+            this.written = 0;
+            this.firstId = Long.MAX_VALUE;
+            this.lastId = Long.MIN_VALUE;
+        }
+
+        static LogFile create(Path path, long capacity) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            //Pre-allocate, so that appends never change the file size and fsync skips the metadata
+            channel.write(ByteBuffer.wrap(new byte[1]), capacity - 1);
+            channel.force(true);
+            return new LogFile(path, channel, capacity);
+        }
+
+        static LogFile open(Path path) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            LogFile logFile = new LogFile(path, channel, channel.size());
+            RecordReader reader = logFile.reader(logFile.capacity);
+            //CRCs are checked a batch at a time, in parallel: ids are read from the records as they are
+            long written = 0;
+            List<ByteBuffer> batch = new ArrayList<>(OPEN_BATCH_SIZE);
+            boolean torn = false;
+            while (!torn) {
+                batch.clear();
+                ByteBuffer record;
+                while (batch.size() < OPEN_BATCH_SIZE && (record = reader.nextRecord()) != null) batch.add(record);
+                if (batch.isEmpty()) break;
+                int valid = RecordDecoder.validPrefix(batch);
+                for (int i = 0; i < valid; i++) {
+                    record = batch.get(i);
+                    if (logFile.firstId == Long.MAX_VALUE) logFile.firstId = record.getLong(0);
+                    logFile.lastId = record.getLong(0);
+                    written += Integer.BYTES + record.remaining();
+                }
+                torn = valid < batch.size();
+                if (torn) log.warn("Torn record in {} at {}, ignoring the rest of the file", path, written);
+            }
+            reader.end();
+            //Anything past the last valid record is pre-allocated space, or a torn write
+            logFile.written = written;
+            return logFile;
+        }
+
+        boolean isEmpty(){
+            return written == 0;
+        }
+
+        long remaining(){
+            return capacity - written;
+        }
+
+        void write(ByteBuffer record, long id) throws IOException {
+            long position = written;
+            while (record.hasRemaining()) {
+                position += channel.write(record, position);
+            }
+            if (firstId == Long.MAX_VALUE) firstId = id;
+            lastId = id;
+            written = position;
+        }
+
+        void sync() throws IOException {
+            if (channel.isOpen()) channel.force(false);
+        }
+
+        void close() throws IOException {
+            channel.close();
+        }
+
+        Iterator<Event> reader(){
+            return reader(written);
+        }
+
+        RecordReader reader(long limit){
+            return new RecordReader(this, limit);
+        }
+    }
+
+    static class RecordReader implements Iterator<Event> {
+
+        final LogFile logFile;
+        final long limit;
+        ByteBuffer buffer;
+        long bufferStart;
+        FileChannel channel;
+        long position;
+        long previousId = Long.MIN_VALUE;
+        Event next;
+
+        RecordReader(LogFile logFile, long limit){
+            this.logFile = logFile;
+            this.limit = limit;
+            this.buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            this.buffer.limit(0);
+            this.bufferStart = 0;
+            this.position = 0;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) next = readNext();
+            return next != null;
+        }
+
+        @Override
+        public Event next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            Event event = next;
+            next = null;
+            return event;
+        }
+
+        private Event readNext() {
+            try {
+                ByteBuffer record = nextRecord(false);
+                if (record == null) return null;
+                return EventCodec.decode(record);
+            } catch (EventIntegrityException e) {
+                //Bad CRC or garbled lengths
+                log.warn("Torn record in {} at {}, ignoring the rest of the file", logFile.path, position);
+                return end();
+            }
+        }
+
+        //The next record as it is in the file, its CRC not checked yet: null past the last one.
+        //Its id is read to stop at records out of order, which are leftovers of a previous use of the space
+        ByteBuffer nextRecord() {
+            return nextRecord(true);
+        }
+
+        //Unless copied, the record is a slice of the read buffer: only valid until the next one is read
+        private ByteBuffer nextRecord(boolean copy) {
+            try {
+                if (channel == null) {
+                    try {
+                        channel = FileChannel.open(logFile.path, StandardOpenOption.READ);
+                    } catch (NoSuchFileException e) {
+                        //Removed meanwhile: its events are stored in a segment
+                        return null;
+                    }
+                }
+                if (!ensure(Integer.BYTES)) return end();
+                int offset = (int) (position - bufferStart);
+                int length = buffer.getInt(offset);
+                if (length < Long.BYTES || position + Integer.BYTES + length > limit) return end();
+                if (!ensure(Integer.BYTES + length)) return end();
+                offset = (int) (position - bufferStart) + Integer.BYTES;
+                long id = buffer.getLong(offset);
+                if (id <= previousId) return end();
+                ByteBuffer record;
+                if (copy) {
+                    byte[] bytes = new byte[length];
+                    buffer.get(offset, bytes);
+                    record = ByteBuffer.wrap(bytes);
+                } else {
+                    record = buffer.slice(offset, length);
+                }
+                position += Integer.BYTES + length;
+                previousId = id;
+                return record;
+            } catch (IOException e) {
+                end();
+                throw new EventReadException("Error reading WAL file "+logFile.path, e);
+            }
+        }
+
+        //The records with id > after
+        Iterator<ByteBuffer> records(long after){
+            return new Iterator<ByteBuffer>() {
+
+                ByteBuffer next;
+
+                @Override
+                public boolean hasNext() {
+                    while (next == null) {
+                        next = nextRecord();
+                        if (next == null) return false;
+                        if (next.getLong(0) <= after) next = null;
+                    }
+                    return true;
+                }
+
+                @Override
+                public ByteBuffer next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    ByteBuffer record = next;
+                    next = null;
+                    return record;
+                }
+            };
+        }
+
+        //Makes sure that the buffer holds [position, position+bytes) of the file
+        private boolean ensure(int bytes) throws IOException {
+            if (position + bytes > limit) return false;
+            if (position >= bufferStart && position + bytes <= bufferStart + buffer.limit()) return true;
+            int size = Math.max(READ_BUFFER_SIZE, bytes);
+            if (buffer.capacity() < size) buffer = ByteBuffer.allocate(size);
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), limit - position));
+            long at = position;
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, at);
+                if (read < 0) break;
+                at += read;
+            }
+            buffer.flip();
+            bufferStart = position;
+            return buffer.limit() >= bytes;
+        }
+
+        <T> T end() {
+            try {
+                if (channel != null) channel.close();
+            } catch (IOException e) {
+                //Ignore
+            }
+            return null;
+        }
+    }
+}
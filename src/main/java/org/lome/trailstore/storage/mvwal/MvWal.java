@@ -8,39 +8,57 @@ import org.h2.mvstore.MVStore;
 import org.lome.trailstore.exceptions.EventAppendException;
 import org.lome.trailstore.exceptions.EventReadException;
 import org.lome.trailstore.model.Event;
+import org.lome.trailstore.model.EventView;
+import org.lome.trailstore.storage.wal.CommitScheduler;
+import org.lome.trailstore.storage.wal.Durability;
+import org.lome.trailstore.storage.wal.RecordDecoder;
+import org.lome.trailstore.storage.wal.Wal;
+import org.lome.trailstore.utils.RecordChecksum;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 @Slf4j
-public class MvWal implements AutoCloseable, Closeable {
+public class MvWal implements Wal {
 
     final static String WAL_FILENAME = "trail_log.wal";
-    final static ScheduledExecutorService commitExecutor = Executors.newSingleThreadScheduledExecutor();
 
     final Path walPath;
+    final RecordChecksum checksum;
     final MVStore mvStore;
     final MVMap<Long,byte[]> eventMap;
-
-    transient ScheduledFuture<?> commitFuture;
+    final CommitScheduler commitScheduler;
 
     @SneakyThrows
     public MvWal(Path walPath){
         this(walPath,false);
     }
 
-    @SneakyThrows
     public MvWal(Path walPath, boolean readOnly){
+        this(walPath, readOnly, RecordChecksum.DEFAULT);
+    }
+
+    //Records are written with the given checksum, those already there are read whatever theirs
+    public MvWal(Path walPath, boolean readOnly, RecordChecksum checksum){
+        this(walPath, readOnly, checksum, CommitScheduler.DEFAULT_MAX_DELAY);
+    }
+
+    //Appends are committed at most maxCommitDelay after the oldest one waiting, see Durability.ASYNC
+    @SneakyThrows
+    public MvWal(Path walPath, boolean readOnly, RecordChecksum checksum, Duration maxCommitDelay){
         this.walPath = walPath;
+        this.checksum = checksum;
         if (!Files.exists(walPath)){
             Files.createDirectories(walPath);
         }
@@ -51,12 +69,13 @@ public class MvWal implements AutoCloseable, Closeable {
         if (readOnly) builder = builder.readOnly();
         this.mvStore = builder.open();
         this.eventMap = this.mvStore.openMap(WAL_FILENAME);
+        this.commitScheduler = new CommitScheduler("trailstore-mvwal-commit", this::commit, maxCommitDelay);
     }
 
     @Override
     public void close() throws IOException {
+        commitScheduler.close();
         mvStore.close();
-        commitExecutor.shutdown();
     }
 
     void checkAppendable(){
@@ -75,31 +94,32 @@ public class MvWal implements AutoCloseable, Closeable {
     }
 
     public void append(Event event){
+        write(event);
+        commitScheduler.schedule(Durability.ASYNC);
+    }
+
+    public CompletableFuture<Void> append(Event event, Durability durability){
+        write(event);
+        return commitScheduler.request(durability);
+    }
+
+    private void write(Event event){
         checkAppendable();
         Long lastKey = this.eventMap.lastKey();
         if (lastKey != null && lastKey >= event.getId()){
             throw new EventAppendException("Invalid event id: "+event.getId()+", last event was: "+lastKey);
         }
-        byte[] existing = this.eventMap.putIfAbsent(event.getId(),event.toByteArray());
+        byte[] existing = this.eventMap.putIfAbsent(event.getId(),event.toByteArray(checksum));
         if (existing != null){
             throw new EventAppendException("An event with the same id already exists");
         }
-        futureCommit();
-    }
-
-    private synchronized void futureCommit() {
-        if (this.commitFuture != null){
-            this.commitFuture.cancel(false);
-        }
-        this.commitFuture = commitExecutor.schedule(() -> {
-                    log.info("Performing scheduled commit");
-                    this.eventMap.store.tryCommit();
-                }
-                ,100, TimeUnit.MILLISECONDS);
     }
 
+    //Writes the pending changes, and syncs them to disk
     public void commit(){
+        if (this.mvStore.isClosed() || this.mvStore.isReadOnly()) return;
         this.eventMap.store.commit();
+        this.mvStore.sync();
     }
 
     public void truncate(long lastTick){
@@ -158,6 +178,31 @@ public class MvWal implements AutoCloseable, Closeable {
         return snapshotStream(firstKey,lastKey,reverse);
     }
 
+    public Stream<List<EventView>> replay(long after, int batchSize){
+        checkReadable();
+        if (after == Long.MAX_VALUE) return Stream.empty();
+        final Cursor<Long,byte[]> it = this.eventMap.cursor(after + 1, Long.MAX_VALUE, false);
+        Iterator<ByteBuffer> records = new Iterator<ByteBuffer>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public ByteBuffer next() {
+                it.next();
+                return ByteBuffer.wrap(it.getValue());
+            }
+        };
+        Iterator<List<EventView>> batches = RecordDecoder.batches(records, batchSize, walPath);
+        return StreamSupport.stream(new Iterable<List<EventView>>(){
+            @Override
+            public Iterator<List<EventView>> iterator() {
+                return batches;
+            }
+        }.spliterator(),false);
+    }
+
     public void remove(long firstKey, long lastKey) {
         checkAppendable();
         commit();
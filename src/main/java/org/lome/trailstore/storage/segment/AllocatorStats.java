@@ -0,0 +1,24 @@
+package org.lome.trailstore.storage.segment;
+
+import lombok.Getter;
+import lombok.ToString;
+import org.apache.arrow.memory.BufferAllocator;
+
+//Off-heap memory of an allocator at the time it was taken
+@Getter
+@ToString
+public class AllocatorStats {
+
+    final String name;
+    final long allocatedBytes;
+    final long peakBytes;
+    //Long.MAX_VALUE when unbounded
+    final long limitBytes;
+
+    AllocatorStats(BufferAllocator allocator){
+        this.name = allocator.getName();
+        this.allocatedBytes = allocator.getAllocatedMemory();
+        this.peakBytes = allocator.getPeakMemoryAllocation();
+        this.limitBytes = allocator.getLimit();
+    }
+}
@@ -0,0 +1,135 @@
+package org.lome.trailstore.storage.segment;
+
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.VectorUnloader;
+import org.apache.arrow.vector.dictionary.DictionaryProvider;
+import org.apache.arrow.vector.ipc.ArrowStreamWriter;
+import org.apache.arrow.vector.ipc.message.ArrowRecordBatch;
+import org.apache.arrow.vector.util.TransferPair;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the events with fromId <= id <= toId as an Arrow IPC stream, see {@link SegmentManager#exportArrow}.
+ * Record batches of the segments are sliced to the range and written as they are: rows are never decoded,
+ * and slices share the buffers of the batch (only offsets and validity bits not starting on a byte are copied).
+ * Like iterators, an export follows its segments when they are swapped for their stored file.
+ * The channel is left open.
+ */
+public class ArrowExport implements Closeable {
+
+    final SegmentManager manager;
+    final long fromId;
+    final long toId;
+    final ExportWriter writer;
+    EventIteratorFactory factory;
+    //Next row to write in the segment of the factory, -1 before seeking into it
+    int row = -1;
+    long rows;
+    boolean started;
+    boolean ended;
+
+    ArrowExport(SegmentManager manager, long fromId, long toId, WritableByteChannel out){
+        this.manager = manager;
+        this.fromId = fromId;
+        this.toId = toId;
+        this.factory = manager.readerSegmentFrom(fromId);
+        this.writer = new ExportWriter(out);
+    }
+
+    /**
+     * Writes the next message of the stream: the schema, then a record batch per call, then the end of stream.
+     * False once everything has been written.
+     */
+    public boolean writeNext() throws IOException {
+        if (ended) return false;
+        if (!started) {
+            writer.start();
+            started = true;
+            return true;
+        }
+        while (factory != null && factory.first() <= toId) {
+            ArrowSegment segment = factory.getSegment();
+            if (row < 0) row = segment.seek(fromId);
+            int end = toId == Long.MAX_VALUE ? segment.rows() : segment.seek(toId + 1);
+            if (row < end) {
+                try (SegmentBatch batch = segment.batch(segment.batchOf(row))) {
+                    int length = Math.min(end, batch.startRow + batch.rows()) - row;
+                    write(batch, row - batch.startRow, length);
+                    row += length;
+                    rows += length;
+                }
+                return true;
+            }
+            factory = manager.readerSegmentAfter(factory);
+            row = -1;
+        }
+        writer.end();
+        ended = true;
+        return true;
+    }
+
+    //Writes the whole stream, returns the rows written
+    public long writeAll() throws IOException {
+        while (writeNext());
+        return rows;
+    }
+
+    //Rows written so far
+    public long rows(){
+        return rows;
+    }
+
+    //Bytes written so far
+    public long bytes(){
+        return writer.bytesWritten();
+    }
+
+    private void write(SegmentBatch batch, int from, int length) throws IOException {
+        try (VectorSchemaRoot slice = slice(batch, from, length);
+             ArrowRecordBatch recordBatch = new VectorUnloader(slice).getRecordBatch()) {
+            writer.write(recordBatch);
+        }
+    }
+
+    //Unlike VectorSchemaRoot.slice(), never the root itself: the root of a memory chunk
+    //is ahead of its published rows while the writer appends
+    private static VectorSchemaRoot slice(SegmentBatch batch, int from, int length){
+        List<FieldVector> vectors = new ArrayList<>();
+        for (FieldVector vector : batch.root.getFieldVectors()) {
+            TransferPair transfer = vector.getTransferPair(vector.getAllocator());
+            transfer.splitAndTransfer(from, length);
+            vectors.add((FieldVector) transfer.getTo());
+        }
+        return new VectorSchemaRoot(batch.root.getSchema(), vectors, length);
+    }
+
+    @Override
+    public void close(){
+        writer.root.close();
+    }
+
+    //Writes record batches unloaded elsewhere, its own root only carries the schema
+    static class ExportWriter extends ArrowStreamWriter {
+
+        final VectorSchemaRoot root;
+
+        ExportWriter(WritableByteChannel out){
+            this(VectorSchemaRoot.create(ArrowMemorySegment.arrowSchema(), ArrowSegment.ROOT_ALLOCATOR), out);
+        }
+
+        private ExportWriter(VectorSchemaRoot root, WritableByteChannel out){
+            super(root, new DictionaryProvider.MapDictionaryProvider(), out);
+            this.root = root;
+        }
+
+        void write(ArrowRecordBatch batch) throws IOException {
+            writeRecordBatch(batch);
+        }
+    }
+}
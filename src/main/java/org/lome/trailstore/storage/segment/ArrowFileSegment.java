@@ -1,72 +1,183 @@
 package org.lome.trailstore.storage.segment;
 
-import org.apache.arrow.vector.BigIntVector;
-import org.apache.arrow.vector.VarBinaryVector;
+import lombok.Getter;
+import org.apache.arrow.compression.CommonsCompressionFactory;
+import org.apache.arrow.vector.FieldVector;
 import org.apache.arrow.vector.VectorSchemaRoot;
-import org.apache.arrow.vector.complex.reader.FieldReader;
 import org.apache.arrow.vector.ipc.ArrowFileReader;
-import org.apache.arrow.vector.types.Types;
-import org.apache.arrow.vector.types.pojo.ArrowType;
-import org.apache.arrow.vector.types.pojo.Field;
-import org.apache.arrow.vector.types.pojo.FieldType;
+import org.apache.arrow.vector.ipc.message.ArrowBlock;
 import org.apache.arrow.vector.types.pojo.Schema;
+import org.apache.arrow.vector.util.TransferPair;
+import org.roaringbitmap.RoaringBitmap;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.List;
 
+//A stored segment. Opening reads the footer only, record batches are loaded on demand
+//and kept in a BatchCache, which may drop them again whenever it runs out of room.
 public class ArrowFileSegment implements ArrowSegment {
 
-    final VectorSchemaRoot vectorSchema;
-    final FileInputStream fileInputStream;
+    final File file;
+    final FileChannel fileChannel;
     final ArrowFileReader reader;
+    final Schema schema;
+    final List<ArrowBlock> blocks;
+    @Getter
+    final SegmentReadMode readMode;
+    final SegmentFooter footer;
+    final BatchCache cache;
+    final int rows;
+    //First row of each batch
+    final int[] batchStarts;
+    //Null for segments written before the index was introduced
+    final SparseIdIndex sparseIndex;
+    //Decoded on the first key lookup
+    volatile KeyIndex keyIndex;
 
     public ArrowFileSegment(File in) throws IOException {
-        fileInputStream = new FileInputStream(in);
-        reader = new ArrowFileReader(fileInputStream.getChannel(), ROOT_ALLOCATOR);
-        reader.initialize();
-        reader.loadNextBatch();
-        this.vectorSchema = reader.getVectorSchemaRoot();
+        this(in, SegmentReadMode.COPY);
+    }
+
+    public ArrowFileSegment(File in, SegmentReadMode readMode) throws IOException {
+        this(in, readMode, BatchCache.DEFAULT);
+    }
+
+    public ArrowFileSegment(File in, SegmentReadMode readMode, BatchCache cache) throws IOException {
+        this.file = in;
+        this.cache = cache;
+        this.fileChannel = FileChannel.open(in.toPath(), StandardOpenOption.READ);
+        this.reader = new ArrowFileReader(fileChannel, cache.allocator, CommonsCompressionFactory.INSTANCE);
+        try {
+            //Footer and schema only
+            reader.initialize();
+            this.footer = new SegmentFooter(reader.getMetaData());
+            this.sparseIndex = footer.sparseIndex();
+            //Compressed buffers are inflated into memory anyway, there's nothing to map
+            this.readMode = footer.compression() == SegmentCompression.NONE ? readMode : SegmentReadMode.COPY;
+            this.schema = reader.getVectorSchemaRoot().getSchema();
+            this.blocks = new ArrayList<>(reader.getRecordBlocks());
+            Integer rows = footer.rows();
+            int[] batchStarts = footer.batchStarts();
+            if (rows != null && batchStarts != null) {
+                if (batchStarts.length != blocks.size()) throw new IOException("Batch boundaries don't match the batches of "+in);
+                this.batchStarts = batchStarts;
+                this.rows = rows;
+            } else {
+                //Written as a single batch, older footers may not even have the row count
+                if (blocks.size() > 1) throw new IOException("Batch boundaries missing from the footer of "+in);
+                this.batchStarts = new int[]{0};
+                if (rows != null || blocks.isEmpty()) {
+                    this.rows = rows == null ? 0 : rows;
+                } else {
+                    try (SegmentBatch batch = batch(0)) {
+                        this.rows = batch.rows();
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            reader.close();
+            throw e;
+        }
     }
 
     public int rows(){
-        return vectorSchema.getRowCount();
+        return rows;
     }
 
     public long first(){
         if (rows() < 1) return -1;
-        return idVector().get(1);
+        Long first = footer.firstId();
+        return first != null ? first : id(0);
     }
 
     public long last(){
         if (rows() < 1) return -1;
-        return idVector().get(rows()-1);
+        Long last = footer.lastId();
+        return last != null ? last : id(rows()-1);
     }
 
-    public EventIterator iterator(){
-        return new EventIterator(this);
+    @Override
+    public int batchCount(){
+        return blocks.size();
+    }
+
+    @Override
+    public int batchOf(int row){
+        //Last batch starting at or before the row
+        int index = Arrays.binarySearch(batchStarts, row);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    @Override
+    public SegmentBatch batch(int index){
+        return cache.get(this, index);
+    }
+
+    //Reads a record batch from the file, called by the cache on a miss
+    SegmentBatch loadBatch(int index) throws IOException {
+        ArrowBlock block = blocks.get(index);
+        VectorSchemaRoot root = readMode == SegmentReadMode.MMAP ?
+                MappedBatchLoader.load(fileChannel, block, schema, cache.allocator) :
+                copyBatch(block);
+        return new SegmentBatch(root, batchStarts[index], true);
+    }
+
+    private VectorSchemaRoot copyBatch(ArrowBlock block) throws IOException {
+        //The reader loads every batch into the same root: move the vectors out before the next one
+        synchronized (reader) {
+            if (!reader.loadRecordBatch(block)) throw new IOException("Missing record batch in "+file);
+            VectorSchemaRoot loaded = reader.getVectorSchemaRoot();
+            List<FieldVector> vectors = new ArrayList<>();
+            for (FieldVector vector : loaded.getFieldVectors()) {
+                TransferPair transfer = vector.getTransferPair(cache.allocator);
+                transfer.transfer();
+                vectors.add((FieldVector) transfer.getTo());
+            }
+            return new VectorSchemaRoot(schema.getFields(), vectors, loaded.getRowCount());
+        }
+    }
+
+    @Override
+    public int seek(long id){
+        if (sparseIndex == null) return ArrowSegment.super.seek(id);
+        try (RowReader reader = new RowReader(this)) {
+            return sparseIndex.lowerBound(reader::id, rows(), id);
+        }
     }
 
-    public BigIntVector idVector(){
-        return (BigIntVector)vectorSchema.getVector("id");
+    @Override
+    public RoaringBitmap rowsByKey(byte[] key){
+        KeyIndex index = keyIndex();
+        if (index == null) return ArrowSegment.super.rowsByKey(key);
+        return KeyIndex.matching(this, index.candidates(key), key);
     }
 
-    public VarBinaryVector keyVector(){
-        return (VarBinaryVector)vectorSchema.getVector("key");
+    private KeyIndex keyIndex(){
+        if (keyIndex == null && footer.metadata.containsKey(SegmentFooter.KEY_INDEX)) {
+            synchronized (this) {
+                if (keyIndex == null) keyIndex = footer.keyIndex();
+            }
+        }
+        return keyIndex;
     }
 
-    public VarBinaryVector metadataVector(){
-        return (VarBinaryVector)vectorSchema.getVector("metadata");
+    public EventIterator iterator(){
+        return new EventIterator(this);
     }
 
-    public VarBinaryVector dataVector(){
-        return (VarBinaryVector)vectorSchema.getVector("data");
+    @Override
+    public String toString() {
+        return "ArrowFileSegment{" + file + "}";
     }
 
+    //Batches still held by readers are released when they are done with them
     @Override
     public void close() throws IOException {
-        this.vectorSchema.clear();
-        this.vectorSchema.close();
-        this.fileInputStream.close();
+        cache.invalidate(this);
+        this.reader.close();
     }
 }
@@ -1,9 +1,9 @@
 package org.lome.trailstore.storage.segment;
 
 import lombok.extern.slf4j.Slf4j;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.OutOfMemoryException;
 import org.apache.arrow.memory.RootAllocator;
-import org.apache.arrow.vector.BigIntVector;
-import org.apache.arrow.vector.VarBinaryVector;
 import org.apache.arrow.vector.VectorSchemaRoot;
 import org.apache.arrow.vector.complex.reader.FieldReader;
 import org.apache.arrow.vector.dictionary.DictionaryProvider;
@@ -15,7 +15,9 @@ import org.apache.arrow.vector.types.pojo.Field;
 import org.apache.arrow.vector.types.pojo.FieldType;
 import org.apache.arrow.vector.types.pojo.Schema;
 import org.lome.trailstore.model.Event;
+import org.lome.trailstore.model.EventView;
 import org.lome.trailstore.utils.Sequencer;
+import org.roaringbitmap.RoaringBitmap;
 
 import java.io.Closeable;
 import java.io.File;
@@ -23,96 +25,222 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Iterator;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.List;
+import java.util.Map;
 
 @Slf4j
 public class ArrowMemorySegment implements ArrowSegment {
 
-    final VectorSchemaRoot vectorSchema;
+    //Chunks hold the expected rows, up to MAX_CHUNK_ROWS each. Past the expected rows they double
+    final static int MIN_CHUNK_ROWS = 4096;
+    final static int MAX_CHUNK_ROWS = 65536;
+    //Bytes reserved per value when nothing better is known
+    final static int DEFAULT_KEY_BYTES = 32;
+    final static int DEFAULT_METADATA_BYTES = 32;
+    final static int DEFAULT_DATA_BYTES = 256;
+
     final long starting = Sequencer.SHARED.tick();
-    final Lock accessLock = new ReentrantLock();
+    final KeyIndex keyIndex = new KeyIndex();
+    final SegmentSizing sizing;
+    final BufferAllocator allocator;
+    //Copied on write: readers work on the snapshot they read
+    volatile MemoryChunk[] chunks;
+    //Rows fully written, published after the chunk holding them
+    volatile int rows;
+    //Off-heap memory held by the chunks
+    volatile long allocatedBytes;
+    //Wall clock of the first and the latest append, 0 while empty
+    volatile long firstAppendMillis;
+    volatile long lastAppendMillis;
+    //Writer side: value bytes appended so far
+    long keyBytes;
+    long metadataBytes;
+    long dataBytes;
 
-    public ArrowMemorySegment(VectorSchemaRoot vectorSchema){
-        this.vectorSchema = vectorSchema;
+    public ArrowMemorySegment(){
+        this(SegmentSizing.DEFAULT);
     }
 
-    public ArrowMemorySegment(){
-        this(VectorSchemaRoot.create(arrowSchema(), ROOT_ALLOCATOR));
+    public ArrowMemorySegment(SegmentSizing sizing){
+        this(sizing, ROOT_ALLOCATOR);
+    }
+
+    //Pre-sizes the chunks for the expected rows and values. Nothing is allocated before the first append
+    public ArrowMemorySegment(SegmentSizing sizing, BufferAllocator allocator){
+        this.sizing = sizing;
+        this.allocator = allocator;
+        this.chunks = new MemoryChunk[0];
     }
 
     public int rows(){
-        return vectorSchema.getRowCount();
+        return rows;
     }
 
     public long first(){
-        accessLock.lock();
-        long first = starting;
-        try {
-            if (rows() > 0) {
-                first = idVector().get(0);
-            }
-        }catch(Exception e){
-            e.printStackTrace();
-        }finally {
-            accessLock.unlock();
-        }
-        return first;
+        return rows > 0 ? chunks[0].idVector.get(0) : starting;
     }
 
     public long last(){
-        accessLock.lock();
-        long last = starting;
-        try {
-            if (rows() > 0) {
-                last = idVector().get(rows()-1);
-            }
-        }catch(Exception e){
-            e.printStackTrace();
-        }finally {
-            accessLock.unlock();
-        }
-        return last;
+        int rows = this.rows;
+        return rows > 0 ? id(rows - 1) : starting;
     }
 
+    /**
+     * Appends an event. Appends must come from a single thread at a time (SegmentManager
+     * serializes them), readers never block it: vectors are written in place in pre-allocated
+     * chunks, and the row only becomes visible to readers once fully written.
+     */
     public void append(Event event){
-        accessLock.lock();
-        try {
-            int index = vectorSchema.getRowCount();
-
-            // Do Not call allocate new! this seems to cause vector inconsistency
-            //vectorSchema.allocateNew();
-
-            idVector().setSafe(index, event.getId());
-            keyVector().setSafe(index, event.getKey());
-            metadataVector().setSafe(index, event.getMetadata());
-            dataVector().setSafe(index, event.getData());
-            vectorSchema.setRowCount(index + 1);
-        }catch(Exception e){
-            e.printStackTrace();
-        }finally {
-            accessLock.unlock();
+        byte[] key = event.getKey();
+        byte[] metadata = event.getMetadata();
+        byte[] data = event.getData();
+        int metadataLength = metadata == null ? 0 : metadata.length;
+        MemoryChunk chunk = reserve(key.length, metadataLength, data.length);
+        int row = rows;
+        chunk.append(event.getId(), key, metadata, data);
+        keyIndex.add(key, row);
+        appended(row, key.length, metadataLength, data.length);
+    }
+
+    //Same, for an event read in place from its record: values go straight from the record to the vectors
+    public void append(EventView event){
+        MemoryChunk chunk = reserve(event.keyLength(), event.metadataLength(), event.dataLength());
+        int row = rows;
+        chunk.append(event.getId(), event.getKeyBuffer(), event.getMetadataBuffer(), event.getDataBuffer());
+        //Hashed in place, the chunk moved its own duplicate
+        keyIndex.add(event.getKeyBuffer(), row);
+        appended(row, event.keyLength(), event.metadataLength(), event.dataLength());
+    }
+
+    private void appended(int row, int keyLength, int metadataLength, int dataLength){
+        keyBytes += keyLength;
+        metadataBytes += metadataLength;
+        dataBytes += dataLength;
+        long now = System.currentTimeMillis();
+        if (row == 0) firstAppendMillis = now;
+        lastAppendMillis = now;
+        rows = row + 1;
+    }
+
+    /**
+     * Makes room for the event without appending it, allocating the next chunk if needed.
+     * Throws an OutOfMemoryException, leaving the segment as it was, when the allocator is out of memory:
+     * the following append of the same event won't allocate.
+     */
+    public void reserve(Event event){
+        reserve(event.getKey().length, event.getMetadata() == null ? 0 : event.getMetadata().length, event.getData().length);
+    }
+
+    public void reserve(EventView event){
+        reserve(event.keyLength(), event.metadataLength(), event.dataLength());
+    }
+
+    private MemoryChunk reserve(int keyLength, int metadataLength, int dataLength){
+        MemoryChunk[] chunks = this.chunks;
+        if (chunks.length == 0) return addChunk(chunkRows(MIN_CHUNK_ROWS), keyLength, metadataLength, dataLength);
+        MemoryChunk chunk = chunks[chunks.length - 1];
+        if (chunk.fits(keyLength, metadataLength, dataLength)) return chunk;
+        return addChunk(chunkRows(chunk.capacity * 2), keyLength, metadataLength, dataLength);
+    }
+
+    //The rows still expected, past them the given fallback
+    private int chunkRows(int fallback){
+        int remaining = sizing.expectedRows - rows;
+        int chunkRows = remaining > 0 ? Math.max(remaining, MIN_CHUNK_ROWS) : fallback;
+        return Math.min(MAX_CHUNK_ROWS, chunkRows);
+    }
+
+    //Sized after the values appended so far, or the expected ones, and large enough for the pending one.
+    //Halved while the allocator can't take it, down to the pending row alone
+    private MemoryChunk addChunk(int capacity, int keyLength, int metadataLength, int dataLength){
+        MemoryChunk[] chunks = this.chunks;
+        MemoryChunk chunk;
+        while (true) {
+            try {
+                chunk = new MemoryChunk(allocator, rows, capacity,
+                        chunkBytes(capacity, keyBytes, sizing.keyBytes, keyLength),
+                        chunkBytes(capacity, metadataBytes, sizing.metadataBytes, metadataLength),
+                        chunkBytes(capacity, dataBytes, sizing.dataBytes, dataLength));
+                break;
+            } catch (OutOfMemoryException e) {
+                if (capacity == 1) throw e;
+                capacity = capacity / 2;
+            }
         }
+        MemoryChunk[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+        grown[chunks.length] = chunk;
+        this.chunks = grown;
+        this.allocatedBytes += chunk.allocatedBytes();
+        return chunk;
+    }
+
+    //A quarter above the average value size
+    private long chunkBytes(int capacity, long appendedBytes, int expectedAverage, int pendingLength){
+        long average = rows > 0 ? appendedBytes / rows + 1 : expectedAverage;
+        return Math.max(capacity * (average + average / 4), pendingLength);
+    }
+
+    //Off-heap memory held by the segment, whether rows have been written in it yet or not
+    public long allocatedBytes(){
+        return allocatedBytes;
+    }
+
+    public long firstAppendMillis(){
+        return firstAppendMillis;
+    }
+
+    public long lastAppendMillis(){
+        return lastAppendMillis;
+    }
+
+    //Bytes appended in keys, metadata and data: writer side
+    long keyBytes(){
+        return keyBytes;
+    }
+
+    long metadataBytes(){
+        return metadataBytes;
+    }
+
+    long dataBytes(){
+        return dataBytes;
     }
 
     public EventIterator iterator(){
         return new EventIterator(this);
     }
 
-    public BigIntVector idVector(){
-        return (BigIntVector)vectorSchema.getVector("id");
+    @Override
+    public int batchCount(){
+        return chunks.length;
     }
 
-    public VarBinaryVector keyVector(){
-        return (VarBinaryVector)vectorSchema.getVector("key");
+    @Override
+    public int batchOf(int row){
+        MemoryChunk[] chunks = this.chunks;
+        int low = 0;
+        int high = chunks.length - 1;
+        //Last chunk starting at or before the row
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (chunks[middle].startRow <= row) low = middle;
+            else high = middle - 1;
+        }
+        return low;
     }
 
-    public VarBinaryVector metadataVector(){
-        return (VarBinaryVector)vectorSchema.getVector("metadata");
+    @Override
+    public SegmentBatch batch(int index){
+        return chunks[index];
     }
 
-    public VarBinaryVector dataVector(){
-        return (VarBinaryVector)vectorSchema.getVector("data");
+    @Override
+    public RoaringBitmap rowsByKey(byte[] key){
+        int rows = this.rows;
+        RoaringBitmap candidates = keyIndex.candidates(key);
+        //The writer indexes a row before publishing it
+        candidates.remove(rows, 0x100000000L);
+        return KeyIndex.matching(this, candidates, key);
     }
 
     static Schema arrowSchema(){
@@ -129,18 +257,49 @@ public class ArrowMemorySegment implements ArrowSegment {
     }
 
     public void store(File output) throws IOException {
+        store(output, SegmentCompression.NONE);
+    }
+
+    public void store(File output, SegmentCompression compression) throws IOException {
+        store(output, compression, SegmentFileWriter.DEFAULT_BATCH_ROWS);
+    }
+
+    //Writes record batches of up to batchRows rows, readers load them one at a time.
+    //The segment must not be appended to anymore.
+    public void store(File output, SegmentCompression compression, int batchRows) throws IOException {
         DictionaryProvider.MapDictionaryProvider dictProvider = new DictionaryProvider.MapDictionaryProvider();
         FileOutputStream fileOutputStream = new FileOutputStream(output);
-        ArrowFileWriter writer = new ArrowFileWriter(vectorSchema, dictProvider, fileOutputStream.getChannel());
+        List<MemoryChunk> chunks = Arrays.asList(this.chunks);
+        Map<String,String> metadata = SegmentFooter.of(this, chunks, compression, batchRows).metadata;
+        ArrowFileWriter writer = new SegmentFileWriter(chunks, dictProvider, fileOutputStream.getChannel(),
+                metadata, compression, batchRows);
         writer.start();
         writer.writeBatch();
         writer.close();
     }
 
+    //Writes and syncs the segment file, closing the channel
+    void store(SegmentFileChannel out, SegmentCompression compression, int batchRows) throws IOException {
+        List<MemoryChunk> chunks = Arrays.asList(this.chunks);
+        Map<String,String> metadata = SegmentFooter.of(this, chunks, compression, batchRows).metadata;
+        ArrowFileWriter writer = new SegmentFileWriter(chunks, new DictionaryProvider.MapDictionaryProvider(), out,
+                metadata, compression, batchRows);
+        try {
+            writer.start();
+            writer.writeBatch();
+            writer.end();
+            out.force(true);
+        } finally {
+            writer.close();
+        }
+    }
+
 
     @Override
     public void close() throws IOException {
-        this.vectorSchema.clear();
-        this.vectorSchema.close();
+        for (MemoryChunk chunk : chunks) {
+            chunk.root.clear();
+            chunk.root.close();
+        }
     }
 }
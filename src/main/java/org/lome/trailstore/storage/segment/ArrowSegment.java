@@ -1,8 +1,6 @@
 package org.lome.trailstore.storage.segment;
 
 import org.apache.arrow.memory.RootAllocator;
-import org.apache.arrow.vector.BigIntVector;
-import org.apache.arrow.vector.VarBinaryVector;
 import org.apache.arrow.vector.VectorSchemaRoot;
 import org.apache.arrow.vector.complex.reader.FieldReader;
 import org.apache.arrow.vector.dictionary.DictionaryProvider;
@@ -13,6 +11,7 @@ import org.apache.arrow.vector.types.pojo.Field;
 import org.apache.arrow.vector.types.pojo.FieldType;
 import org.apache.arrow.vector.types.pojo.Schema;
 import org.lome.trailstore.model.Event;
+import org.roaringbitmap.RoaringBitmap;
 
 import java.io.Closeable;
 import java.io.File;
@@ -28,10 +27,34 @@ public interface ArrowSegment extends Closeable, Comparable<ArrowSegment> {
     public long first();
     public long last();
     public EventIterator iterator();
-    public BigIntVector idVector();
-    public VarBinaryVector keyVector();
-    public VarBinaryVector metadataVector();
-    public VarBinaryVector dataVector();
+
+    //Rows are split in record batches, read one at a time
+    public int batchCount();
+    //Index of the batch holding the row
+    public int batchOf(int row);
+    //The batch at the given index, loading it if needed: close it when done
+    public SegmentBatch batch(int index);
+
+    //Single row lookup, scans should go through a RowReader instead
+    default long id(int row){
+        try (SegmentBatch batch = batch(batchOf(row))) {
+            return batch.idVector.get(row - batch.startRow);
+        }
+    }
+
+    //First row holding an id >= the given one, rows() if there is none
+    default int seek(long id){
+        try (RowReader reader = new RowReader(this)) {
+            return SparseIdIndex.lowerBound(reader::id, id, 0, rows());
+        }
+    }
+
+    //Rows holding the given key
+    default RoaringBitmap rowsByKey(byte[] key){
+        RoaringBitmap all = new RoaringBitmap();
+        all.add(0L, rows());
+        return KeyIndex.matching(this, all, key);
+    }
 
     @Override
     default int compareTo(ArrowSegment o) {
@@ -0,0 +1,101 @@
+package org.lome.trailstore.storage.segment;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.apache.arrow.memory.BufferAllocator;
+import org.lome.trailstore.exceptions.EventReadException;
+
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Record batches loaded from stored segments, bounded by the memory their vectors hold.
+ * Eviction works per batch: a segment stays open while its cold batches are released,
+ * and is read back one batch at a time when it's needed again.
+ * Evicted batches still held by a reader are released once that reader moves on.
+ */
+public class BatchCache {
+
+    public final static long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    //Shared by segments opened outside of a SegmentManager
+    public final static BatchCache DEFAULT = new BatchCache(DEFAULT_MAX_BYTES);
+
+    final Cache<Key, SegmentBatch> batches;
+    //Charged with the batches copied out of their files, mapped ones cost nothing
+    final BufferAllocator allocator;
+
+    public BatchCache(long maxBytes){
+        this(maxBytes, ArrowSegment.ROOT_ALLOCATOR);
+    }
+
+    public BatchCache(long maxBytes, BufferAllocator allocator){
+        this.allocator = allocator;
+        this.batches = CacheBuilder.newBuilder()
+                //A single LRU over all batches, lookups only happen when a reader changes batch
+                .concurrencyLevel(1)
+                .maximumWeight(maxBytes)
+                .weigher((Key key, SegmentBatch batch) -> (int) Math.min(Integer.MAX_VALUE, batch.bytes()))
+                .removalListener((RemovalListener<Key, SegmentBatch>) removal -> removal.getValue().close())
+                .build();
+    }
+
+    //The batch of a segment, loading it on a miss. The returned batch is retained: close it when done
+    SegmentBatch get(ArrowFileSegment segment, int index){
+        Key key = new Key(segment, index);
+        while (true) {
+            SegmentBatch[] loaded = new SegmentBatch[1];
+            SegmentBatch batch;
+            try {
+                batch = batches.get(key, () -> {
+                    //Retained for the caller before the cache sees it: a batch weighing more than
+                    //the whole cache is evicted right away, and must survive until it's read
+                    loaded[0] = segment.loadBatch(index);
+                    loaded[0].retain();
+                    return loaded[0];
+                });
+            } catch (ExecutionException | UncheckedExecutionException e) {
+                //Out of memory errors of a limited allocator included
+                throw new EventReadException("Error loading batch "+index+" of "+segment, e.getCause());
+            }
+            if (batch == loaded[0] || batch.retain()) return batch;
+            //Evicted and released between the lookup and the retain: load it again
+        }
+    }
+
+    //Drops the batches of a closing segment
+    void invalidate(ArrowFileSegment segment){
+        batches.asMap().keySet().removeIf(key -> key.segment == segment);
+    }
+
+    public long size(){
+        return batches.size();
+    }
+
+    public long bytes(){
+        return batches.asMap().values().stream().mapToLong(SegmentBatch::bytes).sum();
+    }
+
+    static class Key {
+        final ArrowFileSegment segment;
+        final int index;
+
+        Key(ArrowFileSegment segment, int index){
+            this.segment = segment;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return segment == other.segment && index == other.index;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(segment), index);
+        }
+    }
+}
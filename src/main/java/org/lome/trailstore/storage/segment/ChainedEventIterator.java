@@ -0,0 +1,57 @@
+package org.lome.trailstore.storage.segment;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+/**
+ * Iterates the reader segments of a {@link SegmentManager} from a given one, until one starts after toId.
+ * Segment iterators close themselves once exhausted: close the chain to release the batch
+ * of one left half read.
+ */
+public class ChainedEventIterator implements Iterator<EventAccessor>, Closeable {
+
+    final SegmentManager manager;
+    final long toId;
+    final Function<EventIteratorFactory, EventIterator> open;
+    EventIteratorFactory currentFactory;
+    EventIterator current;
+
+    ChainedEventIterator(SegmentManager manager, EventIteratorFactory first, long toId,
+                         Function<EventIteratorFactory, EventIterator> open){
+        this.manager = manager;
+        this.toId = toId;
+        this.open = open;
+        this.currentFactory = first;
+        this.current = first == null ? null : open.apply(first);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (current != null) {
+            if (current.hasNext()) return true;
+            currentFactory = manager.readerSegmentAfter(currentFactory);
+            if (currentFactory == null || currentFactory.first() > toId) {
+                current = null;
+            } else {
+                current = open.apply(currentFactory);
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public EventAccessor next() {
+        if (current == null) throw new NoSuchElementException();
+        return current.next();
+    }
+
+    @Override
+    public void close() throws IOException {
+        EventIterator current = this.current;
+        this.current = null;
+        if (current != null) current.close();
+    }
+}
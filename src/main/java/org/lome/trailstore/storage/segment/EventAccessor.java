@@ -1,8 +1,48 @@
 package org.lome.trailstore.storage.segment;
 
+import java.nio.ByteBuffer;
+
 public interface EventAccessor {
     long getId();
     byte[] getKey();
     byte[] getMetadata();
     byte[] getData();
+
+    //Zero-copy views: readers return a reused buffer positioned on the value,
+    //only valid until the accessor moves to the next event.
+    default ByteBuffer getKeyBuffer(){
+        return wrap(getKey());
+    }
+
+    default ByteBuffer getMetadataBuffer(){
+        return wrap(getMetadata());
+    }
+
+    default ByteBuffer getDataBuffer(){
+        return wrap(getData());
+    }
+
+    //Copy into a caller-owned buffer, return the number of bytes written
+    default int getKey(ByteBuffer target){
+        return copy(getKeyBuffer(), target);
+    }
+
+    default int getMetadata(ByteBuffer target){
+        return copy(getMetadataBuffer(), target);
+    }
+
+    default int getData(ByteBuffer target){
+        return copy(getDataBuffer(), target);
+    }
+
+    private static ByteBuffer wrap(byte[] value){
+        return value == null ? null : ByteBuffer.wrap(value);
+    }
+
+    private static int copy(ByteBuffer value, ByteBuffer target){
+        if (value == null) return 0;
+        int length = value.remaining();
+        target.put(value);
+        return length;
+    }
 }
@@ -0,0 +1,79 @@
+package org.lome.trailstore.storage.segment;
+
+import org.apache.arrow.memory.ArrowBuf;
+import org.apache.arrow.vector.VarBinaryVector;
+
+import java.nio.ByteBuffer;
+
+//Flyweight accessor moved from row to row by EventIterator: values are read from the vectors
+//by index, and the buffer getters hand out reused views, so scanning allocates nothing per row.
+class EventCursor implements EventAccessor {
+
+    SegmentBatch batch;
+    //Relative to the batch
+    int row;
+    final BufferView keyView = new BufferView();
+    final BufferView metadataView = new BufferView();
+    final BufferView dataView = new BufferView();
+
+    void place(SegmentBatch batch, int row){
+        this.batch = batch;
+        this.row = row;
+    }
+
+    @Override
+    public long getId() {
+        return batch.idVector.get(row);
+    }
+
+    @Override
+    public byte[] getKey() {
+        return batch.keyVector.get(row);
+    }
+
+    @Override
+    public byte[] getMetadata() {
+        return batch.metadataVector.get(row);
+    }
+
+    @Override
+    public byte[] getData() {
+        return batch.dataVector.get(row);
+    }
+
+    @Override
+    public ByteBuffer getKeyBuffer() {
+        return keyView.slice(batch.keyVector, row);
+    }
+
+    @Override
+    public ByteBuffer getMetadataBuffer() {
+        return metadataView.slice(batch.metadataVector, row);
+    }
+
+    @Override
+    public ByteBuffer getDataBuffer() {
+        return dataView.slice(batch.dataVector, row);
+    }
+
+    //A ByteBuffer over the whole data buffer of a vector, narrowed to one value at a time
+    static class BufferView {
+
+        ArrowBuf source;
+        ByteBuffer view;
+
+        ByteBuffer slice(VarBinaryVector vector, int row){
+            if (vector.isNull(row)) return null;
+            ArrowBuf data = vector.getDataBuffer();
+            //Changes with the batch
+            if (data != source || view.capacity() != data.capacity()) {
+                source = data;
+                view = data.nioBuffer(0, (int) data.capacity()).asReadOnlyBuffer();
+            }
+            view.clear();
+            view.position((int) vector.getStartOffset(row));
+            view.limit((int) vector.getStartOffset(row + 1));
+            return view;
+        }
+    }
+}
@@ -1,6 +1,28 @@
 package org.lome.trailstore.storage.segment;
 
+//Selects the events to read: true keeps the event.
+//Readers push the filter down into the segment scan, see EventFilters for columnar implementations.
 public interface EventFilter{
     boolean filter(EventAccessor eventAccessor);
 
+    //Evaluated on the batch vectors before the row is materialized, row is relative to the batch.
+    //The default reads the row into an accessor, columnar filters compare the vectors in place.
+    default boolean filter(SegmentBatch batch, int row){
+        return filter(new RowAccessor(batch, row));
+    }
+
+    //Only events with minId <= id <= maxId can match, lets readers seek and skip segments
+    default long minId(){
+        return Long.MIN_VALUE;
+    }
+
+    default long maxId(){
+        return Long.MAX_VALUE;
+    }
+
+    //Only events with this key can match, lets readers go through the key index. Null for any key
+    default byte[] key(){
+        return null;
+    }
+
 }
@@ -0,0 +1,195 @@
+package org.lome.trailstore.storage.segment;
+
+import org.apache.arrow.memory.util.ByteFunctionHelpers;
+import org.apache.arrow.vector.VarBinaryVector;
+
+import java.util.Arrays;
+
+/**
+ * Columnar {@link EventFilter}s: rows are tested against the Arrow vectors in place,
+ * comparing bytes inside the buffers, so rows that don't match are never copied out.
+ * Id ranges and key equality are also exposed as hints, which readers use to seek
+ * and to go through the key index instead of scanning.
+ */
+public final class EventFilters {
+
+    private EventFilters(){
+    }
+
+    public static EventFilter all(){
+        return new EventFilter() {
+            @Override
+            public boolean filter(EventAccessor eventAccessor) {
+                return true;
+            }
+
+            @Override
+            public boolean filter(SegmentBatch batch, int row) {
+                return true;
+            }
+        };
+    }
+
+    public static EventFilter idRange(long fromId, long toId){
+        return new EventFilter() {
+            @Override
+            public boolean filter(EventAccessor eventAccessor) {
+                return eventAccessor.getId() >= fromId && eventAccessor.getId() <= toId;
+            }
+
+            @Override
+            public boolean filter(SegmentBatch batch, int row) {
+                long id = batch.idVector.get(row);
+                return id >= fromId && id <= toId;
+            }
+
+            @Override
+            public long minId() {
+                return fromId;
+            }
+
+            @Override
+            public long maxId() {
+                return toId;
+            }
+        };
+    }
+
+    public static EventFilter keyEquals(byte[] key){
+        return new EventFilter() {
+            @Override
+            public boolean filter(EventAccessor eventAccessor) {
+                return Arrays.equals(key, eventAccessor.getKey());
+            }
+
+            @Override
+            public boolean filter(SegmentBatch batch, int row) {
+                return bytesEqual(batch.keyVector, row, key);
+            }
+
+            @Override
+            public byte[] key() {
+                return key;
+            }
+        };
+    }
+
+    public static EventFilter keyPrefix(byte[] prefix){
+        return new EventFilter() {
+            @Override
+            public boolean filter(EventAccessor eventAccessor) {
+                byte[] key = eventAccessor.getKey();
+                return key.length >= prefix.length &&
+                        Arrays.equals(key, 0, prefix.length, prefix, 0, prefix.length);
+            }
+
+            @Override
+            public boolean filter(SegmentBatch batch, int row) {
+                return bytesStartWith(batch.keyVector, row, prefix);
+            }
+        };
+    }
+
+    public static EventFilter metadataEquals(byte[] metadata){
+        return new EventFilter() {
+            @Override
+            public boolean filter(EventAccessor eventAccessor) {
+                return Arrays.equals(metadata, eventAccessor.getMetadata());
+            }
+
+            @Override
+            public boolean filter(SegmentBatch batch, int row) {
+                return bytesEqual(batch.metadataVector, row, metadata);
+            }
+        };
+    }
+
+    public static EventFilter and(EventFilter... filters){
+        long minId = Arrays.stream(filters).mapToLong(EventFilter::minId).max().orElse(Long.MIN_VALUE);
+        long maxId = Arrays.stream(filters).mapToLong(EventFilter::maxId).min().orElse(Long.MAX_VALUE);
+        byte[] key = Arrays.stream(filters).map(EventFilter::key).filter(k -> k != null).findFirst().orElse(null);
+        return new EventFilter() {
+            @Override
+            public boolean filter(EventAccessor eventAccessor) {
+                for (EventFilter filter : filters) {
+                    if (!filter.filter(eventAccessor)) return false;
+                }
+                return true;
+            }
+
+            @Override
+            public boolean filter(SegmentBatch batch, int row) {
+                for (EventFilter filter : filters) {
+                    if (!filter.filter(batch, row)) return false;
+                }
+                return true;
+            }
+
+            @Override
+            public long minId() {
+                return minId;
+            }
+
+            @Override
+            public long maxId() {
+                return maxId;
+            }
+
+            @Override
+            public byte[] key() {
+                return key;
+            }
+        };
+    }
+
+    public static EventFilter or(EventFilter... filters){
+        return new EventFilter() {
+            @Override
+            public boolean filter(EventAccessor eventAccessor) {
+                for (EventFilter filter : filters) {
+                    if (filter.filter(eventAccessor)) return true;
+                }
+                return false;
+            }
+
+            @Override
+            public boolean filter(SegmentBatch batch, int row) {
+                for (EventFilter filter : filters) {
+                    if (filter.filter(batch, row)) return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public static EventFilter not(EventFilter negated){
+        return new EventFilter() {
+            @Override
+            public boolean filter(EventAccessor eventAccessor) {
+                return !negated.filter(eventAccessor);
+            }
+
+            @Override
+            public boolean filter(SegmentBatch batch, int row) {
+                return !negated.filter(batch, row);
+            }
+        };
+    }
+
+    static boolean bytesEqual(VarBinaryVector vector, int row, byte[] value){
+        if (vector.isNull(row)) return value == null;
+        if (value == null) return false;
+        int start = (int) vector.getStartOffset(row);
+        int end = (int) vector.getStartOffset(row + 1);
+        return ByteFunctionHelpers.compare(vector.getDataBuffer(), start, end, value, 0, value.length) == 0;
+    }
+
+    static boolean bytesStartWith(VarBinaryVector vector, int row, byte[] prefix){
+        if (vector.isNull(row)) return false;
+        int start = (int) vector.getStartOffset(row);
+        int end = (int) vector.getStartOffset(row + 1);
+        if (end - start < prefix.length) return false;
+        return ByteFunctionHelpers.compare(vector.getDataBuffer(), start, start + prefix.length,
+                prefix, 0, prefix.length) == 0;
+    }
+}
@@ -1,26 +1,62 @@
 package org.lome.trailstore.storage.segment;
 
 import lombok.Getter;
-import org.apache.arrow.vector.complex.reader.FieldReader;
+import org.roaringbitmap.IntIterator;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.lang.ref.Cleaner;
 import java.util.Iterator;
 
 public class EventIterator implements Iterator<EventAccessor>,
     Comparable<EventIterator>, Closeable {
 
+    final static Cleaner CLEANER = Cleaner.create();
+
     int index;
-    FieldReader keyReader;
-    FieldReader idReader;
-    FieldReader metadataReader;
-    FieldReader dataReader;
+    final long toId;
+    //Null when iterating a contiguous range of rows
+    final IntIterator rows;
+    //Null when every row is read
+    final EventFilter filter;
+    final EventCursor cursor = new EventCursor();
+    //Holds the batch being read: released on close, or once an abandoned iterator is collected
+    final RowReader reader;
+    final Cleaner.Cleanable cleanable;
     @Getter
-    ArrowSegment segment;
+    volatile ArrowSegment segment;
 
     public EventIterator(ArrowSegment segment){
-        reload(segment);
-        this.index = 0;
+        this(segment, 0, Long.MAX_VALUE);
+    }
+
+    //Starts at the given row and stops before the first id above toId
+    public EventIterator(ArrowSegment segment, int fromRow, long toId){
+        this(segment, fromRow, null, toId, null);
+    }
+
+    //Visits the given rows only, in ascending order
+    public EventIterator(ArrowSegment segment, IntIterator rows){
+        this(segment, 0, rows, Long.MAX_VALUE, null);
+    }
+
+    //Rows rejected by the filter are skipped without being read
+    public EventIterator(ArrowSegment segment, int fromRow, long toId, EventFilter filter){
+        this(segment, fromRow, null, toId, filter);
+    }
+
+    public EventIterator(ArrowSegment segment, IntIterator rows, long toId, EventFilter filter){
+        this(segment, 0, rows, toId, filter);
+    }
+
+    EventIterator(ArrowSegment segment, int fromRow, IntIterator rows, long toId, EventFilter filter){
+        this.segment = segment;
+        this.reader = new RowReader(segment);
+        this.cleanable = CLEANER.register(this, reader::close);
+        this.index = fromRow;
+        this.rows = rows;
+        this.toId = toId;
+        this.filter = filter;
     }
 
     long first(){
@@ -31,29 +67,19 @@ public class EventIterator implements Iterator<EventAccessor>,
         return segment.last();
     }
 
+    //Rows are the same in the new source: the reading thread switches over on its next row,
+    //the batch under the cursor stays readable until then
     void reload(ArrowSegment segment){
         this.segment = segment;
-        this.keyReader = segment.keyVector().getReader();
-        this.idReader = segment.idVector().getReader();
-        this.metadataReader = segment.metadataVector().getReader();
-        this.dataReader = segment.dataVector().getReader();
     }
 
     public void swapSource(ArrowSegment newSource){
         reload(newSource);
     }
 
-    void placeReaders(){
-        keyReader.setPosition(index);
-        idReader.setPosition(index);
-        metadataReader.setPosition(index);
-        dataReader.setPosition(index);
-    }
-
     @Override
     public boolean hasNext() {
-        if (segment.rows() > index){
-            placeReaders();
+        if (advance()){
             index++;
             return true;
         }
@@ -65,34 +91,36 @@ public class EventIterator implements Iterator<EventAccessor>,
         return false;
     }
 
-    @Override
-    public EventAccessor next() {
-        return new EventAccessor() {
-            @Override
-            public long getId() {
-                try{
-                    return idReader.readLong();
-                }catch(NullPointerException e){
-                    System.err.println("NPE! "+segment.getClass().toString()+" ["+index+"]");
-                    throw e;
-                }
-            }
-
-            @Override
-            public byte[] getKey() {
-                return keyReader.readByteArray();
+    //Moves index and the cursor to the next row to be read
+    private boolean advance(){
+        ArrowSegment segment = this.segment;
+        if (reader.segment != segment) reader.reset(segment);
+        while (nextRow()) {
+            SegmentBatch batch = reader.batch(index);
+            int row = index - batch.startRow;
+            if (filter == null || filter.filter(batch, row)) {
+                cursor.place(batch, row);
+                return true;
             }
+            index++;
+        }
+        return false;
+    }
 
-            @Override
-            public byte[] getMetadata() {
-                return metadataReader.readByteArray();
-            }
+    private boolean nextRow(){
+        if (rows != null) {
+            if (!rows.hasNext()) return false;
+            index = rows.next();
+        } else if (reader.segment.rows() <= index) {
+            return false;
+        }
+        return toId == Long.MAX_VALUE || reader.id(index) <= toId;
+    }
 
-            @Override
-            public byte[] getData() {
-                return dataReader.readByteArray();
-            }
-        };
+    //The returned accessor is reused: it moves on with the next call to hasNext()
+    @Override
+    public EventAccessor next() {
+        return cursor;
     }
 
     @Override
@@ -100,8 +128,10 @@ public class EventIterator implements Iterator<EventAccessor>,
         return Long.compare(first(),o.first());
     }
 
+    //Subclasses must call super.close()
     @Override
     public void close() throws IOException {
-        //Override me
+        reader.close();
+        cleanable.clean();
     }
 }
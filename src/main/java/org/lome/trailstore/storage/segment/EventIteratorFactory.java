@@ -1,42 +1,93 @@
 package org.lome.trailstore.storage.segment;
 
-import com.google.common.collect.ConcurrentHashMultiset;
-import io.netty.util.internal.ConcurrentSet;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.roaringbitmap.PeekableIntIterator;
 
 import java.io.IOException;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 @Slf4j
 public class EventIteratorFactory implements Comparable<EventIteratorFactory>{
 
     @Getter
     ArrowSegment segment;
-    final ConcurrentLinkedQueue<EventIterator> iterators;
+    //Weak: iterators abandoned before the end must not be kept alive along with their batch
+    final Set<EventIterator> iterators;
 
     public EventIteratorFactory(ArrowSegment segment){
         this.segment = segment;
-        this.iterators = new ConcurrentLinkedQueue<>();
+        this.iterators = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
     }
 
     public EventIterator newIterator(){
-        EventIterator iterator = new EventIterator(this.segment){
+        return newIterator(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    //Iterates ids in [fromId, toId], seeking to the first one instead of scanning
+    public synchronized EventIterator newIterator(long fromId, long toId){
+        ArrowSegment segment = this.segment;
+        return register(new EventIterator(segment, segment.seek(fromId), toId){
             @Override
             public void close() throws IOException {
                 super.close();
                 iterators.remove(this);
             }
-        };
+        });
+    }
+
+    //Iterates the events with the given key, touching matching rows only
+    public synchronized EventIterator newIterator(byte[] key){
+        ArrowSegment segment = this.segment;
+        return register(new EventIterator(segment, segment.rowsByKey(key).getIntIterator()){
+            @Override
+            public void close() throws IOException {
+                super.close();
+                iterators.remove(this);
+            }
+        });
+    }
+
+    //Iterates the events accepted by the filter, using its id and key hints to skip rows
+    public synchronized EventIterator newIterator(EventFilter filter){
+        ArrowSegment segment = this.segment;
+        EventIterator iterator;
+        if (filter.key() != null) {
+            PeekableIntIterator rows = segment.rowsByKey(filter.key()).getIntIterator();
+            if (filter.minId() != Long.MIN_VALUE) rows.advanceIfNeeded(segment.seek(filter.minId()));
+            iterator = new EventIterator(segment, rows, filter.maxId(), filter){
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    iterators.remove(this);
+                }
+            };
+        } else {
+            iterator = new EventIterator(segment, segment.seek(filter.minId()), filter.maxId(), filter){
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    iterators.remove(this);
+                }
+            };
+        }
+        return register(iterator);
+    }
+
+    private EventIterator register(EventIterator iterator){
         iterators.add(iterator);
         return iterator;
     }
 
-    public void swapSource(ArrowSegment segment){
+    //Iterators are created under the same lock, so none can be left on the replaced segment
+    public synchronized void swapSource(ArrowSegment segment){
         log.info("Reloading {} with {}",this.segment,segment);
         this.segment = segment;
-        iterators.forEach(it -> it.reload(segment));
+        synchronized (iterators) {
+            iterators.forEach(it -> it.reload(segment));
+        }
     }
 
     long first(){
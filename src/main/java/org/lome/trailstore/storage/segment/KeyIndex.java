@@ -0,0 +1,118 @@
+package org.lome.trailstore.storage.segment;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.lome.trailstore.exceptions.EventReadException;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+//Inverted index from key hash to the rows holding that key.
+//Different keys may share a hash: rows have to be checked against the actual key.
+public class KeyIndex {
+
+    final static HashFunction HASH = Hashing.murmur3_32_fixed();
+
+    final Map<Integer, RoaringBitmap> rows;
+
+    //Concurrent: memory segments look keys up while their writer adds rows
+    public KeyIndex(){
+        this(new ConcurrentHashMap<>());
+    }
+
+    KeyIndex(Map<Integer, RoaringBitmap> rows){
+        this.rows = rows;
+    }
+
+    static int hash(byte[] key){
+        return HASH.hashBytes(key).asInt();
+    }
+
+    //Same hash as the bytes of the key, read in place up to its limit: the buffer is consumed
+    static int hash(ByteBuffer key){
+        return HASH.hashBytes(key).asInt();
+    }
+
+    public void add(byte[] key, int row){
+        add(hash(key), row);
+    }
+
+    public void add(ByteBuffer key, int row){
+        add(hash(key), row);
+    }
+
+    private void add(int hash, int row){
+        RoaringBitmap bitmap = rows.computeIfAbsent(hash, h -> new RoaringBitmap());
+        synchronized (bitmap) {
+            bitmap.add(row);
+        }
+    }
+
+    //Rows whose key shares the hash of the given one, never null
+    public RoaringBitmap candidates(byte[] key){
+        RoaringBitmap candidates = rows.get(hash(key));
+        if (candidates == null) return new RoaringBitmap();
+        synchronized (candidates) {
+            return candidates.clone();
+        }
+    }
+
+    //Drops the candidates holding a different key with the same hash
+    static RoaringBitmap matching(ArrowSegment segment, RoaringBitmap candidates, byte[] key){
+        RoaringBitmap matching = new RoaringBitmap();
+        try (RowReader reader = new RowReader(segment)) {
+            candidates.forEach((int row) -> {
+                SegmentBatch batch = reader.batch(row);
+                if (EventFilters.bytesEqual(batch.keyVector, row - batch.startRow, key)) matching.add(row);
+            });
+        }
+        return matching;
+    }
+
+    public int size(){
+        return rows.size();
+    }
+
+    void writeTo(Map<String,String> metadata){
+        int size = Integer.BYTES;
+        for (RoaringBitmap bitmap : rows.values()) {
+            bitmap.runOptimize();
+            size += Integer.BYTES + bitmap.serializedSizeInBytes();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(rows.size());
+        rows.forEach((hash, bitmap) -> {
+            buffer.putInt(hash);
+            //Roaring doesn't move the buffer position
+            bitmap.serialize(buffer.slice().order(ByteOrder.LITTLE_ENDIAN));
+            buffer.position(buffer.position() + bitmap.serializedSizeInBytes());
+        });
+        metadata.put(SegmentFooter.KEY_INDEX, Base64.getEncoder().encodeToString(buffer.array()));
+    }
+
+    static KeyIndex readFrom(Map<String,String> metadata){
+        String encoded = metadata.get(SegmentFooter.KEY_INDEX);
+        if (encoded == null) return null;
+        ByteBuffer buffer = ByteBuffer.wrap(Base64.getDecoder().decode(encoded)).order(ByteOrder.LITTLE_ENDIAN);
+        int count = buffer.getInt();
+        Map<Integer, RoaringBitmap> rows = new HashMap<>(count * 2);
+        try {
+            for (int i = 0; i < count; i++) {
+                int hash = buffer.getInt();
+                RoaringBitmap bitmap = new RoaringBitmap();
+                bitmap.deserialize(buffer.slice().order(ByteOrder.LITTLE_ENDIAN));
+                buffer.position(buffer.position() + bitmap.serializedSizeInBytes());
+                rows.put(hash, bitmap);
+            }
+        } catch (IOException e) {
+            throw new EventReadException("Corrupted key index", e);
+        }
+        return new KeyIndex(rows);
+    }
+}
@@ -0,0 +1,185 @@
+package org.lome.trailstore.storage.segment;
+
+import org.apache.arrow.compression.Lz4CompressionCodec;
+import org.apache.arrow.memory.ArrowBuf;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.compression.CompressionUtil;
+import org.apache.commons.compress.compressors.lz4.XXHash32;
+
+import java.util.Arrays;
+
+//LZ4 frames written by a greedy single-probe block compressor, read back by the codec of arrow-compression.
+//Its commons-compress writer searches match chains in a way that wrote our JSON payloads at well
+//under 1MB/s, whatever the parameters: this one trades some ratio for writing at memory speed.
+//Frames have independent blocks and a content checksum, as the commons-compress writer makes them
+class Lz4FrameCodec extends Lz4CompressionCodec {
+
+    final static int MAGIC = 0x184D2204;
+    //Version 01, independent blocks, content checksum
+    final static int FRAME_FLAGS = 0x40 | 0x20 | 0x04;
+    final static int BLOCK_SIZE = 1 << 16;
+    //64KB blocks
+    final static int BLOCK_DESCRIPTOR = 4 << 4;
+    final static int UNCOMPRESSED_BLOCK = 0x80000000;
+
+    final static int MIN_MATCH = 4;
+    //A block ends with 5 literals at least, and its last match starts 12 bytes before its end at the latest
+    final static int LAST_LITERALS = 5;
+    final static int MATCH_FIND_LIMIT = 12;
+    final static int MAX_OFFSET = 65535;
+    final static int HASH_LOG = 14;
+    //Positions probed without a match before the compressor starts skipping ahead
+    final static int SKIP_TRIGGER = 6;
+
+    @Override
+    protected ArrowBuf doCompress(BufferAllocator allocator, ArrowBuf uncompressedBuffer) {
+        long length = uncompressedBuffer.writerIndex();
+        if (length > Integer.MAX_VALUE) throw new IllegalArgumentException("Buffer too large to compress: " + length);
+        byte[] src = new byte[(int) length];
+        uncompressedBuffer.getBytes(0, src);
+        byte[] frame = new byte[maxFrameLength(src.length)];
+        int frameLength = writeFrame(src, frame);
+        ArrowBuf compressedBuffer = allocator.buffer(CompressionUtil.SIZE_OF_UNCOMPRESSED_LENGTH + frameLength);
+        compressedBuffer.setBytes(CompressionUtil.SIZE_OF_UNCOMPRESSED_LENGTH, frame, 0, frameLength);
+        compressedBuffer.writerIndex(CompressionUtil.SIZE_OF_UNCOMPRESSED_LENGTH + frameLength);
+        return compressedBuffer;
+    }
+
+    static int maxFrameLength(int length){
+        int blocks = Math.max(1, (length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        //Header, then per block its size and at worst the bytes as they are, then end mark and checksum
+        return 7 + blocks * 4 + length + 8;
+    }
+
+    static int writeFrame(byte[] src, byte[] frame){
+        writeIntLE(frame, 0, MAGIC);
+        frame[4] = (byte) FRAME_FLAGS;
+        frame[5] = (byte) BLOCK_DESCRIPTOR;
+        XXHash32 descriptorHash = new XXHash32();
+        descriptorHash.update(frame, 4, 2);
+        frame[6] = (byte) (descriptorHash.getValue() >> 8);
+        int op = 7;
+        int[] table = new int[1 << HASH_LOG];
+        byte[] block = new byte[maxBlockLength(BLOCK_SIZE)];
+        for (int offset = 0; offset < src.length; offset += BLOCK_SIZE) {
+            int length = Math.min(BLOCK_SIZE, src.length - offset);
+            int compressed = compressBlock(src, offset, length, block, table);
+            if (compressed < length) {
+                writeIntLE(frame, op, compressed);
+                System.arraycopy(block, 0, frame, op + 4, compressed);
+                op += 4 + compressed;
+            } else {
+                writeIntLE(frame, op, length | UNCOMPRESSED_BLOCK);
+                System.arraycopy(src, offset, frame, op + 4, length);
+                op += 4 + length;
+            }
+        }
+        writeIntLE(frame, op, 0);
+        XXHash32 contentHash = new XXHash32();
+        contentHash.update(src, 0, src.length);
+        writeIntLE(frame, op + 4, (int) contentHash.getValue());
+        return op + 8;
+    }
+
+    static int maxBlockLength(int length){
+        return length + length / 255 + 16;
+    }
+
+    //Compresses src[from, from + length) as an LZ4 block into dst, returns its length
+    static int compressBlock(byte[] src, int from, int length, byte[] dst, int[] table){
+        int end = from + length;
+        int anchor = from;
+        int op = 0;
+        if (length > MATCH_FIND_LIMIT) {
+            //Positions are stored + 1, so that 0 is no position
+            Arrays.fill(table, 0);
+            int matchLimit = end - LAST_LITERALS;
+            int findLimit = end - MATCH_FIND_LIMIT;
+            int ip = from;
+            int misses = 1 << SKIP_TRIGGER;
+            while (ip < findLimit) {
+                int sequence = readInt(src, ip);
+                int hash = hash(sequence);
+                int ref = table[hash] - 1;
+                table[hash] = ip + 1;
+                if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                    ip += misses++ >>> SKIP_TRIGGER;
+                    continue;
+                }
+                misses = 1 << SKIP_TRIGGER;
+                while (ip > anchor && ref > from && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) matchLength++;
+                op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, op);
+                ip += matchLength;
+                anchor = ip;
+                //Keeps the table fed across the match
+                if (ip - 2 < findLimit) table[hash(readInt(src, ip - 2))] = ip - 2 + 1;
+            }
+        }
+        return writeLastLiterals(src, anchor, end - anchor, dst, op);
+    }
+
+    private static int writeSequence(byte[] src, int literalsAt, int literals, int offset, int matchLength,
+                                     byte[] dst, int op){
+        int tokenAt = op++;
+        int token;
+        if (literals >= 15) {
+            token = 15 << 4;
+            op = writeLength(literals - 15, dst, op);
+        } else {
+            token = literals << 4;
+        }
+        System.arraycopy(src, literalsAt, dst, op, literals);
+        op += literals;
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >>> 8);
+        int extra = matchLength - MIN_MATCH;
+        if (extra >= 15) {
+            token |= 15;
+            op = writeLength(extra - 15, dst, op);
+        } else {
+            token |= extra;
+        }
+        dst[tokenAt] = (byte) token;
+        return op;
+    }
+
+    private static int writeLastLiterals(byte[] src, int literalsAt, int literals, byte[] dst, int op){
+        if (literals >= 15) {
+            dst[op++] = (byte) (15 << 4);
+            op = writeLength(literals - 15, dst, op);
+        } else {
+            dst[op++] = (byte) (literals << 4);
+        }
+        System.arraycopy(src, literalsAt, dst, op, literals);
+        return op + literals;
+    }
+
+    private static int writeLength(int length, byte[] dst, int op){
+        while (length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    private static int hash(int sequence){
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    private static int readInt(byte[] src, int at){
+        return (src[at] & 0xFF) | (src[at + 1] & 0xFF) << 8 | (src[at + 2] & 0xFF) << 16 | (src[at + 3] & 0xFF) << 24;
+    }
+
+    private static void writeIntLE(byte[] dst, int at, int value){
+        dst[at] = (byte) value;
+        dst[at + 1] = (byte) (value >>> 8);
+        dst[at + 2] = (byte) (value >>> 16);
+        dst[at + 3] = (byte) (value >>> 24);
+    }
+}
@@ -0,0 +1,160 @@
+package org.lome.trailstore.storage.segment;
+
+import org.apache.arrow.flatbuf.Message;
+import org.apache.arrow.flatbuf.MessageHeader;
+import org.apache.arrow.flatbuf.RecordBatch;
+import org.apache.arrow.memory.ArrowBuf;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.OwnershipTransferResult;
+import org.apache.arrow.memory.ReferenceManager;
+import org.apache.arrow.memory.util.MemoryUtil;
+import org.apache.arrow.vector.VectorLoader;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.message.ArrowBlock;
+import org.apache.arrow.vector.ipc.message.ArrowRecordBatch;
+import org.apache.arrow.vector.ipc.message.MessageSerializer;
+import org.apache.arrow.vector.types.pojo.Schema;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Loads record batches straight out of a memory mapped segment file:
+//vectors point into the mapping, nothing is copied and nothing is charged to an allocator.
+class MappedBatchLoader {
+
+    static VectorSchemaRoot load(FileChannel channel, ArrowBlock block, Schema schema,
+                                 BufferAllocator allocator) throws IOException {
+        long size = block.getMetadataLength() + block.getBodyLength();
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, block.getOffset(), size);
+        RecordBatch header = recordBatchHeader(mapped);
+        MappedReferenceManager referenceManager = new MappedReferenceManager(mapped, allocator);
+        ArrowBuf body = referenceManager.wrap(block.getMetadataLength(), block.getBodyLength());
+        VectorSchemaRoot root = VectorSchemaRoot.create(schema, allocator);
+        //The record batch takes over the body reference
+        try (ArrowRecordBatch batch = MessageSerializer.deserializeRecordBatch(header, body)) {
+            new VectorLoader(root).load(batch);
+        } catch (RuntimeException | IOException e) {
+            root.close();
+            throw e;
+        }
+        return root;
+    }
+
+    private static RecordBatch recordBatchHeader(MappedByteBuffer mapped) throws IOException {
+        ByteBuffer metadata = mapped.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int prefix = Integer.BYTES;
+        int length = metadata.getInt(0);
+        if (length == MessageSerializer.IPC_CONTINUATION_TOKEN) {
+            length = metadata.getInt(Integer.BYTES);
+            prefix += Integer.BYTES;
+        }
+        metadata.limit(prefix + length).position(prefix);
+        Message message = Message.getRootAsMessage(metadata.slice());
+        if (message.headerType() != MessageHeader.RecordBatch) {
+            throw new IOException("Expected a record batch, found message type "+message.headerType());
+        }
+        return (RecordBatch) message.header(new RecordBatch());
+    }
+
+    //Shared by every buffer sliced out of one mapping, which is unmapped once the last of them is released.
+    static class MappedReferenceManager implements ReferenceManager {
+
+        final MappedByteBuffer mapped;
+        final long address;
+        final BufferAllocator allocator;
+        final AtomicInteger refCount = new AtomicInteger(0);
+
+        MappedReferenceManager(MappedByteBuffer mapped, BufferAllocator allocator){
+            this.mapped = mapped;
+            this.address = MemoryUtil.getByteBufferAddress(mapped);
+            this.allocator = allocator;
+        }
+
+        ArrowBuf wrap(long offset, long length){
+            refCount.incrementAndGet();
+            return new ArrowBuf(this, null, length, address + offset);
+        }
+
+        @Override
+        public int getRefCount() {
+            return refCount.get();
+        }
+
+        @Override
+        public boolean release() {
+            return release(1);
+        }
+
+        @Override
+        public boolean release(int decrement) {
+            int count = refCount.addAndGet(-decrement);
+            if (count < 0) throw new IllegalStateException("Mapped buffer released too many times");
+            if (count == 0) {
+                //No vector points into the mapping anymore: unmap now rather than whenever the GC gets to it
+                MemoryUtil.UNSAFE.invokeCleaner(mapped);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void retain() {
+            retain(1);
+        }
+
+        @Override
+        public void retain(int increment) {
+            refCount.addAndGet(increment);
+        }
+
+        @Override
+        public ArrowBuf retain(ArrowBuf srcBuffer, BufferAllocator targetAllocator) {
+            retain();
+            return deriveBuffer(srcBuffer, 0, srcBuffer.capacity());
+        }
+
+        @Override
+        public ArrowBuf deriveBuffer(ArrowBuf sourceBuffer, long index, long length) {
+            return new ArrowBuf(this, null, length, sourceBuffer.memoryAddress() + index);
+        }
+
+        //Within the allocator of the mapping, as when slicing vectors, a transfer is one more reference
+        @Override
+        public OwnershipTransferResult transferOwnership(ArrowBuf sourceBuffer, BufferAllocator targetAllocator) {
+            if (targetAllocator != allocator) throw new UnsupportedOperationException("Memory mapped buffers can't change owner");
+            ArrowBuf transferred = retain(sourceBuffer, targetAllocator);
+            transferred.readerIndex(sourceBuffer.readerIndex());
+            transferred.writerIndex(sourceBuffer.writerIndex());
+            return new OwnershipTransferResult() {
+                @Override
+                public boolean getAllocationFit() {
+                    return true;
+                }
+
+                @Override
+                public ArrowBuf getTransferredBuffer() {
+                    return transferred;
+                }
+            };
+        }
+
+        @Override
+        public BufferAllocator getAllocator() {
+            return allocator;
+        }
+
+        @Override
+        public long getSize() {
+            return mapped.capacity();
+        }
+
+        @Override
+        public long getAccountedSize() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.lome.trailstore.storage.segment;
+
+import org.apache.arrow.memory.ArrowBuf;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.VarBinaryVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+
+import java.nio.ByteBuffer;
+
+//Fixed capacity batch of a memory segment. Buffers are allocated up front and never grow, so
+//readers can follow the single writer without locking: a row is visible once rows is published,
+//which happens after its values have been written.
+class MemoryChunk extends SegmentBatch {
+
+    final int capacity;
+    //Rows fully written
+    volatile int rows;
+    //Writer side: bytes used in the data buffers
+    long keyBytes;
+    long metadataBytes;
+    long dataBytes;
+
+    MemoryChunk(BufferAllocator allocator, int startRow, int capacity,
+                long keyCapacity, long metadataCapacity, long dataCapacity){
+        super(VectorSchemaRoot.create(ArrowMemorySegment.arrowSchema(), allocator), startRow, false);
+        this.capacity = capacity;
+        try {
+            idVector.allocateNew(capacity);
+            keyVector.allocateNew(keyCapacity, capacity);
+            metadataVector.allocateNew(metadataCapacity, capacity);
+            dataVector.allocateNew(dataCapacity, capacity);
+        } catch (RuntimeException e) {
+            root.close();
+            throw e;
+        }
+    }
+
+    long allocatedBytes(){
+        long bytes = 0;
+        for (FieldVector vector : root.getFieldVectors()) {
+            for (ArrowBuf buffer : vector.getFieldBuffers()) bytes += buffer.capacity();
+        }
+        return bytes;
+    }
+
+    @Override
+    public int rows(){
+        return rows;
+    }
+
+    //True if values of the given lengths can be written without growing any buffer
+    boolean fits(int keyLength, int metadataLength, int dataLength){
+        return rows < capacity &&
+                fits(keyVector, keyBytes, keyLength) &&
+                fits(metadataVector, metadataBytes, metadataLength) &&
+                fits(dataVector, dataBytes, dataLength);
+    }
+
+    private static boolean fits(VarBinaryVector vector, long used, int length){
+        return used + length <= vector.getByteCapacity();
+    }
+
+    //Writer side, fits() must have been checked: set() never reallocates, unlike setSafe()
+    void append(long id, byte[] key, byte[] metadata, byte[] data){
+        int row = rows;
+        idVector.set(row, id);
+        keyVector.set(row, key);
+        if (metadata == null) metadataVector.setNull(row);
+        else metadataVector.set(row, metadata);
+        dataVector.set(row, data);
+        root.setRowCount(row + 1);
+        keyBytes += key.length;
+        metadataBytes += metadata == null ? 0 : metadata.length;
+        dataBytes += data.length;
+        rows = row + 1;
+    }
+
+    //Same, the values copied from the buffers straight into the vectors. Heap buffers are consumed by the copy
+    void append(long id, ByteBuffer key, ByteBuffer metadata, ByteBuffer data){
+        int row = rows;
+        int keyLength = key.remaining();
+        int metadataLength = metadata.remaining();
+        int dataLength = data.remaining();
+        idVector.set(row, id);
+        keyVector.set(row, key, key.position(), keyLength);
+        metadataVector.set(row, metadata, metadata.position(), metadataLength);
+        dataVector.set(row, data, data.position(), dataLength);
+        root.setRowCount(row + 1);
+        keyBytes += keyLength;
+        metadataBytes += metadataLength;
+        dataBytes += dataLength;
+        rows = row + 1;
+    }
+}
@@ -0,0 +1,29 @@
+package org.lome.trailstore.storage.segment;
+
+import lombok.Getter;
+import lombok.ToString;
+
+//Off-heap memory held by a SegmentManager, by role
+@Getter
+@ToString
+public class MemoryStats {
+
+    //Memory segments: the one appended to, and the rolled ones until they are stored and released
+    final AllocatorStats segments;
+    //Record batches loaded from stored segments
+    final AllocatorStats cache;
+    //Share of the segments memory held by the segment appended to
+    final long hotBytes;
+    //Share held by rolled segments, queued for storage or being stored
+    final long rolledBytes;
+    //Appends that had to wait for memory to be released
+    final long blockedAppends;
+
+    MemoryStats(AllocatorStats segments, AllocatorStats cache, long hotBytes, long blockedAppends){
+        this.segments = segments;
+        this.cache = cache;
+        this.hotBytes = hotBytes;
+        this.rolledBytes = Math.max(0, segments.getAllocatedBytes() - hotBytes);
+        this.blockedAppends = blockedAppends;
+    }
+}
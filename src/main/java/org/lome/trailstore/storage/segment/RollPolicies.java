@@ -0,0 +1,46 @@
+package org.lome.trailstore.storage.segment;
+
+import java.time.Duration;
+
+/**
+ * Common {@link RollPolicy}s. Rows and bytes bound the memory a segment holds,
+ * age bounds how long its events stay in the WAL, and with it the time to replay them on restart.
+ */
+public final class RollPolicies {
+
+    private RollPolicies(){
+    }
+
+    public static RollPolicy never(){
+        return (segment, now) -> false;
+    }
+
+    //Rolls once the segment holds this many events
+    public static RollPolicy rows(long maxRows){
+        return (segment, now) -> segment.rows() >= maxRows;
+    }
+
+    //Rolls once the segment vectors hold this much off-heap memory, allocated ahead of the rows included
+    public static RollPolicy bytes(long maxBytes){
+        return (segment, now) -> segment.allocatedBytes() >= maxBytes;
+    }
+
+    //Rolls once the first event of the segment was appended this long ago
+    public static RollPolicy age(Duration maxAge){
+        long maxMillis = maxAge.toMillis();
+        return (segment, now) -> segment.rows() > 0 && now - segment.firstAppendMillis() >= maxMillis;
+    }
+
+    //Rolls once nothing has been appended to the segment for this long
+    public static RollPolicy idle(Duration maxIdle){
+        long maxMillis = maxIdle.toMillis();
+        return (segment, now) -> segment.rows() > 0 && now - segment.lastAppendMillis() >= maxMillis;
+    }
+
+    //Rolls as soon as any of the policies does
+    public static RollPolicy any(RollPolicy... policies){
+        RollPolicy any = never();
+        for (RollPolicy policy : policies) any = any.or(policy);
+        return any;
+    }
+}
@@ -0,0 +1,15 @@
+package org.lome.trailstore.storage.segment;
+
+//Decides when the memory segment is rolled: stored, dropped from memory and from the WAL replay.
+//Checked after every append and periodically in the background, so time based policies roll
+//idle segments too. See RollPolicies for the common ones.
+@FunctionalInterface
+public interface RollPolicy {
+
+    //Called with the segment writer lock held, empty segments are never rolled
+    boolean shouldRoll(ArrowMemorySegment segment, long nowMillis);
+
+    default RollPolicy or(RollPolicy other){
+        return (segment, now) -> shouldRoll(segment, now) || other.shouldRoll(segment, now);
+    }
+}
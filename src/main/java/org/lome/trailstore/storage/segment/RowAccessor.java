@@ -0,0 +1,33 @@
+package org.lome.trailstore.storage.segment;
+
+//Reads a single row of a batch straight from its vectors
+class RowAccessor implements EventAccessor {
+
+    final SegmentBatch batch;
+    final int row;
+
+    RowAccessor(SegmentBatch batch, int row){
+        this.batch = batch;
+        this.row = row;
+    }
+
+    @Override
+    public long getId() {
+        return batch.idVector.get(row);
+    }
+
+    @Override
+    public byte[] getKey() {
+        return batch.keyVector.get(row);
+    }
+
+    @Override
+    public byte[] getMetadata() {
+        return batch.metadataVector.get(row);
+    }
+
+    @Override
+    public byte[] getData() {
+        return batch.dataVector.get(row);
+    }
+}
@@ -0,0 +1,45 @@
+package org.lome.trailstore.storage.segment;
+
+import java.io.Closeable;
+
+//Reads rows of a segment by index, holding on to the batch of the last row read:
+//scans stay on one batch until they cross its end, then release it and take the next.
+class RowReader implements Closeable {
+
+    ArrowSegment segment;
+    SegmentBatch batch;
+
+    RowReader(ArrowSegment segment){
+        this.segment = segment;
+    }
+
+    //The batch holding the row, valid until the next call or close()
+    SegmentBatch batch(int row){
+        if (batch == null || !batch.contains(row)) {
+            release();
+            batch = segment.batch(segment.batchOf(row));
+        }
+        return batch;
+    }
+
+    long id(int row){
+        SegmentBatch batch = batch(row);
+        return batch.idVector.get(row - batch.startRow);
+    }
+
+    //Moves on to another segment holding the same rows
+    void reset(ArrowSegment segment){
+        release();
+        this.segment = segment;
+    }
+
+    private void release(){
+        if (batch != null) batch.close();
+        batch = null;
+    }
+
+    @Override
+    public void close(){
+        release();
+    }
+}
@@ -0,0 +1,90 @@
+package org.lome.trailstore.storage.segment;
+
+import org.apache.arrow.vector.BigIntVector;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.VarBinaryVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//One record batch of a segment, holding rows [startRow, startRow + rows()).
+//Batches of stored segments are reference counted: the BatchCache holds one reference and every
+//reader holding the batch another, vectors are released when the last one is closed.
+//Memory segments hand out a single unmanaged batch growing with the segment.
+public class SegmentBatch implements Closeable {
+
+    final VectorSchemaRoot root;
+    final int startRow;
+    //Resolved once: looking vectors up by name is a scan over the schema
+    final BigIntVector idVector;
+    final VarBinaryVector keyVector;
+    final VarBinaryVector metadataVector;
+    final VarBinaryVector dataVector;
+    //Null for unmanaged batches, which are closed along with their segment
+    final AtomicInteger refCount;
+
+    SegmentBatch(VectorSchemaRoot root, int startRow, boolean managed){
+        this.root = root;
+        this.startRow = startRow;
+        this.idVector = (BigIntVector)root.getVector("id");
+        this.keyVector = (VarBinaryVector)root.getVector("key");
+        this.metadataVector = (VarBinaryVector)root.getVector("metadata");
+        this.dataVector = (VarBinaryVector)root.getVector("data");
+        this.refCount = managed ? new AtomicInteger(1) : null;
+    }
+
+    public int startRow(){
+        return startRow;
+    }
+
+    public int rows(){
+        return root.getRowCount();
+    }
+
+    public boolean contains(int row){
+        return row >= startRow && row - startRow < rows();
+    }
+
+    public BigIntVector idVector(){
+        return idVector;
+    }
+
+    public VarBinaryVector keyVector(){
+        return keyVector;
+    }
+
+    public VarBinaryVector metadataVector(){
+        return metadataVector;
+    }
+
+    public VarBinaryVector dataVector(){
+        return dataVector;
+    }
+
+    //Memory held by the vectors, for mapped batches the size of the mapping they point into
+    long bytes(){
+        long bytes = 0;
+        for (FieldVector vector : root.getFieldVectors()) bytes += vector.getBufferSize();
+        return bytes;
+    }
+
+    //Takes a reference, false if the batch has been released in the meantime
+    boolean retain(){
+        if (refCount == null) return true;
+        while (true) {
+            int count = refCount.get();
+            if (count <= 0) return false;
+            if (refCount.compareAndSet(count, count + 1)) return true;
+        }
+    }
+
+    //Drops a reference
+    @Override
+    public void close(){
+        if (refCount == null) return;
+        int count = refCount.decrementAndGet();
+        if (count == 0) root.close();
+        if (count < 0) throw new IllegalStateException("Segment batch released too many times");
+    }
+}
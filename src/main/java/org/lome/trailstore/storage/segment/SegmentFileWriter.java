@@ -0,0 +1,90 @@
+package org.lome.trailstore.storage.segment;
+
+import org.apache.arrow.memory.ArrowBuf;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.VectorUnloader;
+import org.apache.arrow.vector.compression.CompressionCodec;
+import org.apache.arrow.vector.compression.NoCompressionCodec;
+import org.apache.arrow.vector.dictionary.DictionaryProvider;
+import org.apache.arrow.vector.ipc.ArrowFileWriter;
+import org.apache.arrow.vector.ipc.message.ArrowRecordBatch;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+//ArrowFileWriter splitting the chunks of a memory segment into record batches of up to batchRows
+//rows, so readers can load a segment a batch at a time. Batches are optionally compressed, which
+//the 8.0 writers can't do on their own: readers need a CompressionCodec.Factory to load them back.
+class SegmentFileWriter extends ArrowFileWriter {
+
+    final static int DEFAULT_BATCH_ROWS = 65536;
+
+    final List<? extends SegmentBatch> chunks;
+    final int batchRows;
+    final CompressionCodec codec;
+
+    SegmentFileWriter(List<? extends SegmentBatch> chunks, DictionaryProvider provider, WritableByteChannel out,
+                      Map<String,String> metaData, SegmentCompression compression, int batchRows){
+        super(chunks.get(0).root, provider, out, metaData);
+        this.chunks = chunks;
+        this.batchRows = batchRows;
+        this.codec = compression.codec();
+    }
+
+    //First row of every batch written out of the given chunks, in the order they are written
+    static int[] batchStarts(List<? extends SegmentBatch> chunks, int batchRows){
+        List<Integer> starts = new ArrayList<>();
+        for (SegmentBatch chunk : chunks) {
+            for (int from = 0; from < chunk.rows(); from += batchRows) starts.add(chunk.startRow + from);
+        }
+        return starts.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    @Override
+    public void writeBatch() throws IOException {
+        start();
+        for (SegmentBatch chunk : chunks) writeChunk(chunk);
+    }
+
+    //Writes the rows of one chunk, the ones before it must have been written already
+    void writeChunk(SegmentBatch chunk) throws IOException {
+        start();
+        VectorSchemaRoot root = chunk.root;
+        int rows = chunk.rows();
+        for (int from = 0; from < rows; from += batchRows) {
+            //Slices share the data buffers of the root, offsets are rebased
+            VectorSchemaRoot slice = root.slice(from, Math.min(batchRows, rows - from));
+            try {
+                writeSlice(slice);
+            } finally {
+                //A slice covering every row is the root itself
+                if (slice != root) slice.close();
+            }
+        }
+    }
+
+    private void writeSlice(VectorSchemaRoot slice) throws IOException {
+        if (codec == NoCompressionCodec.INSTANCE) {
+            try (ArrowRecordBatch batch = new VectorUnloader(slice).getRecordBatch()) {
+                writeRecordBatch(batch);
+            }
+            return;
+        }
+        //Codecs close the buffers they compress, and unloading doesn't retain them:
+        //take a reference for each, or the slice would be released twice
+        for (FieldVector vector : slice.getFieldVectors()) {
+            for (ArrowBuf buffer : vector.getFieldBuffers()) {
+                buffer.getReferenceManager().retain();
+            }
+        }
+        try (ArrowRecordBatch batch = new VectorUnloader(slice, true, codec, true).getRecordBatch()) {
+            //The batch retains the compressed buffers on top of the reference they were allocated with
+            batch.getBuffers().forEach(buffer -> buffer.getReferenceManager().release());
+            writeRecordBatch(batch);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.lome.trailstore.storage.segment;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+//Custom metadata written in the Arrow footer of .segment files,
+//so a reader can answer most questions without touching the record batches.
+class SegmentFooter {
+
+    final static String FIRST_ID = "trailstore.first_id";
+    final static String LAST_ID = "trailstore.last_id";
+    final static String ROWS = "trailstore.rows";
+    final static String SPARSE_INDEX = "trailstore.sparse_index";
+    final static String SPARSE_INDEX_STRIDE = "trailstore.sparse_index.stride";
+    final static String KEY_INDEX = "trailstore.key_index";
+    final static String COMPRESSION = "trailstore.compression";
+    //First row of each record batch
+    final static String BATCH_STARTS = "trailstore.batch_starts";
+
+    final Map<String,String> metadata;
+
+    SegmentFooter(Map<String,String> metadata){
+        this.metadata = metadata == null ? new HashMap<>() : metadata;
+    }
+
+    static SegmentFooter of(ArrowMemorySegment segment, List<? extends SegmentBatch> chunks,
+                            SegmentCompression compression, int batchRows){
+        SegmentFooter footer = new SegmentFooter(new HashMap<>());
+        footer.metadata.put(COMPRESSION, compression.name());
+        footer.metadata.put(BATCH_STARTS, Arrays.stream(SegmentFileWriter.batchStarts(chunks, batchRows))
+                .mapToObj(Integer::toString).collect(Collectors.joining(",")));
+        int rows = segment.rows();
+        footer.metadata.put(ROWS, Integer.toString(rows));
+        if (rows > 0) {
+            footer.metadata.put(FIRST_ID, Long.toString(segment.first()));
+            footer.metadata.put(LAST_ID, Long.toString(segment.last()));
+            //Strides within a batch: a seek then loads the one batch it lands in
+            try (RowReader reader = new RowReader(segment)) {
+                SparseIdIndex.build(reader::id, rows, Math.min(SparseIdIndex.DEFAULT_STRIDE, batchRows))
+                        .writeTo(footer.metadata);
+            }
+            segment.keyIndex.writeTo(footer.metadata);
+        }
+        return footer;
+    }
+
+    Long firstId(){
+        return longValue(FIRST_ID);
+    }
+
+    Long lastId(){
+        return longValue(LAST_ID);
+    }
+
+    Integer rows(){
+        String rows = metadata.get(ROWS);
+        return rows == null ? null : Integer.parseInt(rows);
+    }
+
+    //First row of each record batch, null for segments written as a single one
+    int[] batchStarts(){
+        String starts = metadata.get(BATCH_STARTS);
+        if (starts == null) return null;
+        return starts.isEmpty() ? new int[0] : Arrays.stream(starts.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+
+    SegmentCompression compression(){
+        String compression = metadata.get(COMPRESSION);
+        return compression == null ? SegmentCompression.NONE : SegmentCompression.valueOf(compression);
+    }
+
+    SparseIdIndex sparseIndex(){
+        return SparseIdIndex.readFrom(metadata);
+    }
+
+    KeyIndex keyIndex(){
+        return KeyIndex.readFrom(metadata);
+    }
+
+    private Long longValue(String key){
+        String value = metadata.get(key);
+        return value == null ? null : Long.parseLong(value);
+    }
+}
@@ -1,29 +1,45 @@
 package org.lome.trailstore.storage.segment;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 import lombok.Getter;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.OutOfMemoryException;
 import org.lome.trailstore.exceptions.EventAppendException;
 import org.lome.trailstore.model.Event;
+import org.lome.trailstore.model.EventView;
 import org.lome.trailstore.storage.mvwal.MvWal;
-import org.lome.trailstore.storage.utils.FsWatcher;
+import org.lome.trailstore.storage.wal.Durability;
+import org.lome.trailstore.storage.wal.Wal;
+import org.lome.trailstore.utils.RingBuffer;
 import org.lome.trailstore.utils.Sequencer;
 import org.slf4j.Logger;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
@@ -32,210 +48,866 @@ import java.util.stream.StreamSupport;
 public class SegmentManager implements Closeable {
 
     final static long MAX_MEMORY_EVENTS = 1000000L; //1M events in memory
+    final static long MAX_MEMORY_BYTES = 512L * 1024 * 1024; //512MB of vectors in memory
+    final static Duration MAX_SEGMENT_AGE = Duration.ofMinutes(15);
+    final static Duration ROLL_CHECK_INTERVAL = Duration.ofSeconds(1);
     final static String SEGMENT_PATTERN = "^[0-9]+\\.SEGMENT";
+    final static int APPEND_RING_SIZE = 65536;
+    final static int MAX_APPEND_BATCH = 8192;
+    final static long APPEND_IDLE_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+    final static long RETIRED_SEGMENT_GRACE_MS = 1000L;
+    final static Duration APPEND_BLOCK_TIMEOUT = Duration.ofSeconds(30);
+    final static long MEMORY_WAIT_MS = 100L;
+    final static int STORE_QUEUE_DEPTH = 4;
+    final static long FLUSH_POLL_MS = 100L;
+    final static long STORE_RETRY_MS = 1000L;
+    final static String TEMP_SUFFIX = ".tmp";
+    //WAL events decoded at once during the startup replay: larger batches outlive young collections
+    final static int REPLAY_BATCH_SIZE = 4096;
+    final static int TAIL_THREADS = 2;
 
-    final FsWatcher fsWatcher;
+    final SegmentManifest manifest;
     final Path segmentsFolder;
+    final SegmentManagerConfig config;
+    final RollPolicy rollPolicy;
 
-    final LoadingCache<Path,ArrowFileSegment> fileSegments;
-    final ScheduledExecutorService storageExecutor = Executors.newSingleThreadScheduledExecutor();
-    final MvWal walManager;
+    final BatchCache batchCache;
+    //Children of ROOT_ALLOCATOR, one per role
+    final BufferAllocator segmentAllocator;
+    final BufferAllocator cacheAllocator;
+    final AtomicLong blockedAppends = new AtomicLong();
+    final ScheduledThreadPoolExecutor storageExecutor = new ScheduledThreadPoolExecutor(1);
+    final Wal walManager;
 
     ArrowMemorySegment currentMemorySegment;
-    final LinkedBlockingQueue<ArrowMemorySegment> segmentStoreQueue;
-    final TreeSet<EventIteratorFactory> readerSegments;
+    //Writes the memory segment as it fills, null unless streaming
+    SegmentStream currentStream;
+    final ExecutorService streamExecutor;
+    final LinkedBlockingQueue<StoreTask> segmentStoreQueue;
+    final List<Thread> flushThreads = new ArrayList<>();
+    final AtomicBoolean flushOpen = new AtomicBoolean(true);
+    //Writer side: roll order of the last rolled segment
+    long rolledSequence;
+    //Roll order of the last segment published to readers, guarded by publishLock
+    final Object publishLock = new Object();
+    long publishedSequence;
+    //Roll time of the segments not published yet, by roll order
+    final ConcurrentSkipListMap<Long, Long> unstoredSegments = new ConcurrentSkipListMap<>();
+    final AtomicLong storedSegments = new AtomicLong();
+    final AtomicLong sealedStreams = new AtomicLong();
+    final AtomicLong throttledAppends = new AtomicLong();
+    final AtomicLong rejectedAppends = new AtomicLong();
+    volatile long lastFlushNanos;
+    final ConcurrentLinkedQueue<ArrowMemorySegment> retiredSegments = new ConcurrentLinkedQueue<>();
+    final ConcurrentSkipListSet<EventIteratorFactory> readerSegments;
+    final Set<TailSubscription> subscriptions = ConcurrentHashMap.newKeySet();
+    final ExecutorService tailExecutor;
 
+    final RingBuffer<PendingAppend> appendRing;
+    final AtomicBoolean appendOpen;
+    final Thread appendWriter;
 
     public SegmentManager(Path segmentsFolder, Path walFolder) throws IOException {
+        this(segmentsFolder, new MvWal(walFolder));
+    }
+
+    public SegmentManager(Path segmentsFolder, Wal wal) throws IOException {
+        this(segmentsFolder, wal, SegmentManagerConfig.defaults());
+    }
+
+    public SegmentManager(Path segmentsFolder, Wal wal, SegmentManagerConfig config) throws IOException {
         this.segmentsFolder = segmentsFolder;
+        this.config = config;
+        this.rollPolicy = config.effectiveRollPolicy();
+        this.segmentAllocator = ArrowSegment.ROOT_ALLOCATOR.newChildAllocator("trailstore-segments", 0, config.getSegmentMemoryLimit());
+        this.cacheAllocator = ArrowSegment.ROOT_ALLOCATOR.newChildAllocator("trailstore-cache", 0, config.getCacheMemoryLimit());
+        //Retired segments left at shutdown are closed by close()
+        this.storageExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
         Files.createDirectories(this.segmentsFolder);
-        this.fsWatcher = new FsWatcher(segmentsFolder, (p) -> Files.isRegularFile(p) &&
-                p.getFileName().toString().toUpperCase().matches(SEGMENT_PATTERN));
-        this.walManager = new MvWal(walFolder);
-        this.currentMemorySegment = new ArrowMemorySegment();
-        this.segmentStoreQueue = new LinkedBlockingQueue<>();
-        this.fileSegments = CacheBuilder.newBuilder()
-                .maximumSize(50)
-                .expireAfterAccess(6L, TimeUnit.HOURS)
-                .build(new CacheLoader<Path, ArrowFileSegment>() {
-                    @Override
-                    public ArrowFileSegment load(Path key) throws Exception {
-                        return new ArrowFileSegment(key.toFile());
-                    }
-                });
-        this.readerSegments = new TreeSet<>();
+        this.manifest = SegmentManifest.open(segmentsFolder, SEGMENT_PATTERN);
+        this.walManager = wal;
+        recoverStreams();
+        deleteTempFiles();
+        this.streamExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "trailstore-stream");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger tailThreads = new AtomicInteger();
+        this.tailExecutor = Executors.newFixedThreadPool(config.getTailThreads(), r -> {
+            Thread thread = new Thread(r, "trailstore-tail-"+tailThreads.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        //The first batch of the WAL backlog tells how large the memory segment it's replayed into should be
+        Iterator<List<EventView>> replay = walManager.replay(lastStoredId(), REPLAY_BATCH_SIZE).iterator();
+        List<EventView> firstReplayed = replay.hasNext() ? replay.next() : Collections.emptyList();
+        openMemorySegment(firstReplayed.isEmpty() ? initialSizing() :
+                SegmentSizing.of(firstReplayed, (int) Math.min(Integer.MAX_VALUE, config.getMaxMemoryEvents())));
+        this.segmentStoreQueue = new LinkedBlockingQueue<>(config.getStoreQueueDepth());
+        this.batchCache = new BatchCache(config.getBatchCacheBytes(), cacheAllocator);
+        this.readerSegments = new ConcurrentSkipListSet<>();
         availableSegments()
                 .stream().map(EventIteratorFactory::new)
                 .forEach(this.readerSegments::add);
-        this.storageExecutor.scheduleWithFixedDelay(() -> {
-            try{
-                while(true) {
-                    try (ArrowMemorySegment segment = segmentStoreQueue.poll()) {
-                        if (segment == null) break;
-                        ArrowFileSegment fileSegment = storeSegment(segment);
-                        if (fileSegment != null){
-                            try {
-                                readerSegments.stream()
-                                        .filter(e -> e.getSegment().equals(segment))
-                                        .findFirst().get().swapSource(fileSegment);
-                            }catch(Exception e){
-                                e.printStackTrace();
-                            }
-                        }else{
-                            segmentStoreQueue.put(segment);
-                        }
-                    }
+        for (int i = 0; i < config.getFlushThreads(); i++) {
+            Thread flushThread = new Thread(this::flushSegments, "trailstore-flush-"+i);
+            flushThread.setDaemon(true);
+            flushThread.start();
+            flushThreads.add(flushThread);
+        }
+        //Reload missing items from WAL
+        reloadFromWal(firstReplayed, replay);
+        this.appendRing = new RingBuffer<>(APPEND_RING_SIZE);
+        this.appendOpen = new AtomicBoolean(true);
+        this.appendWriter = new Thread(this::drainAppends, "trailstore-append-writer");
+        this.appendWriter.setDaemon(true);
+        this.appendWriter.start();
+        //Time based policies must also roll segments nobody appends to
+        long rollCheckMillis = config.getRollCheckInterval().toMillis();
+        this.storageExecutor.scheduleWithFixedDelay(this::checkIdleRoll, rollCheckMillis, rollCheckMillis, TimeUnit.MILLISECONDS);
+    }
+
+    //Flush thread loop: stores rolled segments until the manager is closed
+    private void flushSegments(){
+        while (flushOpen.get()) {
+            StoreTask task;
+            try {
+                task = segmentStoreQueue.poll(FLUSH_POLL_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (task == null) continue;
+            try {
+                //Failed stores are retried: later segments can't be published before this one anyway
+                while (!flush(task)) {
+                    if (!flushOpen.get()) return;
+                    Thread.sleep(STORE_RETRY_MS);
                 }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                log.error("Error flushing segment {}",task.segment,e);
+            }
+        }
+    }
+
+    //Writes the segment to a temporary file, then publishes it once every segment rolled before it has been.
+    //Stored files always are a prefix of the rolled segments, so the WAL replay can start after the last one.
+    //False if the segment has to be stored again
+    private boolean flush(StoreTask task) throws InterruptedException {
+        SegmentFileChannel tempFile = null;
+        if (task.stream != null) {
+            try {
+                tempFile = task.stream.seal();
+            } catch (IOException | RuntimeException e) {
+                log.error("Error sealing {}, storing the segment at once",task.stream.file,e);
+            }
+        }
+        if (tempFile == null) tempFile = storeSegment(task.segment);
+        if (tempFile == null) return false;
+        synchronized (publishLock) {
+            while (publishedSequence != task.sequence - 1) {
+                if (!flushOpen.get()) {
+                    //Left to the WAL replay, streams to the recovery
+                    if (task.stream == null) deleteQuietly(tempFile.file);
+                    return true;
+                }
+                publishLock.wait(FLUSH_POLL_MS);
+            }
+            Path segmentFile = publishSegment(task.segment, tempFile);
+            if (segmentFile == null) return false;
+            if (task.stream != null && !task.stream.file.equals(tempFile.file)) {
+                //Stored at once after the stream failed
+                task.stream.close();
+                deleteQuietly(task.stream.file);
+            } else if (task.stream != null) {
+                sealedStreams.incrementAndGet();
+            }
+            try {
+                ArrowFileSegment fileSegment = new ArrowFileSegment(segmentFile.toFile(), config.getReadMode(), batchCache);
+                readerSegments.stream()
+                        .filter(e -> e.getSegment().equals(task.segment))
+                        .findFirst().get().swapSource(fileSegment);
+                retire(task.segment);
             }catch(Exception e){
-                log.error("Error during chunkStorage routing",e);
+                //Stored and out of the WAL already: readers stay on the memory segment until restart
+                log.error("Error swapping readers to {}",segmentFile,e);
             }
-        }, 100L, 100L, TimeUnit.MILLISECONDS);
-        //Reload missing items from WAL
-        reloadFromWal();
+            unstoredSegments.remove(task.sequence);
+            storedSegments.incrementAndGet();
+            lastFlushNanos = System.nanoTime() - task.rolledNanos;
+            publishedSequence = task.sequence;
+            publishLock.notifyAll();
+        }
+        return true;
     }
 
-    private int reloadFromWal(){
-        log.info("Reloading WAL events");
-        long lastStored = getLastStoredTick();
-        long nowTick = Sequencer.SHARED.fixedTick(System.currentTimeMillis());
-        AtomicInteger reloaded = new AtomicInteger(0);
-        walManager.snapshotStream(lastStored,nowTick,false)
-                .filter(e -> e.getId() > lastStored) //Filter first event
-                .forEach(e -> {
-                    currentMemorySegment.append(e);
-                    reloaded.incrementAndGet();
-                    try {
-                        checkSwap();
-                    } catch (Exception ex) {
-                        log.error("Error during WAL reload",e);
-                    }
-                });
-        log.info("Reloaded {} events from WAL",reloaded.get());
-        return reloaded.get();
+    //Unsealed stream files left by a crash. Only the oldest can hold events already dropped from the WAL,
+    //it's stored as a segment with the batches it got to. Events of the newer ones are all still in the WAL
+    private void recoverStreams() throws IOException {
+        List<Path> streams;
+        try (Stream<Path> files = Files.list(segmentsFolder)) {
+            streams = files.filter(SegmentStream::isStreamFile).collect(Collectors.toList());
+        }
+        if (streams.isEmpty()) return;
+        Path oldest = streams.stream().min(Comparator.comparingLong(SegmentStream::firstId)).get();
+        ArrowMemorySegment recovered = SegmentStream.recover(oldest, lastStoredId());
+        if (recovered != null) {
+            try {
+                SegmentFileChannel tempFile = storeSegment(recovered);
+                if (tempFile == null || publishSegment(recovered, tempFile) == null) {
+                    throw new IOException("Can't store the events recovered from "+oldest);
+                }
+                log.info("Recovered {} events from {}",recovered.rows(),oldest);
+            } finally {
+                recovered.close();
+            }
+        }
+        streams.forEach(SegmentManager::deleteQuietly);
     }
 
-    private Stream<ArrowFileSegment> storedSegments(boolean reverse){
-        return fsWatcher.folderContent(reverse)
-                .map(p -> {
-                    try {
-                        return this.fileSegments.get(p);
-                    } catch (ExecutionException e) {
-                        log.error("Error loading Segment from {}",p,e);
-                        return null;
-                    }
-                }).filter(c -> c != null);
+    //Last id of the newest stored segment, the WAL replay takes over after it
+    private long lastStoredId(){
+        SegmentManifest.Entry newest = manifest.last();
+        return newest == null ? Long.MIN_VALUE : newest.lastId;
     }
 
-    private TreeSet<ArrowFileSegment> sortedStoredSegments(){
-        TreeSet<ArrowFileSegment> segments = new TreeSet<>();
-        storedSegments(false).forEach(segments::add);
-        return segments;
+    private void deleteTempFiles() throws IOException {
+        try (Stream<Path> files = Files.list(segmentsFolder)) {
+            files.filter(p -> p.getFileName().toString().endsWith(".segment"+TEMP_SUFFIX))
+                    .forEach(SegmentManager::deleteQuietly);
+        }
+    }
+
+    private static void deleteQuietly(Path path){
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.error("Error deleting {}",path,e);
+        }
+    }
+
+    private synchronized void checkIdleRoll(){
+        try {
+            checkSwap();
+        } catch (Exception e) {
+            log.error("Error rolling idle memory segment",e);
+        }
+    }
+
+    //Readers may still be in the middle of a row of a swapped segment: close it a bit later
+    private void retire(ArrowMemorySegment segment){
+        retiredSegments.add(segment);
+        storageExecutor.schedule(() -> {
+            if (retiredSegments.remove(segment)) {
+                closeQuietly(segment);
+                memoryReleased();
+            }
+        }, RETIRED_SEGMENT_GRACE_MS, TimeUnit.MILLISECONDS);
     }
 
+    //Wakes up appends waiting for segment memory
+    private synchronized void memoryReleased(){
+        notifyAll();
+    }
+
+    private static void closeQuietly(BufferAllocator allocator){
+        //Batches still held by readers are released after the manager is closed, leave their allocator open
+        if (allocator.getAllocatedMemory() > 0) {
+            log.warn("{} still holds {} bytes at close", allocator.getName(), allocator.getAllocatedMemory());
+            return;
+        }
+        allocator.close();
+    }
+
+    private static void closeQuietly(ArrowSegment segment){
+        try {
+            segment.close();
+        } catch (IOException e) {
+            log.error("Error closing segment",e);
+        }
+    }
+
+    //Appends the WAL backlog batch after batch, the events copied from their records straight into the segment
+    private synchronized int reloadFromWal(List<EventView> firstBatch, Iterator<List<EventView>> batches){
+        log.info("Reloading WAL events");
+        int reloaded = 0;
+        for (List<EventView> batch = firstBatch; batch != null; batch = batches.hasNext() ? batches.next() : null) {
+            for (EventView e : batch) {
+                try {
+                    admit(false);
+                    reserve(() -> currentMemorySegment.reserve(e));
+                    currentMemorySegment.append(e);
+                    reloaded++;
+                    checkSwap();
+                } catch (Exception ex) {
+                    log.error("Error during WAL reload",ex);
+                }
+            }
+        }
+        log.info("Reloaded {} events from WAL",reloaded);
+        return reloaded;
+    }
+
+    //Stored segments come from the manifest, their files are opened when first read
     private TreeSet<ArrowSegment> availableSegments(){
         TreeSet<ArrowSegment> segments = new TreeSet<>();
-        segments.addAll(sortedStoredSegments());
-        segments.addAll(segmentStoreQueue.stream().toList());
+        manifest.entries().forEach(entry ->
+                segments.add(new StoredSegment(entry, manifest.path(entry), config.getReadMode(), batchCache)));
+        segmentStoreQueue.forEach(task -> segments.add(task.segment));
         segments.add(currentMemorySegment);
         return segments;
     }
 
-    private long getLastStoredTick(){
-        return storedSegments(true)
-                .mapToLong(c -> c.last())
-                .findFirst().orElse(0);
-    }
-
     public Iterator<EventAccessor> iterator(){
         //log.info("Iterator from {} segments", readerSegments.size());
         if (readerSegments.isEmpty()) {
             log.info("Segments are empty.");
             return new ArrayList<EventAccessor>().iterator();
         }
+        return iterator(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
 
-        return new Iterator<EventAccessor>() {
-            AtomicInteger segCount = new AtomicInteger(1);
-            EventIteratorFactory currentFactory = readerSegments.first();
-            Iterator<EventAccessor> current = currentFactory.newIterator();
+    /**
+     * Iterates the events with fromId <= id <= toId.
+     * Segments entirely outside the range are skipped using their first/last ids,
+     * and the first one is entered with a binary search instead of a scan.
+     * Close the iterator when it's left before its end.
+     */
+    public ChainedEventIterator iterator(long fromId, long toId){
+        return chain(firstFactory(fromId, toId), toId, f -> f.newIterator(fromId, toId));
+    }
 
-            @Override
-            public boolean hasNext() {
-                if (current.hasNext()) return true;
-                currentFactory = readerSegments.higher(currentFactory);
-                if (currentFactory != null){
-                    current = currentFactory.newIterator();
-                    segCount.incrementAndGet();
-                    return hasNext();
-                }else{
-                    //log.info("Traversed segments: {}",segCount.get());
-                    return false;
-                }
-            }
+    /**
+     * Iterates the events with the given key, in id order.
+     * Each segment resolves the matching rows through its key index, other rows are never read.
+     */
+    public ChainedEventIterator iteratorByKey(byte[] key){
+        EventIteratorFactory first = readerSegments.isEmpty() ? null : readerSegments.first();
+        return chain(first, Long.MAX_VALUE, f -> f.newIterator(key));
+    }
 
-            @Override
-            public EventAccessor next() {
-                return current.next();
-            }
-        };
+    /**
+     * Iterates the events accepted by the filter, in id order.
+     * The filter is evaluated on the segment vectors, rejected rows are never materialized;
+     * its id range and key hints are used to skip segments, seek, and go through the key index.
+     */
+    public ChainedEventIterator iterator(EventFilter filter){
+        return chain(firstFactory(filter.minId(), filter.maxId()), filter.maxId(), f -> f.newIterator(filter));
+    }
+
+    /**
+     * Exports the events with fromId <= id <= toId as an Arrow IPC stream, written as the caller
+     * pulls it with {@link ArrowExport#writeNext()}: record batches go out as they are, sliced to the range.
+     * The channel is left open, the export must be closed.
+     */
+    public ArrowExport exportArrow(long fromId, long toId, WritableByteChannel out){
+        return new ArrowExport(this, fromId, toId, out);
+    }
+
+    //Writes the whole export, returns the rows written
+    public long exportArrow(long fromId, long toId, OutputStream out) throws IOException {
+        try (ArrowExport export = exportArrow(fromId, toId, Channels.newChannel(out))) {
+            return export.writeAll();
+        }
+    }
+
+    public Stream<EventAccessor> stream(boolean parallel){
+        return stream(parallel, true);
+    }
+
+    /**
+     * Streams the events stored at the time of the call.
+     * Parallel streams split by segment, then by row ranges within a segment, and run on the
+     * common fork-join pool. Unordered streams let parallel pipelines skip encounter order.
+     * Accessors are reused across events: map them to values before collecting.
+     */
+    public Stream<EventAccessor> stream(boolean parallel, boolean ordered){
+        List<SegmentSpliterator.Slice> slices = new ArrayList<>();
+        for (EventIteratorFactory factory : readerSegments) {
+            int rows = factory.getSegment().rows();
+            if (rows > 0) slices.add(new SegmentSpliterator.Slice(factory, 0, rows));
+        }
+        return StreamSupport.stream(new SegmentSpliterator(slices, ordered), parallel);
+    }
+
+    //Walks the segments from the given one, until one starts after toId
+    private ChainedEventIterator chain(EventIteratorFactory first, long toId,
+                                       Function<EventIteratorFactory, EventIterator> open){
+        return new ChainedEventIterator(this, first, toId, open);
+    }
+
+    private EventIteratorFactory firstFactory(long fromId, long toId){
+        for (EventIteratorFactory factory : readerSegments) {
+            if (factory.first() > toId) return null;
+            if (factory.last() >= fromId) return factory;
+        }
+        return null;
     }
 
     @SneakyThrows
     public void close(){
+        this.appendOpen.set(false);
+        LockSupport.unpark(this.appendWriter);
+        this.appendWriter.join();
+        //Producers that published after the writer's last drain: those publishing later see it dead and fail their own
+        this.appendRing.drain(pending -> pending.future.completeExceptionally(
+                new EventAppendException("Segment manager is closed")), Integer.MAX_VALUE);
+        //Subscribers are completed before the segments they read go away
+        this.subscriptions.forEach(TailSubscription::complete);
+        this.tailExecutor.shutdown();
+        while(!this.tailExecutor.awaitTermination(100L, TimeUnit.MILLISECONDS));
+        //Segments being written are finished, queued ones are left to the WAL replay
+        this.flushOpen.set(false);
+        for (Thread flushThread : flushThreads) flushThread.join();
+        this.streamExecutor.shutdown();
+        while(!this.streamExecutor.awaitTermination(100L, TimeUnit.MILLISECONDS));
+        //Unsealed streams stay on disk, the recovery picks them up
+        if (this.currentStream != null) this.currentStream.close();
+        this.segmentStoreQueue.forEach(task -> {
+            if (task.stream != null) task.stream.close();
+        });
+        this.segmentStoreQueue.clear();
         this.storageExecutor.shutdown();
         while(!this.storageExecutor.awaitTermination(100L, TimeUnit.MILLISECONDS));
+        this.retiredSegments.forEach(SegmentManager::closeQuietly);
+        this.retiredSegments.clear();
+        //Drops their cached batches, and releases the memory of segments that weren't stored
+        this.readerSegments.stream()
+                .map(EventIteratorFactory::getSegment)
+                .filter(s -> s != currentMemorySegment)
+                .forEach(SegmentManager::closeQuietly);
         this.currentMemorySegment.close();
+        closeQuietly(this.segmentAllocator);
+        closeQuietly(this.cacheAllocator);
         this.walManager.close();
-        this.fsWatcher.close();
+        this.manifest.close();
     }
 
+    //Blocks while segment memory is at its limit, see SegmentManagerConfig.segmentMemoryLimit.
+    //Returns once the event is readable, it's committed within the max commit delay of the WAL, see Durability.ASYNC
     public synchronized void append(Event event) throws EventAppendException {
-        walManager.append(event);
-        currentMemorySegment.append(event);
+        write(event, null);
+    }
+
+    //Same, the future completes once the event is as durable as asked
+    public synchronized CompletableFuture<Void> append(Event event, Durability durability) throws EventAppendException {
+        return write(event, durability);
+    }
+
+    //No durability: nobody waits for the commit, there's no future to complete
+    private CompletableFuture<Void> write(Event event, Durability durability) throws EventAppendException {
+        CompletableFuture<Void> durable = null;
         try {
+            admit(true);
+            reserve(event);
+            if (durability == null) walManager.append(event);
+            else durable = walManager.append(event, durability);
+            currentMemorySegment.append(event);
             checkSwap();
+        } catch (EventAppendException e) {
+            throw e;
         } catch (Exception e) {
             throw new EventAppendException(e);
         }
+        notifySubscribers();
+        return durable;
+    }
+
+    /**
+     * Delivers the events with id >= fromId to the subscriber: the stored ones, then those
+     * appended from now on, as they are appended. Events are delivered in id order, with no gap
+     * and no duplicate across segment rolls, as far as the subscriber's demand goes: nothing is
+     * buffered for a subscriber that doesn't keep up. Signals come from the tail threads, see
+     * SegmentManagerConfig.tailThreads, and onComplete when the manager is closed.
+     */
+    public void subscribe(long fromId, Flow.Subscriber<? super Event> subscriber){
+        TailSubscription subscription = new TailSubscription(this, fromId, subscriber, tailExecutor);
+        subscriptions.add(subscription);
+        subscriber.onSubscribe(subscription);
+        if (!appendOpen.get()) subscription.complete();
+    }
+
+    //Same, with no demand limit: the consumer is called on a tail thread, until cancelled
+    public Flow.Subscription subscribe(long fromId, Consumer<? super Event> consumer){
+        CompletableFuture<Flow.Subscription> subscribed = new CompletableFuture<>();
+        subscribe(fromId, new Flow.Subscriber<Event>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscribed.complete(subscription);
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(Event item) {
+                consumer.accept(item);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                log.error("Subscription from {} failed", fromId, throwable);
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+        return subscribed.join();
+    }
+
+    void unsubscribe(TailSubscription subscription){
+        subscriptions.remove(subscription);
+    }
+
+    private void notifySubscribers(){
+        if (subscriptions.isEmpty()) return;
+        subscriptions.forEach(TailSubscription::signal);
+    }
+
+    //Reader segment holding id, or the first one after it
+    EventIteratorFactory readerSegmentFrom(long id){
+        return firstFactory(id, Long.MAX_VALUE);
+    }
+
+    EventIteratorFactory readerSegmentAfter(EventIteratorFactory factory){
+        return readerSegments.higher(factory);
+    }
+
+    /**
+     * Stored segments whose file no longer has the size and checksum it was published with, reading every file.
+     * Missing files are reported too.
+     */
+    public List<Path> verifyStoredSegments(){
+        List<Path> corrupted = new ArrayList<>();
+        for (SegmentManifest.Entry entry : manifest.entries()) {
+            Path file = manifest.path(entry);
+            try {
+                if (!entry.matches(file)) corrupted.add(file);
+            } catch (IOException e) {
+                log.error("Error verifying {}",file,e);
+                corrupted.add(file);
+            }
+        }
+        return corrupted;
+    }
+
+    /**
+     * Off-heap memory of the segments and of the batch cache: current, peak and limit.
+     */
+    public MemoryStats memoryStats(){
+        return new MemoryStats(new AllocatorStats(segmentAllocator), new AllocatorStats(cacheAllocator),
+                currentMemorySegment.allocatedBytes(), blockedAppends.get());
+    }
+
+    /**
+     * Depth of the store queue and lag of the flush threads behind the rolled segments.
+     */
+    public StoreStats storeStats(){
+        Map.Entry<Long, Long> oldest = unstoredSegments.firstEntry();
+        long lagMillis = oldest == null ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest.getValue());
+        return new StoreStats(segmentStoreQueue.size(), config.getStoreQueueDepth(), flushThreads.size(),
+                unstoredSegments.size(), lagMillis, TimeUnit.NANOSECONDS.toMillis(lastFlushNanos),
+                storedSegments.get(), sealedStreams.get(), throttledAppends.get(), rejectedAppends.get());
     }
 
+    /**
+     * Enqueues a batch of events for the group-commit writer.
+     * The returned future completes with the id of the last event once the whole batch
+     * has been written to the WAL and is as durable as the configured durability asks,
+     * or exceptionally if any event was rejected (events preceding the rejected one are still stored).
+     */
+    public CompletableFuture<Long> appendBatch(List<Event> events) {
+        return appendBatch(events, config.getDurability());
+    }
+
+    //Same, as durable as asked. Futures complete on the commit thread of the WAL, see CommitScheduler
+    public CompletableFuture<Long> appendBatch(List<Event> events, Durability durability) {
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        if (events.isEmpty()){
+            future.completeExceptionally(new EventAppendException("Empty batch"));
+            return future;
+        }
+        if (!appendOpen.get()){
+            future.completeExceptionally(new EventAppendException("Segment manager is closed"));
+            return future;
+        }
+        PendingAppend pending = new PendingAppend(events, durability, future);
+        while (!appendRing.offer(pending)){
+            if (!appendOpen.get()){
+                future.completeExceptionally(new EventAppendException("Segment manager is closed"));
+                return future;
+            }
+            //Ring is full: wait for the writer to catch up
+            LockSupport.unpark(appendWriter);
+            Thread.onSpinWait();
+        }
+        if (!appendOpen.get() && !appendWriter.isAlive()){
+            //Closed while enqueuing, nobody is left to drain the ring. Published while the writer was
+            //still alive, close() drains it
+            future.completeExceptionally(new EventAppendException("Segment manager is closed"));
+        }
+        LockSupport.unpark(appendWriter);
+        return future;
+    }
+
+    public CompletableFuture<Long> appendAsync(Event event) {
+        return appendBatch(List.of(event));
+    }
+
+    public CompletableFuture<Long> appendAsync(Event event, Durability durability) {
+        return appendBatch(List.of(event), durability);
+    }
+
+    private void drainAppends() {
+        final List<PendingAppend> batch = new ArrayList<>(MAX_APPEND_BATCH);
+        while (appendOpen.get() || !appendRing.isEmpty()) {
+            appendRing.drain(batch::add, MAX_APPEND_BATCH);
+            if (batch.isEmpty()) {
+                LockSupport.parkNanos(APPEND_IDLE_NANOS);
+                continue;
+            }
+            try {
+                writeBatch(batch);
+            } catch (Exception e) {
+                log.error("Error during batch append", e);
+                batch.forEach(p -> p.future.completeExceptionally(new EventAppendException(e)));
+            }
+            batch.clear();
+        }
+    }
+
+    private synchronized void writeBatch(List<PendingAppend> batch) {
+        //Producers race between picking an id and claiming a ring slot, restore id order where we can
+        batch.sort(Comparator.comparingLong(PendingAppend::firstId));
+        for (PendingAppend pending : batch) {
+            try {
+                //A commit covers every event appended before it: only the last one asks for it
+                CompletableFuture<Void> durable = null;
+                for (int i = 0; i < pending.events.size(); i++) {
+                    Event event = pending.events.get(i);
+                    admit(true);
+                    reserve(event);
+                    durable = walManager.append(event, i == pending.events.size() - 1 ? pending.durability : Durability.NONE);
+                    currentMemorySegment.append(event);
+                    checkSwap();
+                }
+                long lastId = pending.lastId();
+                durable.whenComplete((committed, error) -> {
+                    if (error == null) pending.future.complete(lastId);
+                    else pending.future.completeExceptionally(error instanceof EventAppendException ? error : new EventAppendException(error));
+                });
+            } catch (Exception e) {
+                pending.future.completeExceptionally(e instanceof EventAppendException ? e : new EventAppendException(e));
+            }
+        }
+        notifySubscribers();
+    }
+
+    //Rolls the segment if the policy says so and the store queue has room for it, the next append waits for it otherwise
     private void checkSwap() throws IOException, ExecutionException, InterruptedException {
-        //Check size && Roll if needed
-        if (currentMemorySegment.rows() >= MAX_MEMORY_EVENTS){
-            ArrowMemorySegment filledMemorySegment = currentMemorySegment;
-            currentMemorySegment = new ArrowMemorySegment();
-            segmentStoreQueue.put(filledMemorySegment);
-            readerSegments.add(new EventIteratorFactory(currentMemorySegment));
+        checkStream();
+        if (rollDue()) tryRoll();
+    }
+
+    //Hands the chunks the segment has moved past over to the stream writer
+    private void checkStream(){
+        SegmentStream stream = currentStream;
+        if (stream == null || !stream.hasFullChunks()) return;
+        stream.submittedChunks = currentMemorySegment.batchCount() - 1;
+        streamExecutor.execute(() -> writeStream(stream));
+    }
+
+    private void writeStream(SegmentStream stream){
+        try {
+            //Other WALs drop the segment at once when it's published: MvWal compacts on every removal
+            if (stream.writeFullChunks() && walManager.removesIncrementally()) removeStreamedFromWal(stream);
+        } catch (IOException | RuntimeException e) {
+            log.error("Error streaming {}, the segment will be stored at once",stream.file,e);
+        }
+    }
+
+    //Drops the synced events of the oldest segment not stored yet from the WAL. Newer segments wait for
+    //their turn: the WAL has to keep every event after the last stored one, and some WALs only drop prefixes
+    private void removeStreamedFromWal(SegmentStream stream){
+        synchronized (publishLock) {
+            if (publishedSequence != stream.sequence - 1) return;
+            long synced = stream.syncedLast;
+            if (synced <= stream.walRemovedLast) return;
+            walManager.remove(stream.segment.first(), synced);
+            stream.walRemovedLast = synced;
+        }
+    }
+
+    private void openMemorySegment(SegmentSizing sizing){
+        currentMemorySegment = new ArrowMemorySegment(sizing, segmentAllocator);
+        if (config.isStreamingFlush()) {
+            long sequence = rolledSequence + 1;
+            currentStream = new SegmentStream(currentMemorySegment, SegmentStream.streamFile(segmentsFolder, sequence),
+                    config.getCompression(), config.getBatchRows(), sequence);
+        }
+    }
+
+    private boolean rollDue(){
+        return currentMemorySegment.rows() > 0 &&
+                rollPolicy.shouldRoll(currentMemorySegment, System.currentTimeMillis());
+    }
+
+    private boolean tryRoll(){
+        ArrowMemorySegment filledMemorySegment = currentMemorySegment;
+        StoreTask task = new StoreTask(filledMemorySegment, currentStream, rolledSequence + 1, System.nanoTime());
+        unstoredSegments.put(task.sequence, task.rolledNanos);
+        if (!segmentStoreQueue.offer(task)) {
+            unstoredSegments.remove(task.sequence);
+            return false;
+        }
+        rolledSequence = task.sequence;
+        //The next segment is expected to fill up like this one did
+        openMemorySegment(SegmentSizing.of(filledMemorySegment));
+        readerSegments.add(new EventIteratorFactory(currentMemorySegment));
+        return true;
+    }
+
+    //Holds appends back while the segment is due to roll and the store queue has no room for it.
+    //The writer lock is released while waiting
+    private void admit(boolean mayReject) throws InterruptedException {
+        if (!rollDue() || tryRoll()) return;
+        if (mayReject && config.getStoreQueueFullPolicy() == StoreQueueFullPolicy.REJECT) {
+            rejectedAppends.incrementAndGet();
+            throw new EventAppendException("Store queue is full: "+storeStats());
+        }
+        throttledAppends.incrementAndGet();
+        log.warn("Store queue is full, appends are throttled: {}", storeStats());
+        long deadline = System.nanoTime() + config.getAppendBlockTimeout().toNanos();
+        while (rollDue() && !tryRoll()) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new EventAppendException("Store queue still full after "+config.getAppendBlockTimeout());
+            }
+            wait(MEMORY_WAIT_MS);
+        }
+    }
+
+    //Makes room for the event in the memory segment before it goes to the WAL. While the segment
+    //allocator is full, waits for rolled segments to be stored and released: the writer lock is
+    //released meanwhile, other writers block on the same wait
+    private void reserve(Event event) throws InterruptedException {
+        reserve(() -> currentMemorySegment.reserve(event));
+    }
+
+    //The reservation reads the current memory segment each time: it changes when rolled
+    private void reserve(Runnable reservation) throws InterruptedException {
+        long deadline = 0;
+        while (true) {
+            try {
+                reservation.run();
+                return;
+            } catch (OutOfMemoryException e) {
+                if (deadline == 0) {
+                    deadline = System.nanoTime() + config.getAppendBlockTimeout().toNanos();
+                    blockedAppends.incrementAndGet();
+                    log.warn("Segment memory is full, appends are blocked: {}", memoryStats());
+                } else if (System.nanoTime() - deadline > 0) {
+                    throw new EventAppendException("No segment memory released within "+config.getAppendBlockTimeout(), e);
+                }
+                //The segment appended to may be what fills the memory: roll it, so it's stored and released
+                if (currentMemorySegment.rows() == 0 || !tryRoll()) wait(MEMORY_WAIT_MS);
+            }
+        }
+    }
+
+    //Nothing known about the events yet but the roll limit
+    private SegmentSizing initialSizing(){
+        SegmentSizing defaults = SegmentSizing.DEFAULT;
+        return new SegmentSizing((int) Math.min(Integer.MAX_VALUE, config.getMaxMemoryEvents()),
+                defaults.getKeyBytes(), defaults.getMetadataBytes(), defaults.getDataBytes());
+    }
+
+    //Writes and syncs the segment to a temporary file, null on failure
+    private SegmentFileChannel storeSegment(final ArrowMemorySegment segment){
+        Path tempFile = Path.of(segmentsFolder.toString(),String.format("%d.segment%s",segment.first(),TEMP_SUFFIX));
+        log.info("Storing memory segment as {}",tempFile);
+        try {
+            SegmentFileChannel out = new SegmentFileChannel(tempFile);
+            segment.store(out, config.getCompression(), config.getBatchRows());
+            return out;
+        }catch(IOException e){
+            log.error("Error storing segment file {}",tempFile,e);
+            deleteQuietly(tempFile);
+            return null;
         }
     }
 
-    private ArrowFileSegment storeSegment(final ArrowMemorySegment segment) throws IOException {
+    //Moves the stored file in place, adds it to the manifest and drops the segment events from the WAL, null on failure
+    private Path publishSegment(final ArrowMemorySegment segment, SegmentFileChannel tempFile){
         long first = segment.first();
         long last = segment.last();
-        Path segmentFile = Path.of(segmentsFolder.toString(),String.format("%d.segment",first));
-        while (Files.exists(segmentFile)){
+        long name = first;
+        Path segmentFile = Path.of(segmentsFolder.toString(),String.format("%d.segment",name));
+        while (manifest.contains(segmentFile)){
             log.error("File {} already exists.. something's wrong here!",segmentFile);
-            first++;
-            segmentFile = Path.of(segmentsFolder.toString(),String.format("%d.segment",first));
+            name++;
+            segmentFile = Path.of(segmentsFolder.toString(),String.format("%d.segment",name));
         }
-        log.info("Storing memory segment as {}",segmentFile);
         try {
-            segment.store(segmentFile.toFile());
+            //A crash from here to the manifest entry leaves a file the manifest adds back at startup:
+            //a stream may have dropped its events from the WAL already. The move is synced for that
+            Files.move(tempFile.file, segmentFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            SegmentManifest.syncFolder(segmentsFolder);
             log.info("Stored memory segment as {}",segmentFile);
         }catch(IOException e){
-            log.error("Error storing segment file {}",segmentFile,e);
-            try{
-                Files.delete(segmentFile);
-            }catch (Exception de){
-                //Ignore
-            }
+            //Left in place: it may be a stream holding events already dropped from the WAL
+            log.error("Error moving {} to {}",tempFile.file,segmentFile,e);
+            return null;
+        }
+        try {
+            manifest.add(new SegmentManifest.Entry(segmentFile.getFileName().toString(), first, last, segment.rows(),
+                    tempFile.bytes(), tempFile.checksum()));
+        } catch (IOException e) {
+            //Stored again under the same name, or added back at startup if the process stops first
+            log.error("Error adding {} to the manifest",segmentFile,e);
             return null;
         }
         log.info("Removing WAL entries {}/{}",first,last);
         walManager.remove(first,last);
         log.info("Removed WAL entries {}/{}",first,last);
-        segment.close();
-        return new ArrowFileSegment(segmentFile.toFile());
+        return segmentFile;
+    }
+
+    //A rolled segment on its way to disk
+    static class StoreTask {
+        final ArrowMemorySegment segment;
+        //Null unless streaming
+        final SegmentStream stream;
+        //Roll order
+        final long sequence;
+        final long rolledNanos;
+
+        StoreTask(ArrowMemorySegment segment, SegmentStream stream, long sequence, long rolledNanos){
+            this.segment = segment;
+            this.stream = stream;
+            this.sequence = sequence;
+            this.rolledNanos = rolledNanos;
+        }
     }
 
+    static class PendingAppend {
+        final List<Event> events;
+        final Durability durability;
+        final CompletableFuture<Long> future;
+
+        PendingAppend(List<Event> events, Durability durability, CompletableFuture<Long> future){
+            this.events = events;
+            this.durability = durability;
+            this.future = future;
+        }
+
+        long firstId(){
+            return events.get(0).getId();
+        }
+
+        long lastId(){
+            return events.get(events.size()-1).getId();
+        }
+    }
 
 }
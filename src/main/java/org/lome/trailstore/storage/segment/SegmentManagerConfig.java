@@ -0,0 +1,101 @@
+package org.lome.trailstore.storage.segment;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+import org.lome.trailstore.storage.wal.Durability;
+
+import java.time.Duration;
+
+@Builder
+@Getter
+@ToString
+public class SegmentManagerConfig {
+
+    //How stored segments are read back, compressed segments are always copied
+    @Builder.Default
+    final SegmentReadMode readMode = SegmentReadMode.MMAP;
+
+    //Events held by the memory segment before it is rolled and stored
+    @Builder.Default
+    final long maxMemoryEvents = SegmentManager.MAX_MEMORY_EVENTS;
+
+    //Off-heap memory held by the memory segment before it is rolled, whichever limit comes first
+    @Builder.Default
+    final long maxMemoryBytes = SegmentManager.MAX_MEMORY_BYTES;
+
+    //Time since its first event after which the memory segment is rolled, even if it's idle.
+    //Bounds how much of the WAL is replayed on restart
+    @Builder.Default
+    final Duration maxSegmentAge = SegmentManager.MAX_SEGMENT_AGE;
+
+    //Rolls the memory segment on top of the limits above
+    @Builder.Default
+    final RollPolicy rollPolicy = RollPolicies.never();
+
+    //How often idle memory segments are checked against the roll policy
+    @Builder.Default
+    final Duration rollCheckInterval = SegmentManager.ROLL_CHECK_INTERVAL;
+
+    //Hard limit on the off-heap memory of memory segments, the one appended to and the rolled ones
+    //not stored yet. Appends block once it's reached, until stored segments release their memory
+    @Builder.Default
+    final long segmentMemoryLimit = Long.MAX_VALUE;
+
+    //How long an append waits for segment memory, or for room in the store queue, before it fails
+    @Builder.Default
+    final Duration appendBlockTimeout = SegmentManager.APPEND_BLOCK_TIMEOUT;
+
+    //Hard limit on the off-heap memory of batches loaded from stored segments, on top of batchCacheBytes.
+    //Reads fail once it's reached
+    @Builder.Default
+    final long cacheMemoryLimit = Long.MAX_VALUE;
+
+    //Rolled segments waiting for a flush thread. Once it's full, appends to a segment due to roll
+    //are throttled or rejected, see storeQueueFullPolicy
+    @Builder.Default
+    final int storeQueueDepth = SegmentManager.STORE_QUEUE_DEPTH;
+
+    @Builder.Default
+    final StoreQueueFullPolicy storeQueueFullPolicy = StoreQueueFullPolicy.BLOCK;
+
+    //Threads writing rolled segments to disk. Segments are written concurrently, and published in roll order
+    @Builder.Default
+    final int flushThreads = 1;
+
+    //Threads delivering events to subscribers, see SegmentManager.subscribe
+    @Builder.Default
+    final int tailThreads = SegmentManager.TAIL_THREADS;
+
+    //Writes the memory segment to disk a chunk at a time while it's appended to, dropping synced events
+    //from the WAL as it goes if it removes incrementally. Rolling then only writes the last chunk and the footer
+    @Builder.Default
+    final boolean streamingFlush = true;
+
+    //How durable the events of appendAsync and appendBatch are when their future completes, unless
+    //the append asks otherwise. See Durability
+    @Builder.Default
+    final Durability durability = Durability.SYNC;
+
+    //Body compression of stored segments
+    @Builder.Default
+    final SegmentCompression compression = SegmentCompression.NONE;
+
+    //Rows per record batch of stored segments, the unit readers load and the cache evicts
+    @Builder.Default
+    final int batchRows = SegmentFileWriter.DEFAULT_BATCH_ROWS;
+
+    //Memory held by the record batches loaded from stored segments
+    @Builder.Default
+    final long batchCacheBytes = BatchCache.DEFAULT_MAX_BYTES;
+
+    //The limits combined with the custom policy
+    public RollPolicy effectiveRollPolicy(){
+        return RollPolicies.any(RollPolicies.rows(maxMemoryEvents), RollPolicies.bytes(maxMemoryBytes),
+                RollPolicies.age(maxSegmentAge), rollPolicy);
+    }
+
+    public static SegmentManagerConfig defaults(){
+        return SegmentManagerConfig.builder().build();
+    }
+}
@@ -0,0 +1,258 @@
+package org.lome.trailstore.storage.segment;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+//Segments published in a folder: a line per segment appended to the manifest file, synced before the
+//WAL lets go of its events, and a map by first id in memory. Startup reads it instead of opening every
+//segment. Folders written before the manifest are scanned once to build it.
+//Segment files are moved in place before their line is written: those a crash left without one, or
+//with a torn one, are added back at startup. A streamed segment may have no other copy of its events.
+@Slf4j
+class SegmentManifest implements Closeable {
+
+    final static String MANIFEST_FILE = "segments.manifest";
+    final static int CHECKSUM_BUFFER_BYTES = 1 << 16;
+
+    final Path folder;
+    final NavigableMap<Long, Entry> entries = new ConcurrentSkipListMap<>();
+    final FileChannel channel;
+
+    private SegmentManifest(Path folder, List<Entry> entries) throws IOException {
+        this.folder = folder;
+        entries.forEach(entry -> this.entries.put(entry.firstId, entry));
+        this.channel = FileChannel.open(folder.resolve(MANIFEST_FILE), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    static SegmentManifest open(Path folder, String segmentPattern) throws IOException {
+        Path file = folder.resolve(MANIFEST_FILE);
+        List<Entry> entries = read(file);
+        if (entries == null) {
+            entries = scan(folder, segmentFiles(folder, segmentPattern));
+            write(folder, entries);
+        }
+        SegmentManifest manifest = new SegmentManifest(folder, entries);
+        try {
+            manifest.addUnlisted(segmentPattern);
+        } catch (IOException e) {
+            manifest.close();
+            throw e;
+        }
+        return manifest;
+    }
+
+    //Segment files moved in place after the newest entry, whose line a crash kept from being written
+    private void addUnlisted(String segmentPattern) throws IOException {
+        Entry last = last();
+        List<Path> unlisted = segmentFiles(folder, segmentPattern).stream()
+                .filter(file -> !contains(file))
+                .collect(Collectors.toList());
+        for (Entry entry : scan(folder, unlisted)) {
+            if (last != null && entry.firstId <= last.lastId) {
+                log.warn("Segment file {} overlaps the manifest, leaving it out", entry.file);
+                continue;
+            }
+            log.warn("Adding segment file {} missing from the manifest", entry.file);
+            add(entry);
+            last = entry;
+        }
+    }
+
+    private static List<Path> segmentFiles(Path folder, String segmentPattern) throws IOException {
+        try (Stream<Path> list = Files.list(folder)) {
+            return list.filter(p -> p.getFileName().toString().toUpperCase().matches(segmentPattern))
+                    .sorted(Comparator.comparingLong(p -> Long.parseLong(p.getFileName().toString().split("\\.")[0])))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    //Null when there is no usable manifest. A torn last line is truncated away
+    private static List<Entry> read(Path file) throws IOException {
+        byte[] content;
+        try {
+            content = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        List<Entry> entries = new ArrayList<>();
+        int start = 0;
+        while (start < content.length) {
+            int end = start;
+            while (end < content.length && content[end] != '\n') end++;
+            Entry entry = end < content.length ? Entry.parse(new String(content, start, end - start, StandardCharsets.UTF_8)) : null;
+            if (entry == null) {
+                if (end < content.length - 1) {
+                    log.warn("Corrupted manifest {} at byte {}, rebuilding it from the segment files", file, start);
+                    return null;
+                }
+                log.warn("Dropping the torn last line of {}", file);
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    channel.truncate(start);
+                    channel.force(true);
+                }
+                break;
+            }
+            entries.add(entry);
+            start = end + 1;
+        }
+        return entries;
+    }
+
+    //Opens the given segment files, every one of the folder when there is no manifest yet
+    private static List<Entry> scan(Path folder, List<Path> files) throws IOException {
+        if (files.isEmpty()) return new ArrayList<>();
+        log.info("Reading {} segment files missing from the manifest of {}", files.size(), folder);
+        List<Entry> entries = new ArrayList<>();
+        for (Path file : files) {
+            try (ArrowFileSegment segment = new ArrowFileSegment(file.toFile(), SegmentReadMode.COPY, new BatchCache(0))) {
+                if (segment.rows() > 0) entries.add(Entry.of(file, segment.first(), segment.last(), segment.rows()));
+            }
+        }
+        return entries;
+    }
+
+    //Replaces the manifest at once: the previous one stays in place until the new one is synced
+    private static void write(Path folder, List<Entry> entries) throws IOException {
+        Path tempFile = folder.resolve(MANIFEST_FILE + SegmentManager.TEMP_SUFFIX);
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (Entry entry : entries) write(channel, entry);
+            channel.force(true);
+        }
+        Files.move(tempFile, folder.resolve(MANIFEST_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void write(FileChannel channel, Entry entry) throws IOException {
+        ByteBuffer line = ByteBuffer.wrap((entry.line() + "\n").getBytes(StandardCharsets.UTF_8));
+        while (line.hasRemaining()) channel.write(line);
+    }
+
+    //Makes the files moved in or out of the folder durable
+    static void syncFolder(Path folder) throws IOException {
+        try (FileChannel channel = FileChannel.open(folder, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    //Appends and syncs the entry of a segment just moved in place
+    synchronized void add(Entry entry) throws IOException {
+        write(channel, entry);
+        channel.force(true);
+        entries.put(entry.firstId, entry);
+    }
+
+    boolean contains(Path segmentFile){
+        String name = segmentFile.getFileName().toString();
+        return entries.values().stream().anyMatch(entry -> entry.file.equals(name));
+    }
+
+    //Newest segment, null if none was stored yet
+    Entry last(){
+        Map.Entry<Long, Entry> last = entries.lastEntry();
+        return last == null ? null : last.getValue();
+    }
+
+    //In id order
+    Collection<Entry> entries(){
+        return entries.values();
+    }
+
+    Path path(Entry entry){
+        return folder.resolve(entry.file);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    static int checksum(Path file) throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CHECKSUM_BUFFER_BYTES);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer.clear()) >= 0) crc.update(buffer.flip());
+        }
+        return (int) crc.getValue();
+    }
+
+    //A line of the manifest: first and last id, rows, file size and CRC32C, file name, CRC32C of the line
+    static class Entry {
+
+        final String file;
+        final long firstId;
+        final long lastId;
+        final int rows;
+        final long bytes;
+        final int checksum;
+
+        Entry(String file, long firstId, long lastId, int rows, long bytes, int checksum){
+            this.file = file;
+            this.firstId = firstId;
+            this.lastId = lastId;
+            this.rows = rows;
+            this.bytes = bytes;
+            this.checksum = checksum;
+        }
+
+        static Entry of(Path file, long firstId, long lastId, int rows) throws IOException {
+            return new Entry(file.getFileName().toString(), firstId, lastId, rows, Files.size(file), checksum(file));
+        }
+
+        //True if the file still has the size and checksum it was published with
+        boolean matches(Path file) throws IOException {
+            return Files.size(file) == bytes && checksum(file) == checksum;
+        }
+
+        String line(){
+            String fields = firstId + " " + lastId + " " + rows + " " + bytes + " " + Integer.toHexString(checksum) + " " + file;
+            return fields + " " + Integer.toHexString(lineChecksum(fields));
+        }
+
+        //Null if the line is torn or corrupted
+        static Entry parse(String line){
+            int split = line.lastIndexOf(' ');
+            if (split < 0) return null;
+            String fields = line.substring(0, split);
+            try {
+                if (Integer.parseUnsignedInt(line.substring(split + 1), 16) != lineChecksum(fields)) return null;
+                String[] values = fields.split(" ");
+                if (values.length != 6) return null;
+                return new Entry(values[5], Long.parseLong(values[0]), Long.parseLong(values[1]), Integer.parseInt(values[2]),
+                        Long.parseLong(values[3]), Integer.parseUnsignedInt(values[4], 16));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        private static int lineChecksum(String fields){
+            CRC32C crc = new CRC32C();
+            crc.update(fields.getBytes(StandardCharsets.UTF_8));
+            return (int) crc.getValue();
+        }
+
+        @Override
+        public String toString() {
+            return file + "[" + firstId + ", " + lastId + "]";
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package org.lome.trailstore.storage.segment;
+
+public enum SegmentReadMode {
+    //Record batches are read into buffers allocated from the allocator of the BatchCache
+    COPY,
+    //The segment file is memory mapped and vectors point straight into the mapping,
+    //the OS page cache holds the data
+    MMAP
+}
@@ -0,0 +1,59 @@
+package org.lome.trailstore.storage.segment;
+
+import lombok.Getter;
+import lombok.ToString;
+import org.lome.trailstore.model.EventView;
+
+import java.util.List;
+
+//Expected shape of a memory segment: how many rows it will take before being rolled,
+//and the average size of their values. Chunks are allocated after it, so a segment
+//sized right never has to grow or guess.
+@Getter
+@ToString
+public class SegmentSizing {
+
+    public final static SegmentSizing DEFAULT = new SegmentSizing(ArrowMemorySegment.MIN_CHUNK_ROWS,
+            ArrowMemorySegment.DEFAULT_KEY_BYTES, ArrowMemorySegment.DEFAULT_METADATA_BYTES,
+            ArrowMemorySegment.DEFAULT_DATA_BYTES);
+
+    final int expectedRows;
+    //Average bytes per value
+    final int keyBytes;
+    final int metadataBytes;
+    final int dataBytes;
+
+    public SegmentSizing(int expectedRows, int keyBytes, int metadataBytes, int dataBytes){
+        this.expectedRows = expectedRows;
+        this.keyBytes = keyBytes;
+        this.metadataBytes = metadataBytes;
+        this.dataBytes = dataBytes;
+    }
+
+    //Expects the next segment to look like the given one, which has just been rolled
+    public static SegmentSizing of(ArrowMemorySegment segment){
+        int rows = segment.rows();
+        if (rows == 0) return DEFAULT;
+        return new SegmentSizing(rows,
+                average(segment.keyBytes(), rows),
+                average(segment.metadataBytes(), rows),
+                average(segment.dataBytes(), rows));
+    }
+
+    //Expects rows like the given ones, a sample of those about to be appended
+    public static SegmentSizing of(List<EventView> sample, int expectedRows){
+        if (sample.isEmpty()) return DEFAULT;
+        long keyBytes = 0, metadataBytes = 0, dataBytes = 0;
+        for (EventView event : sample) {
+            keyBytes += event.keyLength();
+            metadataBytes += event.metadataLength();
+            dataBytes += event.dataLength();
+        }
+        int rows = sample.size();
+        return new SegmentSizing(expectedRows, average(keyBytes, rows), average(metadataBytes, rows), average(dataBytes, rows));
+    }
+
+    private static int average(long bytes, int rows){
+        return (int) Math.min(Integer.MAX_VALUE, (bytes + rows - 1) / rows);
+    }
+}
@@ -0,0 +1,102 @@
+package org.lome.trailstore.storage.segment;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+//Splits a scan by segment first, then by row ranges within a single segment.
+//Row ranges are read through id bounded iterators of the segment factory, so a split
+//keeps working when its memory segment is swapped for the stored file.
+class SegmentSpliterator implements Spliterator<EventAccessor> {
+
+    final static int MIN_SPLIT_ROWS = 4096;
+
+    final List<Slice> slices;
+    final boolean ordered;
+    int next;
+    EventIterator current;
+
+    SegmentSpliterator(List<Slice> slices, boolean ordered){
+        this.slices = slices;
+        this.ordered = ordered;
+        this.next = 0;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super EventAccessor> action) {
+        while (true) {
+            if (current != null && current.hasNext()) {
+                action.accept(current.next());
+                return true;
+            }
+            if (next >= slices.size()) return false;
+            current = slices.get(next++).open();
+        }
+    }
+
+    @Override
+    public Spliterator<EventAccessor> trySplit() {
+        //Only split what hasn't been started yet
+        if (current != null) return null;
+        int remaining = slices.size() - next;
+        if (remaining > 1) {
+            //Halve by rows, segments may have very different sizes
+            long half = estimateSize() / 2;
+            long rows = 0;
+            int at = next;
+            while (at < slices.size() - 1 && rows + slices.get(at).rows() <= half) {
+                rows += slices.get(at++).rows();
+            }
+            if (at == next) at++;
+            List<Slice> prefix = new ArrayList<>(slices.subList(next, at));
+            next = at;
+            return new SegmentSpliterator(prefix, ordered);
+        }
+        if (remaining == 1) {
+            Slice slice = slices.get(next);
+            if (slice.rows() < 2 * MIN_SPLIT_ROWS) return null;
+            int middle = slice.fromRow + slice.rows() / 2;
+            slices.set(next, new Slice(slice.factory, middle, slice.toRow));
+            List<Slice> prefix = new ArrayList<>();
+            prefix.add(new Slice(slice.factory, slice.fromRow, middle));
+            return new SegmentSpliterator(prefix, ordered);
+        }
+        return null;
+    }
+
+    @Override
+    public long estimateSize() {
+        long rows = 0;
+        for (int i = next; i < slices.size(); i++) rows += slices.get(i).rows();
+        return rows;
+    }
+
+    @Override
+    public int characteristics() {
+        int characteristics = NONNULL | SIZED | SUBSIZED;
+        return ordered ? characteristics | ORDERED : characteristics;
+    }
+
+    //Rows [fromRow, toRow) of a segment
+    static class Slice {
+        final EventIteratorFactory factory;
+        final int fromRow;
+        final int toRow;
+
+        Slice(EventIteratorFactory factory, int fromRow, int toRow){
+            this.factory = factory;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+        }
+
+        int rows(){
+            return toRow - fromRow;
+        }
+
+        EventIterator open(){
+            ArrowSegment segment = factory.getSegment();
+            return factory.newIterator(segment.id(fromRow), segment.id(toRow - 1));
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package org.lome.trailstore.storage.segment;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.arrow.compression.CommonsCompressionFactory;
+import org.apache.arrow.vector.BigIntVector;
+import org.apache.arrow.vector.VarBinaryVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.dictionary.DictionaryProvider;
+import org.apache.arrow.vector.ipc.ArrowStreamReader;
+import org.lome.trailstore.model.Event;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a memory segment to its file while it's still being appended to. Chunks are written
+ * as record batches, and synced, as soon as the writer moves past them: by the time the segment
+ * is rolled most of it is on disk, and sealing only writes the last chunk and the footer.
+ * The file is a valid Arrow stream up to its last complete batch, see {@link #recover}.
+ */
+@Slf4j
+class SegmentStream implements Closeable {
+
+    //Arrow file magic and padding, the stream messages follow
+    final static int FILE_HEADER_BYTES = 8;
+
+    final ArrowMemorySegment segment;
+    final Path file;
+    final SegmentCompression compression;
+    final int batchRows;
+    //Roll order of the segment
+    final long sequence;
+    //Filled in when sealing, the writer reads it when it writes the footer
+    final Map<String,String> footer = new HashMap<>();
+    SegmentFileChannel out;
+    SegmentFileWriter writer;
+    int writtenChunks;
+    //Id of the last event synced to the file, Long.MIN_VALUE before the first chunk
+    volatile long syncedLast = Long.MIN_VALUE;
+    //Writer side: chunks handed over for writing
+    int submittedChunks;
+    //Last id already dropped from the WAL, guarded by the publish lock of the manager
+    long walRemovedLast = Long.MIN_VALUE;
+    volatile boolean failed;
+    boolean sealed;
+
+    SegmentStream(ArrowMemorySegment segment, Path file, SegmentCompression compression, int batchRows, long sequence){
+        this.segment = segment;
+        this.file = file;
+        this.compression = compression;
+        this.batchRows = batchRows;
+        this.sequence = sequence;
+    }
+
+    //Writer side: true once the segment has moved past chunks not handed over yet
+    boolean hasFullChunks(){
+        return segment.batchCount() - 1 > submittedChunks;
+    }
+
+    //Writes and syncs the chunks the segment has moved past. True if any was written
+    synchronized boolean writeFullChunks() throws IOException {
+        if (sealed || failed) return false;
+        MemoryChunk[] chunks = segment.chunks;
+        return write(chunks, chunks.length - 1);
+    }
+
+    //Writes the remaining rows and the footer: the segment must not be appended to anymore.
+    //The closed channel has the size and checksum of the file
+    synchronized SegmentFileChannel seal() throws IOException {
+        if (failed || sealed) throw new IOException("Stream "+file+" can't be sealed anymore");
+        MemoryChunk[] chunks = segment.chunks;
+        write(chunks, chunks.length);
+        try {
+            footer.putAll(SegmentFooter.of(segment, Arrays.asList(chunks), compression, batchRows).metadata);
+            //Closing the writer closes the channel too, the footer is synced in between
+            writer.end();
+            out.force(true);
+            writer.close();
+            out.close();
+        } catch (IOException | RuntimeException e) {
+            failed = true;
+            throw e;
+        }
+        sealed = true;
+        return out;
+    }
+
+    private boolean write(MemoryChunk[] chunks, int upTo) throws IOException {
+        if (writtenChunks >= upTo) return false;
+        try {
+            if (writer == null) {
+                out = new SegmentFileChannel(file);
+                writer = new SegmentFileWriter(List.of(chunks[0]), new DictionaryProvider.MapDictionaryProvider(),
+                        out, footer, compression, batchRows);
+                writer.start();
+            }
+            long last = syncedLast;
+            for (; writtenChunks < upTo; writtenChunks++) {
+                MemoryChunk chunk = chunks[writtenChunks];
+                writer.writeChunk(chunk);
+                int rows = chunk.rows();
+                if (rows > 0) last = chunk.idVector.get(rows - 1);
+            }
+            out.force(false);
+            syncedLast = last;
+            return true;
+        } catch (IOException | RuntimeException e) {
+            failed = true;
+            throw e;
+        }
+    }
+
+    //Stops writing, the file stays for recovery: its synced events may be gone from the WAL
+    @Override
+    public synchronized void close(){
+        if (sealed || out == null) return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            log.error("Error closing {}",file,e);
+        }
+        sealed = true;
+    }
+
+    /**
+     * Reads the complete record batches of an unsealed stream file into a memory segment,
+     * skipping events up to the given id. Null if nothing is left.
+     */
+    static ArrowMemorySegment recover(Path file, long after) throws IOException {
+        ArrowMemorySegment recovered = new ArrowMemorySegment();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() <= FILE_HEADER_BYTES) return null;
+            channel.position(FILE_HEADER_BYTES);
+            try (ArrowStreamReader reader = new ArrowStreamReader(channel, ArrowSegment.ROOT_ALLOCATOR,
+                    CommonsCompressionFactory.INSTANCE)) {
+                VectorSchemaRoot root = reader.getVectorSchemaRoot();
+                while (loadNext(reader, file)) {
+                    BigIntVector ids = (BigIntVector) root.getVector(0);
+                    VarBinaryVector keys = (VarBinaryVector) root.getVector(1);
+                    VarBinaryVector metadata = (VarBinaryVector) root.getVector(2);
+                    VarBinaryVector data = (VarBinaryVector) root.getVector(3);
+                    for (int row = 0; row < root.getRowCount(); row++) {
+                        if (ids.get(row) <= after) continue;
+                        recovered.append(new Event(ids.get(row), keys.get(row), metadata.get(row), data.get(row)));
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            recovered.close();
+            throw e;
+        }
+        if (recovered.rows() > 0) return recovered;
+        recovered.close();
+        return null;
+    }
+
+    //A torn batch at the end of the file ends it
+    private static boolean loadNext(ArrowStreamReader reader, Path file){
+        try {
+            return reader.loadNextBatch();
+        } catch (IOException | RuntimeException e) {
+            log.warn("Stream file {} ends with an incomplete batch",file);
+            return false;
+        }
+    }
+
+    static boolean isStreamFile(Path path){
+        String name = path.getFileName().toString();
+        return name.startsWith("stream-") && name.endsWith(".segment"+SegmentManager.TEMP_SUFFIX);
+    }
+
+    static Path streamFile(Path folder, long sequence){
+        return folder.resolve(String.format("stream-%d-%d.segment%s", System.currentTimeMillis(), sequence,
+                SegmentManager.TEMP_SUFFIX));
+    }
+
+    //The first id of a stream file, Long.MAX_VALUE if it holds no complete batch
+    static long firstId(Path file){
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() <= FILE_HEADER_BYTES) return Long.MAX_VALUE;
+            channel.position(FILE_HEADER_BYTES);
+            try (ArrowStreamReader reader = new ArrowStreamReader(channel, ArrowSegment.ROOT_ALLOCATOR,
+                    CommonsCompressionFactory.INSTANCE)) {
+                if (!loadNext(reader, file) || reader.getVectorSchemaRoot().getRowCount() == 0) return Long.MAX_VALUE;
+                return ((BigIntVector) reader.getVectorSchemaRoot().getVector(0)).get(0);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Unreadable stream file {}",file,e);
+            return Long.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.lome.trailstore.storage.segment;
+
+import org.apache.arrow.vector.BigIntVector;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Base64;
+import java.util.Map;
+import java.util.function.IntToLongFunction;
+
+//Every stride-th id of a segment. Ids are monotonic, so the samples narrow a seek down
+//to a single stride before the id vector has to be looked at.
+public class SparseIdIndex {
+
+    final static int DEFAULT_STRIDE = 4096;
+
+    final long[] samples;
+    final int stride;
+
+    SparseIdIndex(long[] samples, int stride){
+        this.samples = samples;
+        this.stride = stride;
+    }
+
+    public static SparseIdIndex build(BigIntVector ids, int rows){
+        return build(ids, rows, DEFAULT_STRIDE);
+    }
+
+    public static SparseIdIndex build(BigIntVector ids, int rows, int stride){
+        return build(ids::get, rows, stride);
+    }
+
+    public static SparseIdIndex build(IntToLongFunction ids, int rows, int stride){
+        long[] samples = new long[(rows + stride - 1) / stride];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = ids.applyAsLong(i * stride);
+        }
+        return new SparseIdIndex(samples, stride);
+    }
+
+    //First row holding an id >= the given one, rows if there is none
+    public int lowerBound(IntToLongFunction ids, int rows, long id){
+        //Samples strictly below the id
+        int below = lowerBound(samples, id);
+        if (below == 0) return 0;
+        int from = (below - 1) * stride + 1;
+        int to = Math.min(below * stride, rows);
+        return lowerBound(ids, id, from, to);
+    }
+
+    //First row in [from, to) holding an id >= the given one, to if there is none
+    public static int lowerBound(BigIntVector ids, long id, int from, int to){
+        return lowerBound(ids::get, id, from, to);
+    }
+
+    //Same over ids looked up by row, e.g. across the batches of a segment
+    public static int lowerBound(IntToLongFunction ids, long id, int from, int to){
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (ids.applyAsLong(middle) < id) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    static int lowerBound(long[] values, long id){
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] < id) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    public int stride(){
+        return stride;
+    }
+
+    public int size(){
+        return samples.length;
+    }
+
+    void writeTo(Map<String,String> metadata){
+        ByteBuffer buffer = ByteBuffer.allocate(samples.length * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (long sample : samples) buffer.putLong(sample);
+        metadata.put(SegmentFooter.SPARSE_INDEX_STRIDE, Integer.toString(stride));
+        metadata.put(SegmentFooter.SPARSE_INDEX, Base64.getEncoder().encodeToString(buffer.array()));
+    }
+
+    static SparseIdIndex readFrom(Map<String,String> metadata){
+        String stride = metadata.get(SegmentFooter.SPARSE_INDEX_STRIDE);
+        String encoded = metadata.get(SegmentFooter.SPARSE_INDEX);
+        if (stride == null || encoded == null) return null;
+        ByteBuffer buffer = ByteBuffer.wrap(Base64.getDecoder().decode(encoded)).order(ByteOrder.LITTLE_ENDIAN);
+        long[] samples = new long[buffer.remaining() / Long.BYTES];
+        for (int i = 0; i < samples.length; i++) samples[i] = buffer.getLong();
+        return new SparseIdIndex(samples, Integer.parseInt(stride));
+    }
+}
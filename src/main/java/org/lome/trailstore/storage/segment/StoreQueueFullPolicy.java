@@ -0,0 +1,9 @@
+package org.lome.trailstore.storage.segment;
+
+//What appends do when the memory segment is due to roll and the store queue has no room for it
+public enum StoreQueueFullPolicy {
+    //Wait for a flush thread to take a segment, up to the append block timeout
+    BLOCK,
+    //Fail right away with an EventAppendException
+    REJECT
+}
@@ -0,0 +1,41 @@
+package org.lome.trailstore.storage.segment;
+
+import lombok.Getter;
+import lombok.ToString;
+
+//State of the flush pipeline of a SegmentManager: rolled segments on their way to disk
+@Getter
+@ToString
+public class StoreStats {
+
+    //Rolled segments waiting for a flush thread, and how many the queue takes
+    final int queueDepth;
+    final int queueCapacity;
+    final int flushThreads;
+    //Rolled segments not stored yet: queued, being written, or waiting for the ones rolled before them
+    final int unstored;
+    //Time since the oldest of them was rolled, 0 when there are none
+    final long flushLagMillis;
+    //Time the latest stored segment took from roll to readers reading its file
+    final long lastFlushMillis;
+    final long storedSegments;
+    //Stored segments published by sealing their stream, the others were written at once
+    final long sealedStreams;
+    //Appends held back, or failed, because the queue was full
+    final long throttledAppends;
+    final long rejectedAppends;
+
+    StoreStats(int queueDepth, int queueCapacity, int flushThreads, int unstored, long flushLagMillis,
+               long lastFlushMillis, long storedSegments, long sealedStreams, long throttledAppends, long rejectedAppends){
+        this.queueDepth = queueDepth;
+        this.queueCapacity = queueCapacity;
+        this.flushThreads = flushThreads;
+        this.unstored = unstored;
+        this.flushLagMillis = flushLagMillis;
+        this.lastFlushMillis = lastFlushMillis;
+        this.storedSegments = storedSegments;
+        this.sealedStreams = sealedStreams;
+        this.throttledAppends = throttledAppends;
+        this.rejectedAppends = rejectedAppends;
+    }
+}
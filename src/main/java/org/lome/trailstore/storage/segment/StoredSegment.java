@@ -0,0 +1,97 @@
+package org.lome.trailstore.storage.segment;
+
+import org.roaringbitmap.RoaringBitmap;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+
+//A segment of the manifest: ids and rows come from its entry, the file is only opened on the first read.
+//Stays open afterwards, like the segments swapped in by the flush threads
+class StoredSegment implements ArrowSegment {
+
+    final SegmentManifest.Entry entry;
+    final Path file;
+    final SegmentReadMode readMode;
+    final BatchCache cache;
+    volatile ArrowFileSegment segment;
+
+    StoredSegment(SegmentManifest.Entry entry, Path file, SegmentReadMode readMode, BatchCache cache){
+        this.entry = entry;
+        this.file = file;
+        this.readMode = readMode;
+        this.cache = cache;
+    }
+
+    private ArrowFileSegment segment(){
+        ArrowFileSegment segment = this.segment;
+        if (segment != null) return segment;
+        synchronized (this) {
+            if (this.segment == null) {
+                try {
+                    this.segment = new ArrowFileSegment(file.toFile(), readMode, cache);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Error opening segment " + file, e);
+                }
+            }
+            return this.segment;
+        }
+    }
+
+    @Override
+    public int rows(){
+        return entry.rows;
+    }
+
+    @Override
+    public long first(){
+        return entry.firstId;
+    }
+
+    @Override
+    public long last(){
+        return entry.lastId;
+    }
+
+    @Override
+    public EventIterator iterator(){
+        return new EventIterator(this);
+    }
+
+    @Override
+    public int batchCount(){
+        return segment().batchCount();
+    }
+
+    @Override
+    public int batchOf(int row){
+        return segment().batchOf(row);
+    }
+
+    @Override
+    public SegmentBatch batch(int index){
+        return segment().batch(index);
+    }
+
+    @Override
+    public int seek(long id){
+        if (id <= entry.firstId) return 0;
+        if (id > entry.lastId) return entry.rows;
+        return segment().seek(id);
+    }
+
+    @Override
+    public RoaringBitmap rowsByKey(byte[] key){
+        return segment().rowsByKey(key);
+    }
+
+    @Override
+    public String toString() {
+        return "StoredSegment{" + file + "}";
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (segment != null) segment.close();
+    }
+}
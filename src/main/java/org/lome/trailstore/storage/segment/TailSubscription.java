@@ -0,0 +1,148 @@
+package org.lome.trailstore.storage.segment;
+
+import lombok.extern.slf4j.Slf4j;
+import org.lome.trailstore.model.Event;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers the events of a store from a given id on, stored ones first, then those appended
+ * after the subscription. Nothing is buffered: each drain reads the reader segments from the
+ * last delivered id, as far as the subscriber's demand goes, so a slow subscriber only falls
+ * behind. Rolls and flushes don't matter, ids are contiguous across segments and readers
+ * follow a memory segment onto the file it is stored to.
+ * Drains run on the tail executor of the manager, a few batches at a time so that busy
+ * subscribers don't hold its threads; signals to a subscriber never overlap.
+ */
+@Slf4j
+class TailSubscription implements Flow.Subscription {
+
+    //Events delivered before a drain yields its thread to other subscriptions
+    final static int DRAIN_BATCH = 1024;
+
+    final SegmentManager manager;
+    final Flow.Subscriber<? super Event> subscriber;
+    final Executor executor;
+    final AtomicLong demand = new AtomicLong();
+    //Signals since the running drain started, it runs again until none is left
+    final AtomicInteger pendingSignals = new AtomicInteger();
+    //Drain side: id of the next event to deliver, and the reader segment it's expected in.
+    //Reader segments are never dropped, stored ones just change source
+    long nextId;
+    EventIteratorFactory position;
+    volatile boolean cancelled;
+    volatile boolean completing;
+    //Sent by the drain with onError instead of further events, e.g. an invalid request
+    volatile Throwable failure;
+    //Drain side: onComplete or onError sent
+    boolean terminated;
+
+    TailSubscription(SegmentManager manager, long fromId, Flow.Subscriber<? super Event> subscriber, Executor executor){
+        this.manager = manager;
+        this.nextId = fromId;
+        this.subscriber = subscriber;
+        this.executor = executor;
+    }
+
+    @Override
+    public void request(long n) {
+        if (n <= 0) {
+            failure = new IllegalArgumentException("Non positive request: "+n);
+            signal();
+            return;
+        }
+        demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+        signal();
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+        manager.unsubscribe(this);
+    }
+
+    //New events, more demand, or the store closing
+    void signal(){
+        if (pendingSignals.getAndIncrement() == 0) schedule();
+    }
+
+    //Sends onComplete once the running drain is over, events still undelivered are left in the store
+    void complete(){
+        completing = true;
+        signal();
+    }
+
+    private void schedule(){
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            //The store is closing, and no drain is running: complete on this thread
+            drain();
+        }
+    }
+
+    private void drain(){
+        int missed = pendingSignals.get();
+        while (true) {
+            if (!cancelled && !terminated && deliver()) {
+                //More is readable: leave the thread to others, signals keep counting meanwhile
+                schedule();
+                return;
+            }
+            missed = pendingSignals.addAndGet(-missed);
+            if (missed == 0) return;
+        }
+    }
+
+    //True if the batch filled up before the readable events ran out
+    private boolean deliver(){
+        if (failure != null || completing) {
+            terminate(failure);
+            return false;
+        }
+        int delivered = 0;
+        try {
+            if (position == null) position = manager.readerSegmentFrom(nextId);
+            EventIteratorFactory factory = position;
+            while (factory != null) {
+                position = factory;
+                try (EventIterator iterator = factory.newIterator(nextId, Long.MAX_VALUE)) {
+                    while (true) {
+                        if (cancelled || completing || failure != null || demand.get() == 0) return false;
+                        if (delivered == DRAIN_BATCH) return true;
+                        if (!iterator.hasNext()) break;
+                        EventAccessor accessor = iterator.next();
+                        Event event = new Event(accessor.getId(), accessor.getKey(), accessor.getMetadata(), accessor.getData());
+                        nextId = event.getId() + 1;
+                        //Long.MAX_VALUE is unbounded demand, it never runs out
+                        demand.getAndUpdate(d -> d == Long.MAX_VALUE ? d : d - 1);
+                        delivered++;
+                        subscriber.onNext(event);
+                    }
+                }
+                factory = manager.readerSegmentAfter(factory);
+            }
+        } catch (IOException | RuntimeException e) {
+            terminate(e);
+        }
+        return false;
+    }
+
+    private void terminate(Throwable error){
+        if (terminated) return;
+        terminated = true;
+        manager.unsubscribe(this);
+        if (cancelled) return;
+        try {
+            if (error == null) subscriber.onComplete();
+            else subscriber.onError(error);
+        } catch (RuntimeException e) {
+            log.error("Error from subscriber {}", subscriber, e);
+        }
+    }
+}
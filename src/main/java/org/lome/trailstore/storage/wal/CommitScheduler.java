@@ -0,0 +1,129 @@
+package org.lome.trailstore.storage.wal;
+
+import lombok.extern.slf4j.Slf4j;
+import org.lome.trailstore.exceptions.EventAppendException;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the commits of a WAL on a thread of its own, for the appends waiting on them.
+ * Every append waiting when a commit starts is acknowledged by it, those arriving meanwhile
+ * wait for the next one. An {@link Durability#ASYNC} append is committed at most the max delay after
+ * the oldest one waiting, later appends never push that back; a {@link Durability#SYNC} one
+ * has the next commit start as soon as the running one ends.
+ * Futures complete on the commit thread: dependent actions should be quick, or async.
+ */
+@Slf4j
+public class CommitScheduler implements Closeable {
+
+    public final static Duration DEFAULT_MAX_DELAY = Duration.ofMillis(100);
+
+    final static CompletableFuture<Void> COMMITTED = CompletableFuture.completedFuture(null);
+
+    final Runnable commit;
+    final long maxDelayNanos;
+    final Thread thread;
+    //Guards the fields below
+    final Object lock = new Object();
+    List<CompletableFuture<Void>> waiters = new ArrayList<>();
+    //Appends waiting for the next commit, with or without a future
+    boolean pending;
+    //Latest start of the next commit, while pending
+    long deadline;
+    boolean syncRequested;
+    boolean closed;
+
+    public CommitScheduler(String name, Runnable commit, Duration maxDelay){
+        this.commit = commit;
+        this.maxDelayNanos = maxDelay.toNanos();
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    //Completes once an event appended before the call is as durable as asked
+    public CompletableFuture<Void> request(Durability durability){
+        if (durability == Durability.NONE) return COMMITTED;
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        synchronized (lock) {
+            if (closed) {
+                future.completeExceptionally(new EventAppendException("Store is closed"));
+                return future;
+            }
+            waiters.add(future);
+            schedule(durability == Durability.SYNC);
+        }
+        return future;
+    }
+
+    //Same, for appends nobody waits on
+    public void schedule(Durability durability){
+        if (durability == Durability.NONE) return;
+        synchronized (lock) {
+            if (!closed) schedule(durability == Durability.SYNC);
+        }
+    }
+
+    private void schedule(boolean sync){
+        if (!pending) {
+            pending = true;
+            deadline = System.nanoTime() + maxDelayNanos;
+            lock.notifyAll();
+        }
+        if (sync && !syncRequested) {
+            syncRequested = true;
+            lock.notifyAll();
+        }
+    }
+
+    private void run(){
+        while (true) {
+            List<CompletableFuture<Void>> committing;
+            synchronized (lock) {
+                try {
+                    while (!closed && (!pending || (!syncRequested && System.nanoTime() < deadline))) {
+                        if (!pending) lock.wait();
+                        else TimeUnit.NANOSECONDS.timedWait(lock, deadline - System.nanoTime());
+                    }
+                } catch (InterruptedException e) {
+                    closed = true;
+                    waiters.forEach(f -> f.completeExceptionally(new EventAppendException("Commit thread interrupted", e)));
+                    waiters.clear();
+                    return;
+                }
+                //Closing commits whoever is still waiting
+                if (!pending) return;
+                committing = waiters;
+                waiters = new ArrayList<>();
+                pending = false;
+                syncRequested = false;
+            }
+            try {
+                commit.run();
+                committing.forEach(f -> f.complete(null));
+            } catch (RuntimeException e) {
+                log.error("Error during commit", e);
+                committing.forEach(f -> f.completeExceptionally(e));
+            }
+        }
+    }
+
+    //Runs a last commit for the appends still waiting, the WAL must still be open
+    @Override
+    public void close(){
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package org.lome.trailstore.storage.wal;
+
+//When the future returned by an append completes, see Wal.append(Event, Durability)
+public enum Durability {
+    //Right away: the event is durable with whatever commit comes next, if any
+    NONE,
+    //After a commit run at most the max commit delay after the oldest event waiting for one
+    ASYNC,
+    //After a commit started as soon as the previous one ends, shared by every event waiting for it
+    SYNC
+}
@@ -0,0 +1,94 @@
+package org.lome.trailstore.storage.wal;
+
+import lombok.extern.slf4j.Slf4j;
+import org.lome.trailstore.exceptions.EventIntegrityException;
+import org.lome.trailstore.model.EventCodec;
+import org.lome.trailstore.model.EventView;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.IntStream;
+
+/**
+ * Decodes and checks batches of WAL records, see {@link EventCodec}, in parallel.
+ * Checking the checksum of every record is most of what opening and replaying a WAL costs.
+ * Records after the first one failing the check are never returned: like a torn write, it ends the batch.
+ */
+@Slf4j
+public final class RecordDecoder {
+
+    //Below this, the records are done on the calling thread
+    final static int PARALLEL_THRESHOLD = 256;
+
+    private RecordDecoder(){
+    }
+
+    //Views of the events of the records before the first invalid one
+    public static List<EventView> decode(List<ByteBuffer> records){
+        EventView[] events = new EventView[records.size()];
+        range(records.size()).forEach(i -> {
+            try {
+                events[i] = EventCodec.view(records.get(i));
+            } catch (EventIntegrityException e) {
+                //Left null
+            }
+        });
+        int valid = 0;
+        while (valid < events.length && events[valid] != null) valid++;
+        return Arrays.asList(events).subList(0, valid);
+    }
+
+    //How many records are valid before the first invalid one, without decoding them
+    public static int validPrefix(List<ByteBuffer> records){
+        boolean[] valid = new boolean[records.size()];
+        range(records.size()).forEach(i -> valid[i] = EventCodec.isValid(records.get(i)));
+        int count = 0;
+        while (count < valid.length && valid[count]) count++;
+        return count;
+    }
+
+    //The records decoded a batch at a time, up to the first invalid one
+    public static Iterator<List<EventView>> batches(Iterator<ByteBuffer> records, int batchSize, Object source){
+        return new Iterator<List<EventView>>() {
+
+            List<EventView> next;
+            boolean ended;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null && !ended) next = readBatch();
+                return next != null;
+            }
+
+            @Override
+            public List<EventView> next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                List<EventView> batch = next;
+                next = null;
+                return batch;
+            }
+
+            private List<EventView> readBatch() {
+                List<ByteBuffer> batch = new ArrayList<>(batchSize);
+                while (batch.size() < batchSize && records.hasNext()) batch.add(records.next());
+                List<EventView> events = decode(batch);
+                if (events.size() < batch.size()) {
+                    log.warn("Invalid record in {} after {} events of the batch, ignoring the rest", source, events.size());
+                    ended = true;
+                } else if (batch.size() < batchSize) {
+                    ended = true;
+                }
+                return events.isEmpty() ? null : events;
+            }
+        };
+    }
+
+    private static IntStream range(int size){
+        IntStream range = IntStream.range(0, size);
+        return size < PARALLEL_THRESHOLD ? range : range.parallel();
+    }
+}
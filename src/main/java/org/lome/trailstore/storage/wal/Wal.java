@@ -0,0 +1,47 @@
+package org.lome.trailstore.storage.wal;
+
+import org.lome.trailstore.model.Event;
+import org.lome.trailstore.model.EventView;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+public interface Wal extends AutoCloseable, Closeable {
+
+    //Committed within the max commit delay, see Durability.ASYNC
+    public void append(Event event);
+
+    //The future completes once the event is as durable as asked
+    public CompletableFuture<Void> append(Event event, Durability durability);
+
+    //Makes every appended event durable
+    public void commit();
+
+    //Drops every event up to lastTick (inclusive)
+    public void truncate(long lastTick);
+
+    //Drops the events in [firstKey, lastKey], once they have been stored elsewhere
+    public void remove(long firstKey, long lastKey);
+
+    //True if removing a few events at a time is cheap enough to do as each part of a segment is synced,
+    //false if removals should wait for the whole segment
+    public default boolean removesIncrementally(){
+        return false;
+    }
+
+    public Iterator<Event> snapshot(long from, long to, boolean reverse);
+
+    public Stream<Event> snapshotStream(long from, long to, boolean reverse);
+
+    public Iterator<Event> events(boolean reverse);
+
+    //Events with id > after in id order, in batches of up to batchSize, for the startup replay.
+    //Each batch is checked in parallel, see RecordDecoder. Views are valid until the next batch is read
+    public Stream<List<EventView>> replay(long after, int batchSize);
+
+    public Stream<Event> eventStream(boolean reverse);
+
+}
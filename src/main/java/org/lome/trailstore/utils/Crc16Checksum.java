@@ -0,0 +1,21 @@
+package org.lome.trailstore.utils;
+
+import java.nio.ByteBuffer;
+
+//The original record checksum: CRC16 of the fields followed by a -1 in place of the checksum itself.
+//Kept to read the records written with it, one byte at a time through a lookup table
+public class Crc16Checksum implements RecordChecksum {
+
+    final static HashCrc16 crc = new HashCrc16();
+    final static byte[] CHECK = {-1, -1, -1, -1};
+
+    @Override
+    public byte format() {
+        return LEGACY_FORMAT;
+    }
+
+    @Override
+    public int compute(ByteBuffer fields) {
+        return crc.update(crc.update(crc.startingCrc(), fields.duplicate()), CHECK);
+    }
+}
@@ -0,0 +1,22 @@
+package org.lome.trailstore.utils;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+//CRC32C over the record bytes in place: the JIT turns CRC32C.update into the CPU's CRC instructions
+public class Crc32cChecksum implements RecordChecksum {
+
+    final static byte FORMAT = 1;
+
+    @Override
+    public byte format() {
+        return FORMAT;
+    }
+
+    @Override
+    public int compute(ByteBuffer fields) {
+        CRC32C crc = new CRC32C();
+        crc.update(fields.duplicate());
+        return (int) crc.getValue();
+    }
+}
@@ -15,21 +15,32 @@ public class HashCrc16 {
     }
 
     public int computeHash(byte[] bytes) {
-        int crc = startingCrc;
+        return update(startingCrc, bytes);
+    }
+
+    public int computeHash(ByteBuffer bytes) {
+        return update(startingCrc, bytes);
+    }
+
+    //Continues a hash computed over the preceding bytes
+    public int update(int crc, byte[] bytes) {
         for (byte b : bytes) {
             crc = (crc >>> 8) ^ table[(crc ^ b) & 0xff];
         }
         return crc;
     }
 
-    public int computeHash(ByteBuffer bytes) {
-        int crc = startingCrc;
+    public int update(int crc, ByteBuffer bytes) {
         while(bytes.hasRemaining()){
             crc = (crc >>> 8) ^ table[(crc ^ bytes.get()) & 0xff];
         }
         return crc;
     }
 
+    public int startingCrc() {
+        return startingCrc;
+    }
+
     final static int[] table = {
             0x0000, 0xC0C1, 0xC181, 0x0140, 0xC301, 0x03C0, 0x0280, 0xC241,
             0xC601, 0x06C0, 0x0780, 0xC741, 0x0500, 0xC5C1, 0xC481, 0x0440,
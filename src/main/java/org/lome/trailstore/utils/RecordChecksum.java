@@ -0,0 +1,33 @@
+package org.lome.trailstore.utils;
+
+import org.lome.trailstore.exceptions.EventIntegrityException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Checksum of the fields of a serialized event. The format byte written after it in the record
+ * tells readers which one to check it with, so records written with different ones can be mixed.
+ * Records with no format byte are the original ones, checked with {@link #CRC16}.
+ */
+public interface RecordChecksum {
+
+    RecordChecksum CRC16 = new Crc16Checksum();
+    RecordChecksum CRC32C = new Crc32cChecksum();
+    RecordChecksum DEFAULT = CRC32C;
+
+    //Written after the checksum, LEGACY_FORMAT writes nothing
+    byte LEGACY_FORMAT = 0;
+
+    byte format();
+
+    //Over the bytes in [position, limit), the buffer is left as it is
+    int compute(ByteBuffer fields);
+
+    static RecordChecksum of(byte format){
+        switch (format) {
+            case LEGACY_FORMAT: return CRC16;
+            case Crc32cChecksum.FORMAT: return CRC32C;
+            default: throw new EventIntegrityException("Unknown record format: "+format);
+        }
+    }
+}
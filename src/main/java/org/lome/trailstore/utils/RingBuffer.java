@@ -0,0 +1,66 @@
+package org.lome.trailstore.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+//Bounded lock-free ring: many producers, a single consumer.
+//Producers claim a slot with a CAS on the tail, then publish the item into it;
+//the consumer only ever advances over slots that have been published.
+public class RingBuffer<T> {
+
+    final AtomicReferenceArray<T> slots;
+    final int capacity;
+    final int mask;
+    final AtomicLong tail = new AtomicLong(0);
+    volatile long head = 0;
+
+    public RingBuffer(int capacity){
+        if (capacity < 1 || Integer.bitCount(capacity) != 1){
+            throw new IllegalArgumentException("Capacity must be a power of two: "+capacity);
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+    }
+
+    public boolean offer(T item){
+        if (item == null) throw new NullPointerException();
+        long claimed;
+        do {
+            claimed = tail.get();
+            if (claimed - head >= capacity) return false; //Full
+        } while (!tail.compareAndSet(claimed, claimed + 1));
+        slots.lazySet((int) (claimed & mask), item);
+        return true;
+    }
+
+    //Must be called by the single consumer only
+    public int drain(Consumer<T> consumer, int maxItems){
+        long current = head;
+        int drained = 0;
+        while (drained < maxItems){
+            int index = (int) (current & mask);
+            T item = slots.get(index);
+            if (item == null) break; //Claimed but not yet published, or empty
+            slots.lazySet(index, null);
+            current++;
+            drained++;
+            consumer.accept(item);
+        }
+        head = current;
+        return drained;
+    }
+
+    public int size(){
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    public boolean isEmpty(){
+        return size() == 0;
+    }
+
+    public int capacity(){
+        return capacity;
+    }
+}
@@ -0,0 +1,327 @@
+package logwal;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.lome.trailstore.exceptions.EventAppendException;
+import org.lome.trailstore.model.Event;
+import org.lome.trailstore.model.EventView;
+import org.lome.trailstore.storage.logwal.LogWal;
+import org.lome.trailstore.storage.segment.SegmentManager;
+import org.lome.trailstore.storage.wal.Durability;
+import org.lome.trailstore.utils.HashCrc16;
+import org.lome.trailstore.utils.RecordChecksum;
+import org.lome.trailstore.utils.Sequencer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Stack;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LogWalTest {
+
+    final static Logger log = LoggerFactory.getLogger(LogWalTest.class);
+    final static Path WAL_PATH = Path.of("logwals");
+
+    @BeforeEach
+    @AfterEach
+    public void cleanup(){
+        clear(WAL_PATH);
+        clear(Path.of("segments"));
+    }
+
+    @Test
+    public void testOne(){
+        LogWal wal = new LogWal(WAL_PATH);
+        long id = Sequencer.SHARED.tick();
+        wal.append(new Event(id,"key".getBytes(),"meta".getBytes(),"data".getBytes()));
+        assertTrue(wal.events(false).hasNext());
+        assertEquals(wal.events(false).next().getId(),id);
+        assertArrayEquals(wal.events(false).next().getKey(),"key".getBytes());
+        assertArrayEquals(wal.events(false).next().getMetadata(),"meta".getBytes());
+        assertArrayEquals(wal.events(false).next().getData(),"data".getBytes());
+        wal.truncate(id);
+        assertFalse(wal.events(false).hasNext());
+        close(wal);
+    }
+
+    @Test
+    public void testSequence(){
+        LogWal wal = new LogWal(WAL_PATH);
+        Stack<Long> given = new Stack<>();
+        IntStream.range(0,100)
+                .forEach(i -> {
+                    Event event = new Event(Sequencer.SHARED.tick(),
+                            "key".getBytes(),"meta".getBytes(),"data".getBytes());
+                    wal.append(event);
+                    given.push(event.getId());
+                });
+
+        wal.eventStream(true)
+                .forEach(e -> {
+                    assertEquals(e.getId(),given.pop());
+                });
+        assertTrue(given.isEmpty());
+
+        wal.truncate(Sequencer.SHARED.tick());
+        close(wal);
+    }
+
+    @Test
+    public void testDuplicateForbidden(){
+        LogWal wal = new LogWal(WAL_PATH);
+        Event event = new Event(Sequencer.SHARED.tick(),
+                "key".getBytes(),"meta".getBytes(),"data".getBytes());
+        wal.append(event);
+        assertThrows(EventAppendException.class, () -> {
+            wal.append(event);
+        });
+        wal.truncate(Sequencer.SHARED.tick());
+        close(wal);
+    }
+
+    @Test
+    public void testRollAndTruncate() throws IOException {
+        LogWal wal = new LogWal(WAL_PATH, 4096);
+        List<Long> ids = new ArrayList<>();
+        IntStream.range(0,1000)
+                .forEach(i -> {
+                    Event event = new Event(Sequencer.SHARED.tick(),
+                            "key".getBytes(),"meta".getBytes(),"data".getBytes());
+                    wal.append(event);
+                    ids.add(event.getId());
+                });
+        wal.commit();
+        long files = walFiles();
+        assertTrue(files > 1);
+
+        long middle = ids.get(500);
+        wal.truncate(middle);
+        assertTrue(walFiles() < files);
+        List<Long> remaining = wal.eventStream(false).map(Event::getId).collect(Collectors.toList());
+        //Whole files are dropped, so some events before the truncation point may survive
+        assertTrue(remaining.containsAll(ids.subList(501, ids.size())));
+        assertEquals(ids.subList(ids.size()-remaining.size(), ids.size()), remaining);
+
+        wal.truncate(ids.get(ids.size()-1));
+        assertFalse(wal.events(false).hasNext());
+        assertEquals(0, walFiles());
+        close(wal);
+    }
+
+    @Test
+    public void testReopen(){
+        LogWal wal = new LogWal(WAL_PATH, 4096);
+        List<Long> ids = new ArrayList<>();
+        IntStream.range(0,100)
+                .forEach(i -> {
+                    Event event = new Event(Sequencer.SHARED.tick(),
+                            "key".getBytes(),"meta".getBytes(),"data".getBytes());
+                    wal.append(event);
+                    ids.add(event.getId());
+                });
+        close(wal);
+
+        LogWal reopened = new LogWal(WAL_PATH, 4096);
+        assertEquals(ids, reopened.eventStream(false).map(Event::getId).collect(Collectors.toList()));
+        assertThrows(EventAppendException.class, () -> {
+            reopened.append(new Event(ids.get(ids.size()-1),
+                    "key".getBytes(),"meta".getBytes(),"data".getBytes()));
+        });
+        long next = Sequencer.SHARED.tick();
+        reopened.append(new Event(next,"key".getBytes(),"meta".getBytes(),"data".getBytes()));
+        assertEquals(next, reopened.events(true).next().getId());
+        close(reopened);
+    }
+
+    @Test
+    public void testTornRecord() throws IOException {
+        LogWal wal = new LogWal(WAL_PATH);
+        List<Long> ids = new ArrayList<>();
+        IntStream.range(0,10)
+                .forEach(i -> {
+                    Event event = new Event(Sequencer.SHARED.tick(),
+                            "key".getBytes(),"meta".getBytes(),"data".getBytes());
+                    wal.append(event);
+                    ids.add(event.getId());
+                });
+        close(wal);
+
+        //Corrupt the payload of the last record
+        Path file = Files.list(WAL_PATH).findFirst().get();
+        int recordSize = new Event(0L,"key".getBytes(),"meta".getBytes(),"data".getBytes()).toBuffer().remaining();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap("XXXX".getBytes()), (long) recordSize * 9 + 20);
+        }
+
+        LogWal reopened = new LogWal(WAL_PATH);
+        assertEquals(ids.subList(0, 9), reopened.eventStream(false).map(Event::getId).collect(Collectors.toList()));
+        assertEquals(ids.subList(0, 9), reopened.replay(Long.MIN_VALUE, 4)
+                .flatMap(List::stream).map(EventView::getId).collect(Collectors.toList()));
+        long next = Sequencer.SHARED.tick();
+        reopened.append(new Event(next,"key".getBytes(),"meta".getBytes(),"data".getBytes()));
+        close(reopened);
+
+        LogWal again = new LogWal(WAL_PATH);
+        assertEquals(10, again.eventStream(false).count());
+        assertEquals(next, again.events(true).next().getId());
+        close(again);
+    }
+
+    @Test
+    public void testReplay() throws IOException {
+        //Small files: the replay goes across several
+        LogWal wal = new LogWal(WAL_PATH, 16 * 1024);
+        List<Long> ids = new ArrayList<>();
+        IntStream.range(0,3000)
+                .forEach(i -> {
+                    Event event = new Event(Sequencer.SHARED.tick(),
+                            "key".getBytes(),"meta".getBytes(),("data"+i).getBytes());
+                    wal.append(event);
+                    ids.add(event.getId());
+                });
+        assertTrue(walFiles() > 1);
+        List<List<EventView>> batches = wal.replay(ids.get(999), 500).collect(Collectors.toList());
+        assertTrue(batches.stream().allMatch(b -> !b.isEmpty() && b.size() <= 500));
+        assertEquals(ids.subList(1000, 3000), batches.stream().flatMap(List::stream)
+                .map(EventView::getId).collect(Collectors.toList()));
+        assertArrayEquals("data2999".getBytes(), batches.get(batches.size() - 1).get(batches.get(batches.size() - 1).size() - 1).getData());
+        assertEquals(0, wal.replay(ids.get(2999), 500).count());
+        close(wal);
+    }
+
+    @Test
+    public void testChecksumFormats() throws IOException {
+        //Records written before the format byte: CRC16 of the fields and a -1, no format byte
+        Event legacy = new Event(Sequencer.SHARED.tick(),"key".getBytes(),"meta".getBytes(),"data".getBytes());
+        ByteBuffer fields = ByteBuffer.allocate(legacy.bufferSize(RecordChecksum.CRC16));
+        fields.putLong(legacy.getId()).putInt(3).put("key".getBytes()).putInt(4).put("meta".getBytes())
+                .putInt(4).put("data".getBytes()).putInt(-1);
+        fields.flip();
+        int crc16 = new HashCrc16().computeHash(fields.duplicate());
+        fields.putInt(fields.limit() - Integer.BYTES, crc16);
+        assertArrayEquals(fields.array(), legacy.toByteArray(RecordChecksum.CRC16));
+        assertEquals(legacy.bufferSize(RecordChecksum.CRC16) + 1, legacy.toByteArray().length);
+
+        LogWal old = new LogWal(WAL_PATH, 64L * 1024 * 1024, RecordChecksum.CRC16);
+        List<Long> ids = new ArrayList<>();
+        IntStream.range(0,100)
+                .forEach(i -> {
+                    Event event = new Event(Sequencer.SHARED.tick(),
+                            "key".getBytes(),"meta".getBytes(),"data".getBytes());
+                    old.append(event);
+                    ids.add(event.getId());
+                });
+        close(old);
+
+        //Both formats in the same file
+        LogWal wal = new LogWal(WAL_PATH);
+        IntStream.range(0,100)
+                .forEach(i -> {
+                    Event event = new Event(Sequencer.SHARED.tick(),
+                            "key".getBytes(),"meta".getBytes(),"data".getBytes());
+                    wal.append(event);
+                    ids.add(event.getId());
+                });
+        close(wal);
+        LogWal reopened = new LogWal(WAL_PATH);
+        assertEquals(ids, reopened.eventStream(false).map(Event::getId).collect(Collectors.toList()));
+        assertEquals(ids, reopened.replay(Long.MIN_VALUE, 64)
+                .flatMap(List::stream).map(EventView::getId).collect(Collectors.toList()));
+        close(reopened);
+    }
+
+    @Test
+    public void testDurability() throws Exception {
+        LogWal wal = new LogWal(WAL_PATH, 64L * 1024 * 1024, RecordChecksum.DEFAULT, Duration.ofMillis(200));
+        assertTrue(wal.append(event(), Durability.NONE).isDone());
+        //Steady appends don't push the commit back
+        CompletableFuture<Void> async = wal.append(event(), Durability.ASYNC);
+        long start = System.nanoTime();
+        while (!async.isDone() && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5)) {
+            wal.append(event());
+            Thread.sleep(5);
+        }
+        async.get(0, TimeUnit.SECONDS);
+        close(wal);
+
+        //Sync appends don't wait for the delay, and take the async ones waiting along
+        LogWal slow = new LogWal(WAL_PATH, 64L * 1024 * 1024, RecordChecksum.DEFAULT, Duration.ofMinutes(1));
+        CompletableFuture<Void> waiting = slow.append(event(), Durability.ASYNC);
+        slow.append(event(), Durability.SYNC).get(10, TimeUnit.SECONDS);
+        assertTrue(waiting.isDone());
+        //Closing commits the appends still waiting
+        CompletableFuture<Void> pending = slow.append(event(), Durability.ASYNC);
+        close(slow);
+        pending.get(0, TimeUnit.SECONDS);
+        assertThrows(EventAppendException.class, () -> slow.append(event(), Durability.SYNC));
+    }
+
+    private Event event(){
+        return new Event(Sequencer.SHARED.tick(),"key".getBytes(),"meta".getBytes(),"data".getBytes());
+    }
+
+    @Test
+    public void testSegmentManagerReload() throws Exception {
+        SegmentManager manager = new SegmentManager(Path.of("segments"), new LogWal(WAL_PATH));
+        IntStream.range(0,1000)
+                .forEach(i -> manager.append(new Event(Sequencer.SHARED.tick(),
+                        "key".getBytes(),"meta".getBytes(),"data".getBytes())));
+        manager.appendAsync(new Event(Sequencer.SHARED.tick(),
+                "key".getBytes(),"meta".getBytes(),"data".getBytes())).join();
+        manager.close();
+
+        SegmentManager reloaded = new SegmentManager(Path.of("segments"), new LogWal(WAL_PATH));
+        AtomicInteger counter = new AtomicInteger();
+        reloaded.iterator().forEachRemaining(e -> counter.incrementAndGet());
+        assertEquals(1001, counter.get());
+        reloaded.close();
+    }
+
+    private long walFiles() throws IOException {
+        try (Stream<Path> files = Files.list(WAL_PATH)) {
+            return files.count();
+        }
+    }
+
+    void close(LogWal wal){
+        try{
+            wal.close();
+        }catch (Exception e){
+            e.printStackTrace();
+        }
+    }
+
+    private void clear(Path rootPath){
+        try (Stream<Path> walk = Files.walk(rootPath)) {
+            walk.sorted(Comparator.reverseOrder())
+                    .filter(p -> !p.equals(rootPath))
+                    .forEach(this::clear);
+        } catch (IOException e) {
+            //throw new RuntimeException(e);
+        }
+        try {
+            Files.delete(rootPath);
+        } catch (IOException e) {
+            //throw new RuntimeException(e);
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+package model;
+
+import org.apache.arrow.memory.ArrowBuf;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.junit.jupiter.api.Test;
+import org.lome.trailstore.exceptions.EventIntegrityException;
+import org.lome.trailstore.model.Event;
+import org.lome.trailstore.model.EventCodec;
+import org.lome.trailstore.model.EventView;
+import org.lome.trailstore.utils.RecordChecksum;
+import org.lome.trailstore.utils.Sequencer;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EventCodecTest {
+
+    final static Event EVENT = new Event(Sequencer.SHARED.tick(), "key".getBytes(), "meta".getBytes(), "data".getBytes());
+
+    @Test
+    public void testRoundTrip(){
+        for (RecordChecksum checksum : new RecordChecksum[]{RecordChecksum.CRC32C, RecordChecksum.CRC16}) {
+            //Encoded in the middle of a buffer holding something else
+            ByteBuffer buffer = ByteBuffer.allocate(1024);
+            buffer.position(100);
+            int size = EventCodec.encode(EVENT, buffer, checksum);
+            assertEquals(EventCodec.encodedSize(EVENT, checksum), size);
+            assertEquals(100 + size, buffer.position());
+            ByteBuffer record = buffer.duplicate().limit(100 + size).position(100).slice();
+            assertArrayEquals(EVENT.toByteArray(checksum), copy(record));
+
+            EventView view = EventCodec.view(record);
+            assertEquals(0, record.position());
+            assertEquals(EVENT.getId(), view.getId());
+            assertArrayEquals(EVENT.getKey(), view.getKey());
+            assertArrayEquals(EVENT.getMetadata(), view.getMetadata());
+            assertArrayEquals(EVENT.getData(), view.getData());
+            //Views over the record, not copies
+            assertSame(buffer.array(), view.getDataBuffer().array());
+            assertEquals(4, view.dataLength());
+            assertArrayEquals(EVENT.getData(), EventCodec.decode(record).getData());
+        }
+    }
+
+    @Test
+    public void testArrowBuf(){
+        try (BufferAllocator allocator = new RootAllocator();
+             ArrowBuf buf = allocator.buffer(1024)) {
+            int size = EventCodec.encode(EVENT, buf, 16, RecordChecksum.DEFAULT);
+            byte[] record = new byte[size];
+            buf.getBytes(16, record);
+            assertArrayEquals(EVENT.toByteArray(), record);
+            Event decoded = EventCodec.decode(buf.nioBuffer(16, size));
+            assertEquals(EVENT.getId(), decoded.getId());
+            assertArrayEquals(EVENT.getData(), decoded.getData());
+        }
+    }
+
+    @Test
+    public void testNullMetadata(){
+        Event event = new Event(Sequencer.SHARED.tick(), "key".getBytes(), null, "data".getBytes());
+        Event decoded = Event.fromByteArray(event.toByteArray());
+        assertArrayEquals(new byte[0], decoded.getMetadata());
+    }
+
+    @Test
+    public void testCorrupted(){
+        byte[] record = EVENT.toByteArray();
+        assertTrue(EventCodec.isValid(ByteBuffer.wrap(record)));
+        record[Long.BYTES + Integer.BYTES] ^= 1;
+        assertFalse(EventCodec.isValid(ByteBuffer.wrap(record)));
+        assertThrows(EventIntegrityException.class, () -> EventCodec.view(ByteBuffer.wrap(record)));
+        //Garbled length
+        byte[] garbled = EVENT.toByteArray();
+        ByteBuffer.wrap(garbled).putInt(Long.BYTES, 1 << 20);
+        assertThrows(EventIntegrityException.class, () -> EventCodec.view(ByteBuffer.wrap(garbled)));
+        //Unknown format
+        byte[] unknown = EVENT.toByteArray();
+        unknown[unknown.length - 1] = 42;
+        assertFalse(EventCodec.isValid(ByteBuffer.wrap(unknown)));
+    }
+
+    private static byte[] copy(ByteBuffer buffer){
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
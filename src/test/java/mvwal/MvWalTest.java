@@ -5,13 +5,22 @@ import lombok.extern.slf4j.Slf4j;
 import org.junit.jupiter.api.Test;
 import org.lome.trailstore.exceptions.EventAppendException;
 import org.lome.trailstore.model.Event;
+import org.lome.trailstore.model.EventView;
 import org.lome.trailstore.storage.mvwal.MvWal;
+import org.lome.trailstore.storage.wal.Durability;
+import org.lome.trailstore.utils.RecordChecksum;
 import org.lome.trailstore.utils.Sequencer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Stack;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -78,6 +87,46 @@ public class MvWalTest {
         close(mvwal);
     }
 
+    @Test
+    public void testReplay(){
+        MvWal mvwal = new MvWal(Path.of("wals"));
+        List<Long> ids = new ArrayList<>();
+        IntStream.range(0,3000)
+                .forEach(i -> {
+                    Event event = new Event(Sequencer.SHARED.tick(),
+                            "key".getBytes(),"meta".getBytes(),"data".getBytes());
+                    mvwal.append(event);
+                    ids.add(event.getId());
+                });
+        List<List<EventView>> batches = mvwal.replay(ids.get(999), 500).collect(Collectors.toList());
+        assertEquals(4, batches.size());
+        assertEquals(ids.subList(1000, 3000), batches.stream().flatMap(List::stream)
+                .map(EventView::getId).collect(Collectors.toList()));
+        mvwal.truncate(Sequencer.SHARED.tick());
+        assertEquals(0, mvwal.replay(Long.MIN_VALUE, 500).count());
+        close(mvwal);
+    }
+
+    @Test
+    public void testDurability() throws Exception {
+        MvWal mvwal = new MvWal(Path.of("wals"), false, RecordChecksum.DEFAULT, Duration.ofMinutes(1));
+        long id = Sequencer.SHARED.tick();
+        CompletableFuture<Void> waiting = mvwal.append(new Event(id,"key".getBytes(),"meta".getBytes(),"data".getBytes()),
+                Durability.ASYNC);
+        mvwal.append(new Event(Sequencer.SHARED.tick(),"key".getBytes(),"meta".getBytes(),"data".getBytes()),
+                Durability.SYNC).get(10, TimeUnit.SECONDS);
+        assertTrue(waiting.isDone());
+        CompletableFuture<Void> pending = mvwal.append(new Event(Sequencer.SHARED.tick(),
+                "key".getBytes(),"meta".getBytes(),"data".getBytes()), Durability.ASYNC);
+        close(mvwal);
+        pending.get(0, TimeUnit.SECONDS);
+
+        MvWal reopened = new MvWal(Path.of("wals"));
+        assertEquals(3, reopened.replay(id - 1, 10).mapToLong(List::size).sum());
+        reopened.truncate(Long.MAX_VALUE);
+        close(reopened);
+    }
+
     @Test
     public void testWritePerf(){
         long start = System.currentTimeMillis();
@@ -0,0 +1,97 @@
+package org.lome.trailstore.storage.segment;
+
+import org.apache.arrow.compression.Lz4CompressionCodec;
+import org.apache.arrow.memory.ArrowBuf;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.compression.CompressionUtil;
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorInputStream;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+//Package of the codec, which is not part of the API: frames it writes must read back with both LZ4 frame readers
+public class Lz4FrameCodecTest {
+
+    @Test
+    public void testEmpty() throws IOException {
+        byte[] frame = roundTrip(new byte[0]);
+        //Header, end mark and content checksum
+        assertEquals(7 + 4 + 4, frame.length);
+    }
+
+    @Test
+    public void testIncompressible() throws IOException {
+        byte[] src = new byte[Lz4FrameCodec.BLOCK_SIZE + 1000];
+        new Random(42).nextBytes(src);
+        byte[] frame = roundTrip(src);
+        //Stored as they are, block by block
+        assertEquals(Lz4FrameCodec.maxFrameLength(src.length), frame.length);
+    }
+
+    @Test
+    public void testRepetitive() throws IOException {
+        byte[] src = new byte[Lz4FrameCodec.BLOCK_SIZE / 2];
+        Arrays.fill(src, (byte) 'a');
+        byte[] frame = roundTrip(src);
+        assertTrue(frame.length < src.length / 50, "Frame of " + frame.length + " bytes");
+    }
+
+    @Test
+    public void testBlocks() throws IOException {
+        //JSON-like payloads over several blocks, the last one partial
+        StringBuilder payloads = new StringBuilder();
+        Random random = new Random(7);
+        while (payloads.length() < 3 * Lz4FrameCodec.BLOCK_SIZE + 12345) {
+            payloads.append("{\"id\":").append(random.nextInt(100000))
+                    .append(",\"name\":\"user").append(random.nextInt(500))
+                    .append("\",\"active\":").append(random.nextBoolean()).append('}');
+        }
+        byte[] src = payloads.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] frame = roundTrip(src);
+        assertTrue(frame.length < src.length / 2, "Frame of " + frame.length + " bytes");
+    }
+
+    @Test
+    public void testShortInputs() throws IOException {
+        //Below and around the shortest block a match can be searched in
+        Random random = new Random(11);
+        for (int length = 1; length <= 64; length++) {
+            byte[] src = new byte[length];
+            for (int i = 0; i < length; i++) src[i] = (byte) ('a' + random.nextInt(3));
+            roundTrip(src);
+        }
+    }
+
+    //Compresses src as arrow-compression calls the codec, checks both readers give it back, returns the frame
+    static byte[] roundTrip(byte[] src) throws IOException {
+        try (BufferAllocator allocator = new RootAllocator()) {
+            ArrowBuf uncompressed = allocator.buffer(Math.max(1, src.length));
+            uncompressed.setBytes(0, src);
+            uncompressed.writerIndex(src.length);
+            ArrowBuf compressed = new Lz4FrameCodec().doCompress(allocator, uncompressed);
+            uncompressed.close();
+            compressed.setLong(0, src.length);
+            byte[] frame = new byte[(int) (compressed.writerIndex() - CompressionUtil.SIZE_OF_UNCOMPRESSED_LENGTH)];
+            compressed.getBytes(CompressionUtil.SIZE_OF_UNCOMPRESSED_LENGTH, frame);
+
+            try (FramedLZ4CompressorInputStream in = new FramedLZ4CompressorInputStream(new ByteArrayInputStream(frame))) {
+                assertArrayEquals(src, in.readAllBytes());
+            }
+
+            //Closes the compressed buffer; an empty one is read back without looking at the frame
+            try (ArrowBuf decompressed = new Lz4CompressionCodec().decompress(allocator, compressed)) {
+                byte[] read = new byte[src.length];
+                decompressed.getBytes(0, read);
+                assertArrayEquals(src, read);
+            }
+            return frame;
+        }
+    }
+}
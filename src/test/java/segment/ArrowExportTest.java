@@ -0,0 +1,161 @@
+package segment;
+
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.BigIntVector;
+import org.apache.arrow.vector.VarBinaryVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowStreamReader;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.lome.trailstore.model.Event;
+import org.lome.trailstore.storage.mvwal.MvWal;
+import org.lome.trailstore.storage.segment.ArrowExport;
+import org.lome.trailstore.storage.segment.SegmentManager;
+import org.lome.trailstore.storage.segment.SegmentManagerConfig;
+import org.lome.trailstore.utils.Sequencer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ArrowExportTest {
+
+    final static Path SEGMENTS_PATH = Path.of("export-segments");
+    final static Path WAL_PATH = Path.of("export-wals");
+
+    @BeforeEach
+    @AfterEach
+    public void cleanup(){
+        clear(SEGMENTS_PATH);
+        clear(WAL_PATH);
+    }
+
+    @Test
+    public void testExportRange() throws Exception {
+        SegmentManager manager = newManager();
+        List<Event> events = append(manager, 4500);
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (manager.storeStats().getStoredSegments() < 4 && System.currentTimeMillis() < deadline){
+            Thread.sleep(10);
+        }
+        assertEquals(4, manager.storeStats().getStoredSegments());
+
+        assertExported(events, export(manager, Long.MIN_VALUE, Long.MAX_VALUE));
+        //Starting and ending mid batch, across stored segments and into the memory one
+        assertExported(events.subList(300, 4201), export(manager, events.get(300).getId(), events.get(4200).getId()));
+        assertExported(events.subList(4100, 4300), export(manager, events.get(4100).getId(), events.get(4299).getId()));
+        assertExported(List.of(), export(manager, events.get(4499).getId() + 1, Long.MAX_VALUE));
+        manager.close();
+    }
+
+    @Test
+    public void testExportWhileStoring() throws Exception {
+        SegmentManager manager = newManager();
+        List<Event> events = append(manager, 900);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ArrowExport export = manager.exportArrow(Long.MIN_VALUE, Long.MAX_VALUE, Channels.newChannel(out))) {
+            assertTrue(export.writeNext());
+            assertTrue(export.writeNext());
+            assertEquals(900, export.rows());
+            //The memory segment is rolled and swapped for its file under the export
+            events.addAll(append(manager, 2000));
+            long deadline = System.currentTimeMillis() + 10000L;
+            while (manager.storeStats().getStoredSegments() < 2 && System.currentTimeMillis() < deadline){
+                Thread.sleep(10);
+            }
+            assertEquals(2900, export.writeAll());
+            assertFalse(export.writeNext());
+            assertEquals(out.size(), export.bytes());
+        }
+        assertExported(events, out.toByteArray());
+        manager.close();
+    }
+
+    private byte[] export(SegmentManager manager, long fromId, long toId) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long rows = manager.exportArrow(fromId, toId, out);
+        byte[] bytes = out.toByteArray();
+        assertEquals(rows, read(bytes).size());
+        return bytes;
+    }
+
+    private void assertExported(List<Event> expected, byte[] stream) throws IOException {
+        List<Event> exported = read(stream);
+        assertEquals(expected.stream().map(Event::getId).collect(Collectors.toList()),
+                exported.stream().map(Event::getId).collect(Collectors.toList()));
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i).getKey(), exported.get(i).getKey());
+            assertArrayEquals(expected.get(i).getMetadata(), exported.get(i).getMetadata());
+            assertArrayEquals(expected.get(i).getData(), exported.get(i).getData());
+        }
+    }
+
+    private List<Event> read(byte[] stream) throws IOException {
+        List<Event> events = new ArrayList<>();
+        try (RootAllocator allocator = new RootAllocator();
+             ArrowStreamReader reader = new ArrowStreamReader(new ByteArrayInputStream(stream), allocator)) {
+            VectorSchemaRoot root = reader.getVectorSchemaRoot();
+            while (reader.loadNextBatch()) {
+                BigIntVector ids = (BigIntVector) root.getVector("id");
+                VarBinaryVector keys = (VarBinaryVector) root.getVector("key");
+                VarBinaryVector metadata = (VarBinaryVector) root.getVector("metadata");
+                VarBinaryVector data = (VarBinaryVector) root.getVector("data");
+                for (int row = 0; row < root.getRowCount(); row++) {
+                    events.add(new Event(ids.get(row), keys.get(row), metadata.get(row), data.get(row)));
+                }
+            }
+        }
+        return events;
+    }
+
+    private List<Event> append(SegmentManager manager, int count){
+        List<Event> events = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Event event = new Event(Sequencer.SHARED.tick(),
+                    ("key" + (i % 13)).getBytes(StandardCharsets.UTF_8),
+                    i % 7 == 0 ? null : ("meta" + i).getBytes(StandardCharsets.UTF_8),
+                    ("data" + i).getBytes(StandardCharsets.UTF_8));
+            manager.append(event);
+            events.add(event);
+        }
+        return events;
+    }
+
+    private SegmentManager newManager() throws IOException {
+        return new SegmentManager(SEGMENTS_PATH, new MvWal(WAL_PATH),
+                SegmentManagerConfig.builder()
+                        .maxMemoryEvents(1000)
+                        .batchRows(256)
+                        .build());
+    }
+
+    private void clear(Path rootPath){
+        try (Stream<Path> walk = Files.walk(rootPath)) {
+            walk.sorted(Comparator.reverseOrder())
+                    .filter(p -> !p.equals(rootPath))
+                    .forEach(this::clear);
+        } catch (IOException e) {
+            //Ignore
+        }
+        try {
+            Files.delete(rootPath);
+        } catch (IOException e) {
+            //Ignore
+        }
+    }
+}
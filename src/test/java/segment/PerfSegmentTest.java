@@ -3,23 +3,37 @@ package segment;
 import org.junit.jupiter.api.Test;
 import org.lome.trailstore.exceptions.EventAppendException;
 import org.lome.trailstore.model.Event;
+import org.lome.trailstore.storage.segment.EventAccessor;
 import org.lome.trailstore.storage.segment.SegmentManager;
 import org.lome.trailstore.utils.Sequencer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class PerfSegmentTest {
 
@@ -69,6 +83,186 @@ public class PerfSegmentTest {
         clear(Path.of("wals"));
     }
 
+    @Test
+    public void perfWriteProducers() throws Exception {
+        final int EVENTS = 100000;
+        for (int producers : new int[]{1, 2, 4, 8}) {
+            clear(Path.of("segments"));
+            clear(Path.of("wals"));
+
+            SegmentManager manager = new SegmentManager(Path.of("segments"),Path.of("wals"));
+            Set<Long> acked = ConcurrentHashMap.newKeySet();
+            AtomicInteger rejected = new AtomicInteger();
+            ExecutorService executor = Executors.newFixedThreadPool(producers);
+            long start = System.currentTimeMillis();
+            List<CompletableFuture<Void>> done = new ArrayList<>();
+            for (int p = 0; p < producers; p++) {
+                done.add(CompletableFuture.runAsync(() -> {
+                    List<CompletableFuture<Long>> pending = new ArrayList<>();
+                    for (int i = 0; i < EVENTS / producers; i++) {
+                        long id = Sequencer.SHARED.tick();
+                        pending.add(manager.appendAsync(new Event(id,
+                                        "foo".getBytes(StandardCharsets.UTF_8),
+                                        "bar".getBytes(StandardCharsets.UTF_8),
+                                        "baz".getBytes(StandardCharsets.UTF_8)))
+                                .whenComplete((ack, error) -> {
+                                    if (error == null) acked.add(ack);
+                                    else rejected.incrementAndGet();
+                                }));
+                    }
+                    pending.forEach(f -> f.handle((ack, error) -> ack).join());
+                }, executor));
+            }
+            done.forEach(CompletableFuture::join);
+            double elapsed = (System.currentTimeMillis()-start)/1000.0;
+            log.info("Write throughput with {} producers: {} ev/sec ({} rejected as out of order)",
+                    producers, (acked.size()/elapsed), rejected.get());
+            executor.shutdown();
+            executor.awaitTermination(1L, TimeUnit.SECONDS);
+
+            assertEquals((EVENTS / producers) * producers, acked.size() + rejected.get());
+            AtomicInteger counter = new AtomicInteger();
+            manager.iterator()
+                    .forEachRemaining(ea -> {
+                        assertEquals(true, acked.remove(ea.getId()));
+                        counter.incrementAndGet();
+                    });
+            manager.close();
+            assertEquals(0, acked.size());
+        }
+
+        clear(Path.of("segments"));
+        clear(Path.of("wals"));
+    }
+
+    @Test
+    public void closeWhileAppending() throws Exception {
+        clear(Path.of("segments"));
+        clear(Path.of("wals"));
+
+        SegmentManager manager = new SegmentManager(Path.of("segments"),Path.of("wals"));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<List<CompletableFuture<Long>>>> producers = new ArrayList<>();
+        for (int p = 0; p < 4; p++) {
+            producers.add(executor.submit(() -> {
+                List<CompletableFuture<Long>> pending = new ArrayList<>();
+                for (int i = 0; i < 20000; i++) {
+                    pending.add(manager.appendAsync(new Event(Sequencer.SHARED.tick(),
+                            "foo".getBytes(StandardCharsets.UTF_8),
+                            "bar".getBytes(StandardCharsets.UTF_8),
+                            "baz".getBytes(StandardCharsets.UTF_8))));
+                }
+                return pending;
+            }));
+        }
+        Thread.sleep(50L);
+        manager.close();
+        //Acked or failed, none is left hanging
+        for (Future<List<CompletableFuture<Long>>> producer : producers) {
+            for (CompletableFuture<Long> pending : producer.get(30L, TimeUnit.SECONDS)) {
+                pending.handle((ack, error) -> ack).get(10L, TimeUnit.SECONDS);
+            }
+        }
+        executor.shutdown();
+
+        clear(Path.of("segments"));
+        clear(Path.of("wals"));
+    }
+
+    @Test
+    public void perfRead() throws Exception {
+        final int EVENTS = 200000;
+        clear(Path.of("segments"));
+        clear(Path.of("wals"));
+
+        SegmentManager manager = new SegmentManager(Path.of("segments"),Path.of("wals"));
+        for (int i = 0; i < EVENTS; i++) {
+            manager.append(new Event(Sequencer.SHARED.tick(),
+                    "foo".getBytes(StandardCharsets.UTF_8),
+                    "bar".getBytes(StandardCharsets.UTF_8),
+                    "baz".getBytes(StandardCharsets.UTF_8)));
+        }
+
+        //Copying getters: a byte[] per value
+        ReadStats copying = null;
+        //Zero-copy getters: nothing per row
+        ReadStats zeroCopy = null;
+        for (int round = 0; round < 5; round++) {
+            copying = readStats(EVENTS, () -> {
+                long sum = 0;
+                Iterator<EventAccessor> iterator = manager.iterator();
+                while (iterator.hasNext()) {
+                    EventAccessor event = iterator.next();
+                    sum += event.getId() + event.getKey().length + event.getData().length;
+                }
+                return sum;
+            });
+            zeroCopy = readStats(EVENTS, () -> {
+                long sum = 0;
+                Iterator<EventAccessor> iterator = manager.iterator();
+                while (iterator.hasNext()) {
+                    EventAccessor event = iterator.next();
+                    sum += event.getId() + event.getKeyBuffer().remaining() + event.getDataBuffer().remaining();
+                }
+                return sum;
+            });
+        }
+        log.info("Read with copying getters: {}", copying);
+        log.info("Read with zero-copy getters: {}", zeroCopy);
+        assertEquals(copying.checksum, zeroCopy.checksum);
+        //Only the iterators themselves, nothing per event
+        assertTrue(zeroCopy.allocatedBytes < EVENTS, "Allocated "+zeroCopy.allocatedBytes+" bytes");
+        manager.close();
+
+        clear(Path.of("segments"));
+        clear(Path.of("wals"));
+    }
+
+    private ReadStats readStats(int events, Supplier<Long> read){
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long gcCount = gcCount();
+        long gcTime = gcTime();
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        long checksum = read.get();
+        long elapsed = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+        return new ReadStats(events / (elapsed / 1e9), allocated, gcCount() - gcCount, gcTime() - gcTime, checksum);
+    }
+
+    private long gcCount(){
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+    }
+
+    private long gcTime(){
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+    }
+
+    static class ReadStats {
+        final double eventsPerSecond;
+        final long allocatedBytes;
+        final long gcCount;
+        final long gcMillis;
+        final long checksum;
+
+        ReadStats(double eventsPerSecond, long allocatedBytes, long gcCount, long gcMillis, long checksum){
+            this.eventsPerSecond = eventsPerSecond;
+            this.allocatedBytes = allocatedBytes;
+            this.gcCount = gcCount;
+            this.gcMillis = gcMillis;
+            this.checksum = checksum;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.0f ev/sec, %d bytes allocated, %d GCs (%d ms)",
+                    eventsPerSecond, allocatedBytes, gcCount, gcMillis);
+        }
+    }
+
     private void clear(Path rootPath){
         try (Stream<Path> walk = Files.walk(rootPath)) {
             walk.sorted(Comparator.reverseOrder())
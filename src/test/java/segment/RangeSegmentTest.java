@@ -0,0 +1,586 @@
+package segment;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.lome.trailstore.exceptions.EventAppendException;
+import org.lome.trailstore.model.Event;
+import org.lome.trailstore.storage.logwal.LogWal;
+import org.lome.trailstore.storage.mvwal.MvWal;
+import org.lome.trailstore.storage.segment.ChainedEventIterator;
+import org.lome.trailstore.storage.segment.EventAccessor;
+import org.lome.trailstore.storage.segment.EventFilter;
+import org.lome.trailstore.storage.segment.EventFilters;
+import org.lome.trailstore.storage.segment.MemoryStats;
+import org.lome.trailstore.storage.segment.RollPolicies;
+import org.lome.trailstore.storage.segment.SegmentManager;
+import org.lome.trailstore.storage.segment.SegmentManagerConfig;
+import org.lome.trailstore.storage.segment.StoreQueueFullPolicy;
+import org.lome.trailstore.storage.segment.StoreStats;
+import org.lome.trailstore.utils.Sequencer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RangeSegmentTest {
+
+    final static Logger log = LoggerFactory.getLogger(RangeSegmentTest.class);
+    final static Path SEGMENTS_PATH = Path.of("range-segments");
+    final static Path WAL_PATH = Path.of("range-wals");
+    final static int EVENTS = 5500;
+
+    @BeforeEach
+    @AfterEach
+    public void cleanup(){
+        clear(SEGMENTS_PATH);
+        clear(WAL_PATH);
+    }
+
+    @Test
+    public void testRanges() throws Exception {
+        SegmentManager manager = newManager();
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < EVENTS; i++) {
+            Event event = new Event(Sequencer.SHARED.tick(),
+                    "foo".getBytes(StandardCharsets.UTF_8),
+                    "bar".getBytes(StandardCharsets.UTF_8),
+                    "baz".getBytes(StandardCharsets.UTF_8));
+            manager.append(event);
+            ids.add(event.getId());
+        }
+        //Mostly memory segments waiting to be stored
+        checkRanges(manager, ids);
+
+        //5 full segments are stored, the tail stays in memory
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (segmentFiles() < EVENTS / 1000 && System.currentTimeMillis() < deadline){
+            Thread.sleep(50L);
+        }
+        assertEquals(EVENTS / 1000, segmentFiles());
+        checkRanges(manager, ids);
+        manager.close();
+
+        //Reopened: stored segments come back from their footers
+        SegmentManager reopened = newManager();
+        checkRanges(reopened, ids);
+        reopened.close();
+    }
+
+    @Test
+    public void testKeys() throws Exception {
+        SegmentManager manager = newManager();
+        Map<String, List<Long>> byKey = new HashMap<>();
+        for (int i = 0; i < EVENTS; i++) {
+            //A key that only shows up in the stored segments, and one only in memory
+            String key = i == 10 ? "first" : i == EVENTS - 1 ? "last" : "key" + (i % 37);
+            Event event = new Event(Sequencer.SHARED.tick(),
+                    key.getBytes(StandardCharsets.UTF_8),
+                    "bar".getBytes(StandardCharsets.UTF_8),
+                    "baz".getBytes(StandardCharsets.UTF_8));
+            manager.append(event);
+            byKey.computeIfAbsent(key, k -> new ArrayList<>()).add(event.getId());
+        }
+        checkKeys(manager, byKey);
+
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (segmentFiles() < EVENTS / 1000 && System.currentTimeMillis() < deadline){
+            Thread.sleep(50L);
+        }
+        manager.close();
+
+        SegmentManager reopened = newManager();
+        checkKeys(reopened, byKey);
+        reopened.close();
+    }
+
+    @Test
+    public void testFilters() throws Exception {
+        SegmentManager manager = newManager();
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < EVENTS; i++) {
+            Event event = new Event(Sequencer.SHARED.tick(),
+                    ("key" + (i % 37)).getBytes(StandardCharsets.UTF_8),
+                    i % 5 == 0 ? new byte[0] : ("meta" + (i % 5)).getBytes(StandardCharsets.UTF_8),
+                    "baz".getBytes(StandardCharsets.UTF_8));
+            manager.append(event);
+            ids.add(event.getId());
+        }
+        checkFilters(manager, ids);
+
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (segmentFiles() < EVENTS / 1000 && System.currentTimeMillis() < deadline){
+            Thread.sleep(50L);
+        }
+        checkFilters(manager, ids);
+        manager.close();
+    }
+
+    @Test
+    public void testRollPolicy() throws Exception {
+        //A custom policy on top of the limits, and an age limit rolling the idle tail
+        SegmentManager manager = new SegmentManager(SEGMENTS_PATH, new MvWal(WAL_PATH),
+                SegmentManagerConfig.builder()
+                        .rollPolicy(RollPolicies.rows(700))
+                        .maxSegmentAge(Duration.ofSeconds(1))
+                        .rollCheckInterval(Duration.ofMillis(50))
+                        .build());
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < EVENTS; i++) {
+            Event event = new Event(Sequencer.SHARED.tick(),
+                    "foo".getBytes(StandardCharsets.UTF_8),
+                    "bar".getBytes(StandardCharsets.UTF_8),
+                    "baz".getBytes(StandardCharsets.UTF_8));
+            manager.append(event);
+            ids.add(event.getId());
+        }
+        long deadline = System.currentTimeMillis() + 10000L;
+        //7 segments rolled on rows, the tail on age
+        while (segmentFiles() < 8 && System.currentTimeMillis() < deadline){
+            Thread.sleep(50L);
+        }
+        assertEquals(8, segmentFiles());
+        checkRanges(manager, ids);
+
+        //Nothing left to roll: the empty segment stays in memory
+        Thread.sleep(500L);
+        assertEquals(8, segmentFiles());
+        manager.close();
+    }
+
+    @Test
+    public void testMemoryLimit() throws Exception {
+        //Way more events than the segment memory can hold: appends wait for stored segments to release theirs
+        long limit = 4L * 1024 * 1024;
+        SegmentManager manager = new SegmentManager(SEGMENTS_PATH, new MvWal(WAL_PATH),
+                SegmentManagerConfig.builder()
+                        .segmentMemoryLimit(limit)
+                        .build());
+        byte[] payload = new byte[1024];
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            Event event = new Event(Sequencer.SHARED.tick(),
+                    "foo".getBytes(StandardCharsets.UTF_8),
+                    "bar".getBytes(StandardCharsets.UTF_8),
+                    payload);
+            manager.append(event);
+            ids.add(event.getId());
+        }
+        MemoryStats stats = manager.memoryStats();
+        log.info("{}", stats);
+        assertTrue(stats.getBlockedAppends() > 0);
+        assertEquals(limit, stats.getSegments().getLimitBytes());
+        assertTrue(stats.getSegments().getPeakBytes() <= limit);
+        assertTrue(stats.getHotBytes() <= stats.getSegments().getAllocatedBytes());
+        assertTrue(segmentFiles() > 1);
+        assertEquals(ids, collect(manager.iterator()));
+        manager.close();
+    }
+
+    @Test
+    public void testStoreQueue() throws Exception {
+        //Segments written concurrently are still published in roll order
+        SegmentManager manager = new SegmentManager(SEGMENTS_PATH, new MvWal(WAL_PATH),
+                SegmentManagerConfig.builder()
+                        .maxMemoryEvents(500)
+                        .storeQueueDepth(1)
+                        .flushThreads(3)
+                        .build());
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < EVENTS; i++) {
+            Event event = new Event(Sequencer.SHARED.tick(),
+                    "foo".getBytes(StandardCharsets.UTF_8),
+                    "bar".getBytes(StandardCharsets.UTF_8),
+                    "baz".getBytes(StandardCharsets.UTF_8));
+            manager.append(event);
+            ids.add(event.getId());
+        }
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (manager.storeStats().getStoredSegments() < EVENTS / 500 && System.currentTimeMillis() < deadline){
+            Thread.sleep(50L);
+        }
+        StoreStats stats = manager.storeStats();
+        log.info("{}", stats);
+        assertEquals(EVENTS / 500, stats.getStoredSegments());
+        assertEquals(EVENTS / 500, segmentFiles());
+        assertEquals(0, stats.getUnstored());
+        assertEquals(0, stats.getFlushLagMillis());
+        assertEquals(3, stats.getFlushThreads());
+        checkRanges(manager, ids);
+        manager.close();
+
+        //A queue that can't keep up with a segment rolled every few events turns appends down
+        SegmentManager rejecting = new SegmentManager(SEGMENTS_PATH, new MvWal(WAL_PATH),
+                SegmentManagerConfig.builder()
+                        .maxMemoryEvents(10)
+                        .storeQueueDepth(1)
+                        .storeQueueFullPolicy(StoreQueueFullPolicy.REJECT)
+                        .build());
+        int rejected = 0;
+        for (int i = 0; i < 2000; i++) {
+            Event event = new Event(Sequencer.SHARED.tick(),
+                    "foo".getBytes(StandardCharsets.UTF_8),
+                    "bar".getBytes(StandardCharsets.UTF_8),
+                    "baz".getBytes(StandardCharsets.UTF_8));
+            try {
+                rejecting.append(event);
+                ids.add(event.getId());
+            } catch (EventAppendException e) {
+                rejected++;
+            }
+        }
+        assertTrue(rejected > 0);
+        assertEquals(rejected, rejecting.storeStats().getRejectedAppends());
+        assertEquals(ids, collect(rejecting.iterator()));
+        rejecting.close();
+    }
+
+    @Test
+    public void testStreamRecovery() throws Exception {
+        //Larger than a chunk: the first one is streamed to disk, and dropped from the WAL, before the segment rolls.
+        //Small log files, so that whole ones are covered by the chunk
+        SegmentManager manager = new SegmentManager(SEGMENTS_PATH, new LogWal(WAL_PATH, 64 * 1024), SegmentManagerConfig.defaults());
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            Event event = new Event(Sequencer.SHARED.tick(),
+                    "foo".getBytes(StandardCharsets.UTF_8),
+                    "bar".getBytes(StandardCharsets.UTF_8),
+                    "baz".getBytes(StandardCharsets.UTF_8));
+            manager.append(event);
+            ids.add(event.getId());
+        }
+        //Closed without rolling: the stream is left unsealed
+        manager.close();
+        assertEquals(0, segmentFiles());
+        assertEquals(1, files("stream-.*\\.segment\\.tmp"));
+        LogWal wal = new LogWal(WAL_PATH, 64 * 1024);
+        List<Long> logged = new ArrayList<>();
+        wal.events(false).forEachRemaining(e -> logged.add(e.getId()));
+        wal.close();
+        assertTrue(logged.size() < ids.size());
+        assertEquals(ids.subList(ids.size() - logged.size(), ids.size()), logged);
+
+        //The synced batches become a stored segment, the rest comes back from the WAL
+        SegmentManager reopened = new SegmentManager(SEGMENTS_PATH, new LogWal(WAL_PATH, 64 * 1024), SegmentManagerConfig.defaults());
+        assertEquals(1, segmentFiles());
+        assertEquals(0, files(".*\\.tmp"));
+        assertEquals(ids, collect(reopened.iterator()));
+        reopened.close();
+    }
+
+    @Test
+    public void testStreamKeepsWal() throws Exception {
+        //MvWal compacts on every removal: streamed chunks stay in it until the segment is published
+        SegmentManager manager = new SegmentManager(SEGMENTS_PATH, new MvWal(WAL_PATH), SegmentManagerConfig.defaults());
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            Event event = new Event(Sequencer.SHARED.tick(),
+                    "foo".getBytes(StandardCharsets.UTF_8),
+                    "bar".getBytes(StandardCharsets.UTF_8),
+                    "baz".getBytes(StandardCharsets.UTF_8));
+            manager.append(event);
+            ids.add(event.getId());
+        }
+        manager.close();
+        assertEquals(1, files("stream-.*\\.segment\\.tmp"));
+        MvWal wal = new MvWal(WAL_PATH);
+        List<Long> logged = new ArrayList<>();
+        wal.events(false).forEachRemaining(e -> logged.add(e.getId()));
+        wal.close();
+        assertEquals(ids, logged);
+
+        SegmentManager reopened = new SegmentManager(SEGMENTS_PATH, new MvWal(WAL_PATH), SegmentManagerConfig.defaults());
+        assertEquals(ids, collect(reopened.iterator()));
+        reopened.close();
+    }
+
+    @Test
+    public void testManifest() throws Exception {
+        SegmentManager manager = new SegmentManager(SEGMENTS_PATH, new MvWal(WAL_PATH),
+                SegmentManagerConfig.builder().maxMemoryEvents(1000).build());
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < EVENTS; i++) {
+            Event event = new Event(Sequencer.SHARED.tick(),
+                    "foo".getBytes(StandardCharsets.UTF_8),
+                    "bar".getBytes(StandardCharsets.UTF_8),
+                    "baz".getBytes(StandardCharsets.UTF_8));
+            manager.append(event);
+            ids.add(event.getId());
+        }
+        long deadline = System.currentTimeMillis() + 30000L;
+        while (manager.storeStats().getStoredSegments() < EVENTS / 1000 && System.currentTimeMillis() < deadline){
+            Thread.sleep(50L);
+        }
+        manager.close();
+        Path manifest = SEGMENTS_PATH.resolve("segments.manifest");
+        List<String> lines = Files.readAllLines(manifest);
+        assertEquals(EVENTS / 1000, lines.size());
+        String[] fields = lines.get(lines.size() - 1).split(" ");
+        assertEquals(ids.get(EVENTS / 1000 * 1000 - 1000), Long.parseLong(fields[0]));
+        assertEquals(ids.get(EVENTS / 1000 * 1000 - 1), Long.parseLong(fields[1]));
+        assertEquals(1000, Integer.parseInt(fields[2]));
+        assertEquals(ids.get(EVENTS / 1000 * 1000 - 1000) + ".segment", fields[5]);
+        assertEquals(Files.size(SEGMENTS_PATH.resolve(fields[5])), Long.parseLong(fields[3]));
+
+        //Replayed from the manifest
+        SegmentManager reopened = new SegmentManager(SEGMENTS_PATH, new MvWal(WAL_PATH), SegmentManagerConfig.defaults());
+        assertEquals(ids, collect(reopened.iterator()));
+        assertEquals(ids.subList(EVENTS - 10, EVENTS), collect(reopened.iterator(ids.get(EVENTS - 10), Long.MAX_VALUE)));
+        assertEquals(List.of(), reopened.verifyStoredSegments());
+        reopened.close();
+
+        //A line torn by a crash is dropped
+        Files.writeString(manifest, "123 456 7", StandardOpenOption.APPEND);
+        reopened = new SegmentManager(SEGMENTS_PATH, new MvWal(WAL_PATH), SegmentManagerConfig.defaults());
+        assertEquals(ids, collect(reopened.iterator()));
+        reopened.close();
+        assertEquals(lines, Files.readAllLines(manifest));
+
+        //A crash between moving the newest segment in place and writing its line: the WAL dropped its events
+        //already, the file is added back
+        Files.write(manifest, lines.subList(0, lines.size() - 1));
+        reopened = new SegmentManager(SEGMENTS_PATH, new MvWal(WAL_PATH), SegmentManagerConfig.defaults());
+        assertEquals(ids, collect(reopened.iterator()));
+        reopened.close();
+        assertEquals(lines, Files.readAllLines(manifest));
+
+        //Folders stored before the manifest are scanned once to build it
+        Files.delete(manifest);
+        reopened = new SegmentManager(SEGMENTS_PATH, new MvWal(WAL_PATH), SegmentManagerConfig.defaults());
+        assertEquals(ids, collect(reopened.iterator()));
+        reopened.close();
+        assertEquals(lines, Files.readAllLines(manifest));
+
+        //A byte flipped in the middle of the newest segment
+        Path newest = SEGMENTS_PATH.resolve(fields[5]);
+        byte[] content = Files.readAllBytes(newest);
+        content[content.length / 2] ^= 1;
+        Files.write(newest, content);
+        reopened = new SegmentManager(SEGMENTS_PATH, new MvWal(WAL_PATH), SegmentManagerConfig.defaults());
+        assertEquals(List.of(newest), reopened.verifyStoredSegments());
+        reopened.close();
+    }
+
+    @Test
+    public void testStream() throws Exception {
+        //Segments large enough to be split by rows too
+        SegmentManager manager = new SegmentManager(SEGMENTS_PATH, new MvWal(WAL_PATH),
+                SegmentManagerConfig.builder().maxMemoryEvents(20000).batchRows(4096).build());
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 50000; i++) {
+            Event event = new Event(Sequencer.SHARED.tick(),
+                    "foo".getBytes(StandardCharsets.UTF_8),
+                    "bar".getBytes(StandardCharsets.UTF_8),
+                    "baz".getBytes(StandardCharsets.UTF_8));
+            manager.append(event);
+            ids.add(event.getId());
+        }
+        long sum = ids.stream().mapToLong(Long::longValue).sum();
+
+        assertEquals(ids, manager.stream(false).map(EventAccessor::getId).collect(Collectors.toList()));
+        assertEquals(ids, manager.stream(true).map(EventAccessor::getId).collect(Collectors.toList()));
+        assertEquals(sum, manager.stream(true, false).mapToLong(EventAccessor::getId).sum());
+        assertEquals(ids, manager.stream(true, false).map(EventAccessor::getId).sorted().collect(Collectors.toList()));
+        assertEquals(ids.size(), manager.stream(true).count());
+
+        //Splits cover every row exactly once
+        Spliterator<EventAccessor> spliterator = manager.stream(false).spliterator();
+        List<Spliterator<EventAccessor>> splits = new ArrayList<>(List.of(spliterator));
+        for (int round = 0; round < 4; round++) {
+            List<Spliterator<EventAccessor>> next = new ArrayList<>();
+            for (Spliterator<EventAccessor> split : splits) {
+                Spliterator<EventAccessor> prefix = split.trySplit();
+                if (prefix != null) next.add(prefix);
+                next.add(split);
+            }
+            splits = next;
+        }
+        assertTrue(splits.size() > 3);
+        assertEquals(ids.size(), splits.stream().mapToLong(Spliterator::estimateSize).sum());
+        List<Long> collected = new ArrayList<>();
+        splits.forEach(split -> split.forEachRemaining(e -> collected.add(e.getId())));
+        assertEquals(ids, collected);
+        manager.close();
+    }
+
+    @Test
+    public void testStreamSeal() throws Exception {
+        //Chunks hold up to 65536 rows: the first one is streamed before the segment rolls
+        SegmentManager manager = new SegmentManager(SEGMENTS_PATH, new MvWal(WAL_PATH),
+                SegmentManagerConfig.builder().maxMemoryEvents(70000).build());
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 69999; i++) {
+            Event event = new Event(Sequencer.SHARED.tick(),
+                    "foo".getBytes(StandardCharsets.UTF_8),
+                    "bar".getBytes(StandardCharsets.UTF_8),
+                    "baz".getBytes(StandardCharsets.UTF_8));
+            manager.append(event);
+            ids.add(event.getId());
+        }
+        //The stream file of the first segment, once its first chunk is written
+        long deadline = System.currentTimeMillis() + 30000L;
+        List<Path> streams = streamFiles();
+        while (streams.isEmpty() && System.currentTimeMillis() < deadline){
+            Thread.sleep(10L);
+            streams = streamFiles();
+        }
+        assertEquals(1, streams.size());
+        Object streamKey = Files.readAttributes(streams.get(0), BasicFileAttributes.class).fileKey();
+        //Rolls the segment
+        manager.append(new Event(Sequencer.SHARED.tick(),
+                "foo".getBytes(StandardCharsets.UTF_8),
+                "bar".getBytes(StandardCharsets.UTF_8),
+                "baz".getBytes(StandardCharsets.UTF_8)));
+        manager.append(new Event(Sequencer.SHARED.tick(),
+                "foo".getBytes(StandardCharsets.UTF_8),
+                "bar".getBytes(StandardCharsets.UTF_8),
+                "baz".getBytes(StandardCharsets.UTF_8)));
+        while (manager.storeStats().getStoredSegments() < 1 && System.currentTimeMillis() < deadline){
+            Thread.sleep(10L);
+        }
+        StoreStats stats = manager.storeStats();
+        assertEquals(1, stats.getStoredSegments());
+        //Published by sealing the stream, not written again by the fallback
+        assertEquals(1, stats.getSealedStreams());
+        Path segmentFile = SEGMENTS_PATH.resolve(ids.get(0) + ".segment");
+        assertFalse(Files.exists(streams.get(0)));
+        if (streamKey != null) {
+            assertEquals(streamKey, Files.readAttributes(segmentFile, BasicFileAttributes.class).fileKey());
+        }
+        assertEquals(List.of(), manager.verifyStoredSegments());
+        assertEquals(ids, collect(manager.iterator(ids.get(0), ids.get(ids.size() - 1))));
+        manager.close();
+    }
+
+    private List<Path> streamFiles() throws IOException {
+        try (Stream<Path> files = Files.list(SEGMENTS_PATH)) {
+            return files.filter(p -> p.getFileName().toString().startsWith("stream-")).collect(Collectors.toList());
+        }
+    }
+
+    private void checkFilters(SegmentManager manager, List<Long> ids){
+        EventFilter[] filters = {
+                EventFilters.all(),
+                EventFilters.keyEquals("key7".getBytes(StandardCharsets.UTF_8)),
+                EventFilters.keyPrefix("key1".getBytes(StandardCharsets.UTF_8)),
+                EventFilters.metadataEquals("meta3".getBytes(StandardCharsets.UTF_8)),
+                EventFilters.metadataEquals(new byte[0]),
+                EventFilters.idRange(ids.get(1234), ids.get(4321)),
+                EventFilters.and(EventFilters.idRange(ids.get(1234), ids.get(4321)),
+                        EventFilters.keyEquals("key7".getBytes(StandardCharsets.UTF_8)),
+                        EventFilters.not(EventFilters.metadataEquals("meta2".getBytes(StandardCharsets.UTF_8)))),
+                EventFilters.or(EventFilters.keyEquals("key7".getBytes(StandardCharsets.UTF_8)),
+                        EventFilters.keyPrefix("key3".getBytes(StandardCharsets.UTF_8)))
+        };
+        for (EventFilter filter : filters) {
+            //Same result as filtering materialized events
+            List<Long> expected = new ArrayList<>();
+            manager.iterator().forEachRemaining(e -> {
+                if (filter.filter(e)) expected.add(e.getId());
+            });
+            assertFalse(expected.isEmpty());
+            assertEquals(expected, collect(manager.iterator(filter)));
+        }
+    }
+
+    private void checkKeys(SegmentManager manager, Map<String, List<Long>> byKey){
+        byKey.forEach((key, ids) -> {
+            List<Long> found = new ArrayList<>();
+            manager.iteratorByKey(key.getBytes(StandardCharsets.UTF_8)).forEachRemaining(e -> {
+                assertArrayEquals(key.getBytes(StandardCharsets.UTF_8), e.getKey());
+                found.add(e.getId());
+            });
+            assertEquals(ids, found);
+        });
+        assertFalse(manager.iteratorByKey("missing".getBytes(StandardCharsets.UTF_8)).hasNext());
+    }
+
+    private void checkRanges(SegmentManager manager, List<Long> ids) throws IOException {
+        assertEquals(ids, collect(manager.iterator()));
+        assertEquals(ids, collect(manager.iterator(Long.MIN_VALUE, Long.MAX_VALUE)));
+        //Segment boundaries, single events, within a segment
+        int[][] ranges = {{0, 999}, {999, 1000}, {1000, 1000}, {1500, 3700}, {2500, 2600},
+                {4999, EVENTS - 1}, {0, EVENTS - 1}, {EVENTS - 1, EVENTS - 1}};
+        for (int[] range : ranges) {
+            assertEquals(ids.subList(range[0], range[1] + 1),
+                    collect(manager.iterator(ids.get(range[0]), ids.get(range[1]))));
+        }
+        //Bounds between ids
+        assertEquals(ids.subList(1501, 3700),
+                collect(manager.iterator(ids.get(1500) + 1, ids.get(3700) - 1)));
+        //Outside the stored ids
+        assertEquals(ids.subList(0, 10),
+                collect(manager.iterator(Long.MIN_VALUE, ids.get(9))));
+        assertFalse(manager.iterator(ids.get(EVENTS - 1) + 1, Long.MAX_VALUE).hasNext());
+        assertFalse(manager.iterator(Long.MIN_VALUE, ids.get(0) - 1).hasNext());
+        assertFalse(manager.iterator(ids.get(10), ids.get(9)).hasNext());
+        //Closed half read
+        ChainedEventIterator iterator = manager.iterator(ids.get(1500), ids.get(3700));
+        assertTrue(iterator.hasNext());
+        assertEquals(ids.get(1500), iterator.next().getId());
+        iterator.close();
+        assertFalse(iterator.hasNext());
+    }
+
+    private SegmentManager newManager() throws IOException {
+        return new SegmentManager(SEGMENTS_PATH, new MvWal(WAL_PATH),
+                SegmentManagerConfig.builder()
+                        .maxMemoryEvents(1000)
+                        //Several batches per segment, and a cache too small to hold all of them
+                        .batchRows(256)
+                        .batchCacheBytes(64 * 1024)
+                        .build());
+    }
+
+    private List<Long> collect(Iterator<EventAccessor> iterator){
+        List<Long> collected = new ArrayList<>();
+        iterator.forEachRemaining(e -> collected.add(e.getId()));
+        return collected;
+    }
+
+    //Published segments, not the temporary files of those being written
+    private long segmentFiles() throws IOException {
+        return files("[0-9]+\\.segment");
+    }
+
+    private long files(String pattern) throws IOException {
+        try (Stream<Path> files = Files.list(SEGMENTS_PATH)) {
+            return files.filter(p -> p.getFileName().toString().matches(pattern)).count();
+        }
+    }
+
+    private void clear(Path rootPath){
+        try (Stream<Path> walk = Files.walk(rootPath)) {
+            walk.sorted(Comparator.reverseOrder())
+                    .filter(p -> !p.equals(rootPath))
+                    .forEach(this::clear);
+        } catch (IOException e) {
+            //Ignore
+        }
+        try {
+            Files.delete(rootPath);
+        } catch (IOException e) {
+            //Ignore
+        }
+    }
+}
@@ -1,30 +1,50 @@
 package segment;
 
+import org.apache.arrow.memory.ArrowBuf;
 import org.junit.jupiter.api.Test;
 import org.lome.trailstore.exceptions.EventAppendException;
 import org.lome.trailstore.model.Event;
+import org.lome.trailstore.model.EventCodec;
+import org.lome.trailstore.storage.segment.ArrowFileSegment;
 import org.lome.trailstore.storage.segment.ArrowMemorySegment;
+import org.lome.trailstore.storage.segment.ArrowSegment;
+import org.lome.trailstore.storage.segment.BatchCache;
+import org.lome.trailstore.storage.segment.EventAccessor;
+import org.lome.trailstore.storage.segment.EventIterator;
+import org.lome.trailstore.storage.segment.SegmentBatch;
+import org.lome.trailstore.storage.segment.SegmentCompression;
+import org.lome.trailstore.storage.segment.SegmentReadMode;
 import org.lome.trailstore.storage.segment.SegmentManager;
+import org.lome.trailstore.storage.segment.SegmentSizing;
 import org.lome.trailstore.utils.Sequencer;
+import org.roaringbitmap.RoaringBitmap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class SegmentTest {
@@ -141,4 +161,346 @@ public class SegmentTest {
         segment.close();
     }
 
+    @Test
+    public void testTailingReaders() throws InterruptedException, IOException {
+        ArrowMemorySegment segment = new ArrowMemorySegment();
+        int events = 300000;
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicInteger passes = new AtomicInteger();
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread reader = new Thread(() -> {
+                try {
+                    int seen = 0;
+                    while (seen < events) {
+                        //Rows are only visible once fully written: every value must match its id
+                        long previous = Long.MIN_VALUE;
+                        int count = 0;
+                        for (Iterator<EventAccessor> it = segment.iterator(); it.hasNext(); count++) {
+                            EventAccessor e = it.next();
+                            assertTrue(e.getId() > previous);
+                            previous = e.getId();
+                            assertArrayEquals(payload(e.getId()), e.getData());
+                        }
+                        assertTrue(count >= seen);
+                        seen = count;
+                        passes.incrementAndGet();
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+        ArrowBuf firstData = null;
+        for (int j = 0; j < events; j++) {
+            long id = Sequencer.SHARED.tick();
+            segment.append(new Event(id, "foo".getBytes(StandardCharsets.UTF_8), null, payload(id)));
+            if (j == 0) firstData = segment.batch(0).dataVector().getDataBuffer();
+        }
+        for (Thread reader : readers) reader.join();
+        if (failure.get() != null) throw new AssertionError(failure.get());
+        log.info("{} reader passes over {} chunks", passes.get(), segment.batchCount());
+        //Chunks are never reallocated under the readers
+        assertTrue(segment.batchCount() > 1);
+        assertTrue(firstData == segment.batch(0).dataVector().getDataBuffer());
+        assertEquals(events, segment.rows());
+        segment.close();
+    }
+
+    //Variable sized, so chunks also fill up on bytes before rows
+    private static byte[] payload(long id){
+        return ("baz" + id).repeat((int) (id % 7) + 1).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testFileSegmentReadModes() throws IOException {
+        ArrowMemorySegment segment = new ArrowMemorySegment();
+        for (int j=0;j < 10000; j++)
+            segment.append(new Event(Sequencer.SHARED.tick(),
+                    ("foo"+j).getBytes(StandardCharsets.UTF_8),
+                    ("bar"+j).getBytes(StandardCharsets.UTF_8),
+                    ("baz"+j).getBytes(StandardCharsets.UTF_8)));
+        Path file = Files.createTempFile("trailstore", ".segment");
+        segment.store(file.toFile());
+
+        long allocated = ArrowSegment.ROOT_ALLOCATOR.getAllocatedMemory();
+        ArrowFileSegment copied = new ArrowFileSegment(file.toFile(), SegmentReadMode.COPY);
+        SegmentBatch copiedBatch = copied.batch(0);
+        long copiedBytes = ArrowSegment.ROOT_ALLOCATOR.getAllocatedMemory() - allocated;
+        ArrowFileSegment mapped = new ArrowFileSegment(file.toFile(), SegmentReadMode.MMAP);
+        SegmentBatch mappedBatch = mapped.batch(0);
+        long mappedBytes = ArrowSegment.ROOT_ALLOCATOR.getAllocatedMemory() - allocated - copiedBytes;
+        log.info("Direct memory held: {} bytes copied, {} bytes mapped", copiedBytes, mappedBytes);
+        assertTrue(mappedBytes < copiedBytes);
+        copiedBatch.close();
+        mappedBatch.close();
+
+        assertSameRows(segment, copied);
+        assertSameRows(segment, mapped);
+        AtomicInteger counter = new AtomicInteger();
+        mapped.iterator().forEachRemaining(e -> counter.incrementAndGet());
+        assertEquals(segment.rows(), counter.get());
+
+        copied.close();
+        mapped.close();
+        segment.close();
+        Files.delete(file);
+    }
+
+    @Test
+    public void testSeek() throws IOException {
+        ArrowMemorySegment segment = new ArrowMemorySegment();
+        for (int j=0;j < 10000; j++)
+            segment.append(new Event(Sequencer.SHARED.tick(),
+                    "foo".getBytes(StandardCharsets.UTF_8),
+                    "bar".getBytes(StandardCharsets.UTF_8),
+                    "baz".getBytes(StandardCharsets.UTF_8)));
+        Path file = Files.createTempFile("trailstore", ".segment");
+        segment.store(file.toFile());
+        ArrowFileSegment copied = new ArrowFileSegment(file.toFile(), SegmentReadMode.COPY);
+        ArrowFileSegment mapped = new ArrowFileSegment(file.toFile(), SegmentReadMode.MMAP);
+
+        for (ArrowSegment s : new ArrowSegment[]{segment, copied, mapped}) {
+            assertEquals(segment.id(0), s.first());
+            assertEquals(segment.id(9999), s.last());
+            assertEquals(0, s.seek(Long.MIN_VALUE));
+            assertEquals(0, s.seek(s.first()));
+            assertEquals(10000, s.seek(s.last() + 1));
+            for (int j : new int[]{1, 4095, 4096, 4097, 8191, 8192, 9999}) {
+                long id = segment.id(j);
+                assertEquals(j, s.seek(id));
+                assertEquals(scan(segment, id - 1), s.seek(id - 1));
+                assertEquals(scan(segment, id + 1), s.seek(id + 1));
+            }
+        }
+
+        copied.close();
+        mapped.close();
+        segment.close();
+        Files.delete(file);
+    }
+
+    @Test
+    public void testRowsByKey() throws IOException {
+        ArrowMemorySegment segment = new ArrowMemorySegment();
+        for (int j=0;j < 10000; j++) {
+            Event event = new Event(Sequencer.SHARED.tick(),
+                    ("foo"+(j % 100)).getBytes(StandardCharsets.UTF_8),
+                    "bar".getBytes(StandardCharsets.UTF_8),
+                    "baz".getBytes(StandardCharsets.UTF_8));
+            //Half of them read in place from their record, keys hashed within it
+            if (j % 2 == 0) segment.append(event);
+            else segment.append(EventCodec.view(ByteBuffer.wrap(event.toByteArray())));
+        }
+        Path file = Files.createTempFile("trailstore", ".segment");
+        segment.store(file.toFile());
+        ArrowFileSegment mapped = new ArrowFileSegment(file.toFile(), SegmentReadMode.MMAP);
+
+        for (ArrowSegment s : new ArrowSegment[]{segment, mapped}) {
+            RoaringBitmap rows = s.rowsByKey("foo42".getBytes(StandardCharsets.UTF_8));
+            assertEquals(100, rows.getCardinality());
+            rows.forEach((int row) -> assertEquals(42, row % 100));
+            assertTrue(s.rowsByKey("foo".getBytes(StandardCharsets.UTF_8)).isEmpty());
+            assertTrue(s.rowsByKey("foo420".getBytes(StandardCharsets.UTF_8)).isEmpty());
+        }
+
+        mapped.close();
+        segment.close();
+        Files.delete(file);
+    }
+
+    @Test
+    public void testAccessorBuffers() throws IOException {
+        ArrowMemorySegment segment = new ArrowMemorySegment();
+        for (int j=0;j < 1000; j++)
+            segment.append(new Event(Sequencer.SHARED.tick(),
+                    ("foo"+j).getBytes(StandardCharsets.UTF_8),
+                    ("bar"+j).getBytes(StandardCharsets.UTF_8),
+                    ("baz"+j).getBytes(StandardCharsets.UTF_8)));
+        Path file = Files.createTempFile("trailstore", ".segment");
+        segment.store(file.toFile());
+        ArrowFileSegment mapped = new ArrowFileSegment(file.toFile(), SegmentReadMode.MMAP);
+
+        for (ArrowSegment s : new ArrowSegment[]{segment, mapped}) {
+            ByteBuffer target = ByteBuffer.allocate(64);
+            AtomicInteger row = new AtomicInteger();
+            s.iterator().forEachRemaining(e -> {
+                int j = row.getAndIncrement();
+                assertEquals(segment.id(j), e.getId());
+                assertEquals(ByteBuffer.wrap(("foo"+j).getBytes(StandardCharsets.UTF_8)), e.getKeyBuffer());
+                assertEquals(ByteBuffer.wrap(("bar"+j).getBytes(StandardCharsets.UTF_8)), e.getMetadataBuffer());
+                assertArrayEquals(("baz"+j).getBytes(StandardCharsets.UTF_8), e.getData());
+                target.clear();
+                int length = e.getData(target);
+                assertArrayEquals(e.getData(), Arrays.copyOf(target.array(), length));
+            });
+            assertEquals(1000, row.get());
+        }
+
+        mapped.close();
+        segment.close();
+        Files.delete(file);
+    }
+
+    @Test
+    public void testCompressedSegments() throws IOException {
+        ArrowMemorySegment segment = new ArrowMemorySegment();
+        for (int j=0;j < 10000; j++)
+            segment.append(new Event(Sequencer.SHARED.tick(),
+                    ("foo"+(j % 100)).getBytes(StandardCharsets.UTF_8),
+                    ("bar"+j).getBytes(StandardCharsets.UTF_8),
+                    ("{\"user\":\"someone\",\"action\":\"login\",\"attempt\":"+j+"}").getBytes(StandardCharsets.UTF_8)));
+        Path plain = Files.createTempFile("trailstore", ".segment");
+        segment.store(plain.toFile());
+
+        for (SegmentCompression compression : new SegmentCompression[]{SegmentCompression.LZ4, SegmentCompression.ZSTD}) {
+            Path file = Files.createTempFile("trailstore", ".segment");
+            long allocated = ArrowSegment.ROOT_ALLOCATOR.getAllocatedMemory();
+            segment.store(file.toFile(), compression);
+            //Compressed buffers are all released, the segment keeps its own
+            assertEquals(allocated, ArrowSegment.ROOT_ALLOCATOR.getAllocatedMemory());
+            log.info("{} segment: {} bytes, uncompressed {} bytes", compression, Files.size(file), Files.size(plain));
+            assertTrue(Files.size(file) < Files.size(plain));
+
+            ArrowFileSegment compressed = new ArrowFileSegment(file.toFile(), SegmentReadMode.MMAP);
+            assertEquals(SegmentReadMode.COPY, compressed.getReadMode());
+            assertEquals(segment.rows(), compressed.rows());
+            assertEquals(segment.first(), compressed.first());
+            assertEquals(segment.last(), compressed.last());
+            assertSameRows(segment, compressed);
+            assertEquals(100, compressed.rowsByKey("foo42".getBytes(StandardCharsets.UTF_8)).getCardinality());
+            assertEquals(5000, compressed.seek(segment.id(5000)));
+            compressed.close();
+            Files.delete(file);
+        }
+
+        segment.close();
+        Files.delete(plain);
+    }
+
+    @Test
+    public void testBatches() throws IOException {
+        ArrowMemorySegment segment = new ArrowMemorySegment();
+        for (int j=0;j < 10000; j++)
+            segment.append(new Event(Sequencer.SHARED.tick(),
+                    ("foo"+(j % 100)).getBytes(StandardCharsets.UTF_8),
+                    ("bar"+j).getBytes(StandardCharsets.UTF_8),
+                    ("baz"+j).getBytes(StandardCharsets.UTF_8)));
+        Path file = Files.createTempFile("trailstore", ".segment");
+        segment.store(file.toFile(), SegmentCompression.NONE, 1024);
+
+        for (SegmentReadMode readMode : SegmentReadMode.values()) {
+            BatchCache cache = new BatchCache(BatchCache.DEFAULT_MAX_BYTES);
+            ArrowFileSegment stored = new ArrowFileSegment(file.toFile(), readMode, cache);
+            assertEquals(10, stored.batchCount());
+            //Nothing is loaded until rows are read
+            assertEquals(0, cache.size());
+            assertEquals(segment.first(), stored.first());
+            assertEquals(segment.last(), stored.last());
+            assertEquals(0, cache.size());
+
+            //A seek loads the batch it lands in only
+            long id = segment.id(4500);
+            assertEquals(4500, stored.seek(id));
+            assertEquals(1, cache.size());
+
+            assertSameRows(segment, stored);
+            assertEquals(10, cache.size());
+            for (int j : new int[]{0, 1023, 1024, 1025, 4095, 4096, 9999}) {
+                assertEquals(j, stored.seek(segment.id(j)));
+                assertEquals(scan(segment, segment.id(j) + 1), stored.seek(segment.id(j) + 1));
+            }
+            RoaringBitmap rows = stored.rowsByKey("foo42".getBytes(StandardCharsets.UTF_8));
+            assertEquals(100, rows.getCardinality());
+            rows.forEach((int row) -> assertEquals(42, row % 100));
+            AtomicInteger counter = new AtomicInteger();
+            stored.iterator().forEachRemaining(e -> assertEquals(segment.id(counter.getAndIncrement()), e.getId()));
+            assertEquals(10000, counter.get());
+
+            stored.close();
+            assertEquals(0, cache.size());
+        }
+
+        //A cache holding a couple of batches at most keeps evicting while the segment is scanned
+        long allocated = ArrowSegment.ROOT_ALLOCATOR.getAllocatedMemory();
+        BatchCache small = new BatchCache(100000);
+        ArrowFileSegment stored = new ArrowFileSegment(file.toFile(), SegmentReadMode.COPY, small);
+        assertSameRows(segment, stored);
+        assertTrue(small.size() < 10);
+        assertTrue(small.bytes() <= 100000);
+        stored.close();
+        //Evicted batches have been released
+        assertEquals(allocated, ArrowSegment.ROOT_ALLOCATOR.getAllocatedMemory());
+
+        segment.close();
+        Files.delete(file);
+    }
+
+    @Test
+    public void testSizing() throws IOException {
+        List<Event> events = new ArrayList<>();
+        for (int j=0;j < 20000; j++)
+            events.add(new Event(Sequencer.SHARED.tick(),
+                    ("foo"+(j % 10)).getBytes(StandardCharsets.UTF_8),
+                    null,
+                    payload(j)));
+        ArrowMemorySegment segment = new ArrowMemorySegment();
+        events.forEach(segment::append);
+        //Grown by doubling chunks
+        assertTrue(segment.batchCount() > 1);
+        SegmentSizing sizing = SegmentSizing.of(segment);
+        assertEquals(20000, sizing.getExpectedRows());
+        assertEquals(4, sizing.getKeyBytes());
+        assertEquals(0, sizing.getMetadataBytes());
+        assertTrue(sizing.getDataBytes() > 3);
+
+        //Sized after the first one: a single chunk takes all the rows without growing
+        ArrowMemorySegment presized = new ArrowMemorySegment(sizing);
+        assertEquals(0, presized.allocatedBytes());
+        presized.append(events.get(0));
+        long allocated = presized.allocatedBytes();
+        assertTrue(allocated >= 20000L * (sizing.getKeyBytes() + sizing.getDataBytes()));
+        events.subList(1, events.size()).forEach(presized::append);
+        assertEquals(1, presized.batchCount());
+        assertEquals(allocated, presized.allocatedBytes());
+        assertSameRows(segment, presized);
+
+        //Past the expected rows it grows again
+        presized.append(new Event(Sequencer.SHARED.tick(), "foo".getBytes(StandardCharsets.UTF_8), null, payload(0)));
+        assertEquals(2, presized.batchCount());
+        assertTrue(presized.allocatedBytes() > allocated);
+
+        presized.close();
+        segment.close();
+    }
+
+    private void assertSameRows(ArrowMemorySegment expected, ArrowSegment actual){
+        assertEquals(expected.rows(), actual.rows());
+        EventIterator rows = expected.iterator();
+        int row = 0;
+        for (int i = 0; i < actual.batchCount(); i++) {
+            try (SegmentBatch batch = actual.batch(i)) {
+                assertEquals(row, batch.startRow());
+                for (int j = 0; j < batch.rows(); j++, row++) {
+                    assertTrue(rows.hasNext());
+                    EventAccessor event = rows.next();
+                    assertEquals(event.getId(), batch.idVector().get(j));
+                    assertArrayEquals(event.getKey(), batch.keyVector().get(j));
+                    assertArrayEquals(event.getMetadata(), batch.metadataVector().get(j));
+                    assertArrayEquals(event.getData(), batch.dataVector().get(j));
+                }
+            }
+        }
+        assertEquals(expected.rows(), row);
+        assertFalse(rows.hasNext());
+    }
+
+    private int scan(ArrowSegment segment, long id){
+        int row = 0;
+        while (row < segment.rows() && segment.id(row) < id) row++;
+        return row;
+    }
+
 }
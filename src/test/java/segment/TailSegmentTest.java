@@ -0,0 +1,193 @@
+package segment;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.lome.trailstore.model.Event;
+import org.lome.trailstore.storage.mvwal.MvWal;
+import org.lome.trailstore.storage.segment.SegmentManager;
+import org.lome.trailstore.storage.segment.SegmentManagerConfig;
+import org.lome.trailstore.utils.Sequencer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+public class TailSegmentTest {
+
+    final static Path SEGMENTS_PATH = Path.of("tail-segments");
+    final static Path WAL_PATH = Path.of("tail-wals");
+
+    @BeforeEach
+    @AfterEach
+    public void cleanup(){
+        clear(SEGMENTS_PATH);
+        clear(WAL_PATH);
+    }
+
+    @Test
+    public void testTail() throws Exception {
+        SegmentManager manager = newManager();
+        List<Long> ids = append(manager, 2500);
+        //Small requests: delivery stops and resumes many times, across stored and memory segments
+        Collector collector = new Collector(7);
+        manager.subscribe(ids.get(500), collector);
+        ids.addAll(append(manager, 2500));
+        for (int i = 0; i < 500; i++) {
+            manager.appendAsync(event()).thenAccept(ids::add).join();
+        }
+        collector.awaitEvents(5000);
+        assertEquals(ids.subList(500, ids.size()), collector.ids());
+        manager.close();
+        assertTrue(collector.completed.await(10, TimeUnit.SECONDS));
+        collector.checkError();
+        assertEquals(5000, collector.ids().size());
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        SegmentManager manager = newManager();
+        Collector collector = new Collector(0);
+        manager.subscribe(Long.MIN_VALUE, collector);
+        List<Long> ids = append(manager, 3000);
+        collector.subscription.get().request(10);
+        collector.awaitEvents(10);
+        Thread.sleep(200);
+        assertEquals(ids.subList(0, 10), collector.ids());
+        collector.subscription.get().request(2990);
+        collector.awaitEvents(3000);
+        assertEquals(ids, collector.ids());
+        manager.close();
+    }
+
+    @Test
+    public void testConsumer() throws Exception {
+        SegmentManager manager = newManager();
+        List<Long> received = Collections.synchronizedList(new ArrayList<>());
+        Flow.Subscription subscription = manager.subscribe(Long.MIN_VALUE, (Event e) -> received.add(e.getId()));
+        List<Long> ids = append(manager, 1500);
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (received.size() < ids.size() && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assertEquals(ids, received);
+        subscription.cancel();
+        append(manager, 100);
+        Thread.sleep(200);
+        assertEquals(ids.size(), received.size());
+        manager.close();
+    }
+
+    private List<Long> append(SegmentManager manager, int events){
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < events; i++) {
+            Event event = event();
+            manager.append(event);
+            ids.add(event.getId());
+        }
+        return ids;
+    }
+
+    private Event event(){
+        return new Event(Sequencer.SHARED.tick(),
+                "foo".getBytes(StandardCharsets.UTF_8),
+                "bar".getBytes(StandardCharsets.UTF_8),
+                "baz".getBytes(StandardCharsets.UTF_8));
+    }
+
+    private SegmentManager newManager() throws IOException {
+        return new SegmentManager(SEGMENTS_PATH, new MvWal(WAL_PATH),
+                SegmentManagerConfig.builder()
+                        .maxMemoryEvents(1000)
+                        .batchRows(256)
+                        .build());
+    }
+
+    //Requests batchSize more events each time it has received the previous ones, nothing by itself if 0
+    static class Collector implements Flow.Subscriber<Event> {
+
+        final int batchSize;
+        final List<Long> ids = Collections.synchronizedList(new ArrayList<>());
+        final AtomicReference<Flow.Subscription> subscription = new AtomicReference<>();
+        final CountDownLatch completed = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        int outstanding;
+
+        Collector(int batchSize){
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription.set(subscription);
+            if (batchSize > 0) {
+                outstanding = batchSize;
+                subscription.request(batchSize);
+            }
+        }
+
+        @Override
+        public void onNext(Event item) {
+            ids.add(item.getId());
+            if (batchSize > 0 && --outstanding == 0) {
+                outstanding = batchSize;
+                subscription.get().request(batchSize);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error.set(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+
+        List<Long> ids(){
+            synchronized (ids) {
+                return ids.stream().collect(Collectors.toList());
+            }
+        }
+
+        void awaitEvents(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000L;
+            while (ids.size() < count && error.get() == null && System.currentTimeMillis() < deadline) Thread.sleep(10);
+            checkError();
+        }
+
+        //Reports a failed subscription as itself, rather than as missing events
+        void checkError(){
+            if (error.get() != null) fail("Subscription failed", error.get());
+        }
+    }
+
+    private void clear(Path rootPath){
+        try (Stream<Path> walk = Files.walk(rootPath)) {
+            walk.sorted(Comparator.reverseOrder())
+                    .filter(p -> !p.equals(rootPath))
+                    .forEach(this::clear);
+        } catch (IOException e) {
+            //Ignore
+        }
+        try {
+            Files.delete(rootPath);
+        } catch (IOException e) {
+            //Ignore
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package server;
+
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.BigIntVector;
+import org.apache.arrow.vector.ipc.ArrowStreamReader;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.lome.trailstore.model.Event;
+import org.lome.trailstore.server.TrailClient;
+import org.lome.trailstore.server.TrailServer;
+import org.lome.trailstore.storage.mvwal.MvWal;
+import org.lome.trailstore.storage.segment.SegmentManager;
+import org.lome.trailstore.storage.segment.SegmentManagerConfig;
+import org.lome.trailstore.storage.wal.Durability;
+import org.lome.trailstore.utils.Sequencer;
+import reactor.core.publisher.Flux;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class TrailServerTest {
+
+    final static Path SEGMENTS_PATH = Path.of("server-segments");
+    final static Path WAL_PATH = Path.of("server-wals");
+
+    SegmentManager manager;
+    TrailServer server;
+    TrailClient client;
+
+    @BeforeEach
+    public void start() throws IOException {
+        clear(SEGMENTS_PATH);
+        clear(WAL_PATH);
+        manager = new SegmentManager(SEGMENTS_PATH, new MvWal(WAL_PATH),
+                SegmentManagerConfig.builder().maxMemoryEvents(1000).build());
+        server = new TrailServer(manager, "127.0.0.1", 0);
+        client = new TrailClient("127.0.0.1", server.address().getPort());
+    }
+
+    @AfterEach
+    public void stop(){
+        client.close();
+        server.close();
+        manager.close();
+        clear(SEGMENTS_PATH);
+        clear(WAL_PATH);
+    }
+
+    @Test
+    public void testAppendAndReplay(){
+        List<List<Event>> batches = new ArrayList<>();
+        for (int b = 0; b < 20; b++) batches.add(events(250));
+        List<Long> acks = client.append(Flux.fromIterable(batches)).collectList().block(Duration.ofSeconds(30));
+        assertEquals(batches.stream().map(b -> b.get(b.size() - 1).getId()).collect(Collectors.toList()), acks);
+
+        List<Event> sent = batches.stream().flatMap(List::stream).collect(Collectors.toList());
+        //Small requests: the scan is resumed every few events
+        List<Event> replayed = client.replay(Long.MIN_VALUE, Long.MAX_VALUE).limitRate(7)
+                .collectList().block(Duration.ofSeconds(30));
+        assertEquals(ids(sent), ids(replayed));
+        assertArrayEquals(sent.get(4321).getData(), replayed.get(4321).getData());
+        assertArrayEquals(sent.get(4321).getKey(), replayed.get(4321).getKey());
+
+        List<Event> range = client.replay(sent.get(1000).getId(), sent.get(1999).getId())
+                .collectList().block(Duration.ofSeconds(30));
+        assertEquals(ids(sent.subList(1000, 2000)), ids(range));
+        assertEquals(100, client.replay(Long.MIN_VALUE, Long.MAX_VALUE).take(100).count().block());
+    }
+
+    @Test
+    public void testDurability(){
+        //Each level acknowledges every batch, in order; the events are there either way
+        List<Event> sent = new ArrayList<>();
+        for (Durability durability : Durability.values()) {
+            List<List<Event>> batches = List.of(events(300), events(200));
+            List<Long> acks = client.append(Flux.fromIterable(batches), durability).collectList().block(Duration.ofSeconds(30));
+            assertEquals(batches.stream().map(b -> b.get(b.size() - 1).getId()).collect(Collectors.toList()), acks);
+            batches.forEach(sent::addAll);
+        }
+        List<Event> replayed = client.replay(Long.MIN_VALUE, Long.MAX_VALUE).collectList().block(Duration.ofSeconds(30));
+        assertEquals(ids(sent), ids(replayed));
+    }
+
+    @Test
+    public void testExportArrow() throws IOException {
+        List<List<Event>> batches = List.of(events(2000), events(1500));
+        client.append(Flux.fromIterable(batches)).blockLast(Duration.ofSeconds(30));
+        List<Event> sent = batches.stream().flatMap(List::stream).collect(Collectors.toList());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long bytes = client.exportArrow(sent.get(100).getId(), sent.get(3199).getId(), Channels.newChannel(out))
+                .block(Duration.ofSeconds(30));
+        assertEquals(out.size(), bytes);
+        List<Long> exported = new ArrayList<>();
+        try (RootAllocator allocator = new RootAllocator();
+             ArrowStreamReader reader = new ArrowStreamReader(new ByteArrayInputStream(out.toByteArray()), allocator)) {
+            while (reader.loadNextBatch()) {
+                BigIntVector ids = (BigIntVector) reader.getVectorSchemaRoot().getVector("id");
+                for (int row = 0; row < ids.getValueCount(); row++) exported.add(ids.get(row));
+            }
+        }
+        assertEquals(ids(sent.subList(100, 3200)), exported);
+    }
+
+    @Test
+    public void testRejectedBatch(){
+        List<Event> first = events(10);
+        List<Event> stale = events(10);
+        List<Event> rejected = List.of(stale.get(0));
+        assertThrows(RuntimeException.class, () -> client.append(Flux.just(first, stale, rejected))
+                .collectList().block(Duration.ofSeconds(30)));
+        List<Event> replayed = client.replay(Long.MIN_VALUE, Long.MAX_VALUE).collectList().block(Duration.ofSeconds(30));
+        assertEquals(20, replayed.size());
+    }
+
+    @Test
+    public void testFireAndForget() throws InterruptedException {
+        List<Event> events = events(500);
+        client.send(events.subList(0, 250)).block();
+        client.send(events.subList(250, 500)).block();
+        AtomicInteger counter = new AtomicInteger();
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (counter.get() < events.size() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            counter.set(0);
+            manager.iterator().forEachRemaining(e -> counter.incrementAndGet());
+        }
+        assertEquals(events.size(), counter.get());
+        assertEquals(0, server.droppedEvents());
+    }
+
+    private List<Event> events(int count){
+        List<Event> events = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            events.add(new Event(Sequencer.SHARED.tick(),
+                    ("key" + (i % 10)).getBytes(StandardCharsets.UTF_8),
+                    "meta".getBytes(StandardCharsets.UTF_8),
+                    ("data" + i).getBytes(StandardCharsets.UTF_8)));
+        }
+        return events;
+    }
+
+    private List<Long> ids(List<Event> events){
+        return events.stream().map(Event::getId).collect(Collectors.toList());
+    }
+
+    private void clear(Path rootPath){
+        try (Stream<Path> walk = Files.walk(rootPath)) {
+            walk.sorted(Comparator.reverseOrder())
+                    .filter(p -> !p.equals(rootPath))
+                    .forEach(this::clear);
+        } catch (IOException e) {
+            //Ignore
+        }
+        try {
+            Files.delete(rootPath);
+        } catch (IOException e) {
+            //Ignore
+        }
+    }
+}